@@ -0,0 +1,336 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp;
+
+import java.io.UnsupportedEncodingException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A compact {@link Map} for the headers of a STOMP frame which keeps its keys and values in two
+ * parallel arrays in insertion order. Frames usually only have a handful of headers so a linear
+ * scan is cheaper than hashing and there are no entry objects to allocate.
+ * <p/>
+ * Lookups first compare keys by identity, which finds the well-known header names of {@link Stomp}
+ * without calling equals(), before falling back to a comparison by value.
+ * <p/>
+ * Headers can be walked without allocating an iterator using {@link #getKey(int)} and {@link #getValue(int)}.
+ * <p/>
+ * Values added with {@link #putRaw(String, byte[], int, int)} are kept as the raw bytes of the frame and only
+ * decoded into a String when they are first read, so headers which are never looked at cost no more than a copy
+ * of their bytes.
+ *
+ * @version $Revision$
+ */
+public class HeaderMap extends AbstractMap<String, Object> {
+    private static final int DEFAULT_CAPACITY = 8;
+    private static final Object RAW_VALUE = new Object();
+    private String[] keys;
+    private Object[] values;
+    private int size;
+    private byte[][] rawData;
+    private int[] rawOffsets;
+    private int[] rawLengths;
+    private transient Set<Map.Entry<String, Object>> entrySet;
+
+    public HeaderMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public HeaderMap(int capacity) {
+        if (capacity < 1) {
+            capacity = 1;
+        }
+        keys = new String[capacity];
+        values = new Object[capacity];
+    }
+
+    public HeaderMap(Map<String, ?> map) {
+        this(Math.max(map.size(), DEFAULT_CAPACITY));
+        putAll(map);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the name of the header at the given index, in the order the headers were added
+     */
+    public String getKey(int index) {
+        checkIndex(index);
+        return keys[index];
+    }
+
+    /**
+     * Returns the value of the header at the given index, in the order the headers were added
+     */
+    public Object getValue(int index) {
+        checkIndex(index);
+        return value(index);
+    }
+
+    /**
+     * Returns the index of the given header name or -1 if it is not present
+     */
+    public int indexOf(Object key) {
+        String[] keys = this.keys;
+        for (int i = 0; i < size; i++) {
+            if (keys[i] == key) {
+                return i;
+            }
+        }
+        if (key != null) {
+            for (int i = 0; i < size; i++) {
+                if (key.equals(keys[i])) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    public Object get(Object key) {
+        int index = indexOf(key);
+        return (index >= 0) ? value(index) : null;
+    }
+
+    public Object put(String key, Object value) {
+        int index = indexOf(key);
+        if (index >= 0) {
+            Object answer = value(index);
+            values[index] = value;
+            return answer;
+        }
+        if (size == keys.length) {
+            grow(size * 2);
+        }
+        keys[size] = key;
+        values[size] = value;
+        size++;
+        return null;
+    }
+
+    /**
+     * Adds a header whose value is decoded from the given UTF-8 bytes the first time it is read.
+     * The bytes are not copied so must not be modified afterwards.
+     */
+    public void putRaw(String key, byte[] data, int offset, int length) {
+        int index = indexOf(key);
+        if (index < 0) {
+            if (size == keys.length) {
+                grow(size * 2);
+            }
+            index = size++;
+            keys[index] = key;
+        }
+        if (rawData == null) {
+            rawData = new byte[keys.length][];
+            rawOffsets = new int[keys.length];
+            rawLengths = new int[keys.length];
+        }
+        values[index] = RAW_VALUE;
+        rawData[index] = data;
+        rawOffsets[index] = offset;
+        rawLengths[index] = length;
+    }
+
+    public Object remove(Object key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        Object answer = value(index);
+        removeIndex(index);
+        return answer;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            keys[i] = null;
+            values[i] = null;
+            if (rawData != null) {
+                rawData[i] = null;
+            }
+        }
+        size = 0;
+    }
+
+    public Set<Map.Entry<String, Object>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new EntrySet();
+        }
+        return entrySet;
+    }
+
+    // Implementation methods
+    //-------------------------------------------------------------------------
+    protected Object value(int index) {
+        Object value = values[index];
+        if (value == RAW_VALUE) {
+            try {
+                value = new String(rawData[index], rawOffsets[index], rawLengths[index], "UTF-8");
+            }
+            catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            values[index] = value;
+            rawData[index] = null;
+        }
+        return value;
+    }
+
+    protected void removeIndex(int index) {
+        int moved = size - index - 1;
+        if (moved > 0) {
+            System.arraycopy(keys, index + 1, keys, index, moved);
+            System.arraycopy(values, index + 1, values, index, moved);
+            if (rawData != null) {
+                System.arraycopy(rawData, index + 1, rawData, index, moved);
+                System.arraycopy(rawOffsets, index + 1, rawOffsets, index, moved);
+                System.arraycopy(rawLengths, index + 1, rawLengths, index, moved);
+            }
+        }
+        size--;
+        keys[size] = null;
+        values[size] = null;
+        if (rawData != null) {
+            rawData[size] = null;
+        }
+    }
+
+    private void grow(int capacity) {
+        String[] newKeys = new String[capacity];
+        Object[] newValues = new Object[capacity];
+        System.arraycopy(keys, 0, newKeys, 0, size);
+        System.arraycopy(values, 0, newValues, 0, size);
+        keys = newKeys;
+        values = newValues;
+        if (rawData != null) {
+            byte[][] newRawData = new byte[capacity][];
+            int[] newRawOffsets = new int[capacity];
+            int[] newRawLengths = new int[capacity];
+            System.arraycopy(rawData, 0, newRawData, 0, size);
+            System.arraycopy(rawOffsets, 0, newRawOffsets, 0, size);
+            System.arraycopy(rawLengths, 0, newRawLengths, 0, size);
+            rawData = newRawData;
+            rawOffsets = newRawOffsets;
+            rawLengths = newRawLengths;
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<String, Object>> {
+        public Iterator<Map.Entry<String, Object>> iterator() {
+            return new EntryIterator();
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public void clear() {
+            HeaderMap.this.clear();
+        }
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+        private int next;
+        private int last = -1;
+
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        public Map.Entry<String, Object> next() {
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            last = next++;
+            return new Entry(last);
+        }
+
+        public void remove() {
+            if (last < 0) {
+                throw new IllegalStateException();
+            }
+            removeIndex(last);
+            next = last;
+            last = -1;
+        }
+    }
+
+    private class Entry implements Map.Entry<String, Object> {
+        private final String key;
+        private Object value;
+
+        public Entry(int index) {
+            this.key = keys[index];
+            this.value = value(index);
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public Object getValue() {
+            return value;
+        }
+
+        public Object setValue(Object value) {
+            Object answer = this.value;
+            this.value = value;
+            put(key, value);
+            return answer;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry e = (Map.Entry) o;
+            return (key == null ? e.getKey() == null : key.equals(e.getKey()))
+                    && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+        }
+
+        public int hashCode() {
+            return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+        }
+
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp;
+
+import org.codehaus.stomp.util.TimerWheel;
+
+/**
+ * Tracks when a connection last read and wrote and, driven by a {@link TimerWheel} rather than a timer or socket
+ * timeout of its own, sends a heart-beat when it has not written for the send interval and gives up on the client
+ * when nothing has been read for the receive timeout.
+ * <p/>
+ * The same receive timeout reaps idle connections when the client does not heart-beat at all.
+ * <p/>
+ * Each {@link #start(long, long)} begins a new generation of checks, each of which schedules the next. A check
+ * from an earlier generation which was already running when the deadlines were replaced does not schedule
+ * another, so there is only ever one chain of checks.
+ *
+ * @version $Revision$
+ */
+public abstract class HeartBeatMonitor {
+    private static final long MIN_DELAY = 100;
+    private TimerWheel timer;
+    private volatile long lastRead = System.currentTimeMillis();
+    private volatile long lastWrite = System.currentTimeMillis();
+    private volatile long sendInterval;
+    private volatile long receiveTimeout;
+    private TimerWheel.Timeout timeout;
+    private boolean stopped;
+    private int generation;
+
+    /**
+     * Creates a monitor driven by the {@link TimerWheel#getDefault() shared timer}, which is only started once
+     * a deadline is first scheduled
+     */
+    public HeartBeatMonitor() {
+    }
+
+    public HeartBeatMonitor(TimerWheel timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * Parses the value of a <code>heart-beat</code> header, returning zeros if it is missing or invalid
+     */
+    public static long[] parseHeartBeat(Object value) {
+        long[] answer = new long[2];
+        if (value != null) {
+            String text = value.toString();
+            int comma = text.indexOf(',');
+            if (comma > 0) {
+                try {
+                    answer[0] = Math.max(0, Long.parseLong(text.substring(0, comma).trim()));
+                    answer[1] = Math.max(0, Long.parseLong(text.substring(comma + 1).trim()));
+                }
+                catch (NumberFormatException e) {
+                    answer[0] = 0;
+                    answer[1] = 0;
+                }
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Called by the transport whenever it reads from the client
+     */
+    public void onRead() {
+        lastRead = System.currentTimeMillis();
+    }
+
+    /**
+     * Called by the transport whenever it writes to the client
+     */
+    public void onWrite() {
+        lastWrite = System.currentTimeMillis();
+    }
+
+    /**
+     * Sets the deadlines and starts the checks, replacing any earlier deadlines
+     */
+    public synchronized void start(long sendInterval, long receiveTimeout) {
+        this.sendInterval = sendInterval;
+        this.receiveTimeout = receiveTimeout;
+        generation++;
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+        scheduleNext();
+    }
+
+    public synchronized void stop() {
+        stopped = true;
+        generation++;
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+    }
+
+    public long getSendInterval() {
+        return sendInterval;
+    }
+
+    public long getReceiveTimeout() {
+        return receiveTimeout;
+    }
+
+    public long getLastRead() {
+        return lastRead;
+    }
+
+    public long getLastWrite() {
+        return lastWrite;
+    }
+
+    /**
+     * Checks the deadlines, run by the timer
+     *
+     * @param scheduledGeneration the generation of checks this one belongs to
+     */
+    protected void check(int scheduledGeneration) {
+        synchronized (this) {
+            if (scheduledGeneration != generation) {
+                // the deadlines have been replaced since this check was scheduled
+                return;
+            }
+            timeout = null;
+        }
+        long now = System.currentTimeMillis();
+        if (receiveTimeout > 0 && now - lastRead >= receiveTimeout) {
+            stop();
+            onReadTimeout(now - lastRead);
+            return;
+        }
+        if (sendInterval > 0 && now - lastWrite >= sendInterval) {
+            lastWrite = now;
+            sendHeartBeat();
+        }
+        synchronized (this) {
+            if (scheduledGeneration == generation) {
+                scheduleNext();
+            }
+        }
+    }
+
+    /**
+     * Sends a heart-beat to the client; this runs on the timer thread so must not block
+     */
+    protected abstract void sendHeartBeat();
+
+    /**
+     * Called when the client has been silent for longer than the receive timeout
+     */
+    protected abstract void onReadTimeout(long silence);
+
+    // Implementation methods
+    //-------------------------------------------------------------------------
+    protected void scheduleNext() {
+        if (stopped) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long delay = Long.MAX_VALUE;
+        if (sendInterval > 0) {
+            delay = Math.min(delay, lastWrite + sendInterval - now);
+        }
+        if (receiveTimeout > 0) {
+            delay = Math.min(delay, lastRead + receiveTimeout - now);
+        }
+        if (delay != Long.MAX_VALUE) {
+            if (timer == null) {
+                timer = TimerWheel.getDefault();
+            }
+            final int scheduledGeneration = generation;
+            timeout = timer.schedule(new Runnable() {
+                public void run() {
+                    check(scheduledGeneration);
+                }
+            }, Math.max(delay, MIN_DELAY));
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp;
+
+/**
+ * Implemented by transports which can exchange STOMP 1.1 style heart-beats, which the {@link StompHandler} reading
+ * from the transport negotiates with the client when it connects.
+ *
+ * @version $Revision$
+ */
+public interface HeartBeatSupport {
+
+    /**
+     * Returns the heart-beat the server offers as the two values of the <code>heart-beat</code> header: the
+     * smallest interval in milliseconds it can send at and the interval it would like to receive at, zero meaning
+     * it cannot or does not want to
+     */
+    long[] getHeartBeat();
+
+    /**
+     * Starts heart-beating once negotiated
+     *
+     * @param sendInterval   the interval in milliseconds at which to send when otherwise idle, or zero for none
+     * @param receiveTimeout how long in milliseconds the client may be silent before it is considered dead, or zero
+     *                       for no limit
+     */
+    void startHeartBeat(long sendInterval, long receiveTimeout);
+}
@@ -0,0 +1,189 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp;
+
+import org.codehaus.stomp.util.TokenBucket;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Limits the rate at which a connection may publish with SEND frames, in frames and in bytes of body per second,
+ * both for the connection as a whole and for destinations starting with given prefixes. Each limit is a
+ * {@link TokenBucket} which allows a burst of one second's worth.
+ * <p/>
+ * A frame which exhausts a limit is still processed but the transport then stops reading from the socket until
+ * the limit has recovered, so the client is slowed down by TCP flow control instead of being sent errors. Every
+ * such pause is counted so they can be exposed as metrics of the connection.
+ * <p/>
+ * Not thread safe other than reading the metrics; each connection has its own instance which is only used by its
+ * reader.
+ *
+ * @version $Revision$
+ */
+public class InboundRateLimit {
+    private static final String[] NO_PREFIXES = new String[0];
+    private TokenBucket frames;
+    private TokenBucket bytes;
+    private String destinationRates;
+    private String[] prefixes = NO_PREFIXES;
+    private TokenBucket[] prefixFrames;
+    private TokenBucket[] prefixBytes;
+    private volatile long throttleCount;
+    private volatile long throttledTime;
+
+    /**
+     * Returns true if any limit has been set
+     */
+    public boolean isEnabled() {
+        return frames != null || bytes != null || prefixes.length > 0;
+    }
+
+    /**
+     * Charges a frame which has just been read to the limits which apply to it
+     *
+     * @return how long in milliseconds the transport should stop reading for, zero if no limit has been exhausted
+     */
+    public long onFrame(StompFrame frame) {
+        if (!isEnabled() || frame.getCommand() != StompCommand.SEND) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long size = getBodyLength(frame);
+        long wait = Math.max(take(frames, 1, now), take(bytes, size, now));
+        if (prefixes.length > 0) {
+            Object destination = frame.getHeaders().get(Stomp.Headers.Send.DESTINATION);
+            if (destination != null) {
+                String name = destination.toString();
+                for (int i = 0; i < prefixes.length; i++) {
+                    if (name.startsWith(prefixes[i])) {
+                        wait = Math.max(wait, take(prefixFrames[i], 1, now));
+                        wait = Math.max(wait, take(prefixBytes[i], size, now));
+                    }
+                }
+            }
+        }
+        if (wait == 0) {
+            return 0;
+        }
+        long millis = (wait + 999999) / 1000000;
+        throttleCount++;
+        throttledTime += millis;
+        return millis;
+    }
+
+    // Properties
+    //-------------------------------------------------------------------------
+    public long getFrameRate() {
+        return (frames != null) ? frames.getRate() : 0;
+    }
+
+    /**
+     * Sets the most SEND frames per second the connection may publish, zero or less for no limit
+     */
+    public void setFrameRate(long frameRate) {
+        this.frames = createBucket(frameRate);
+    }
+
+    public long getByteRate() {
+        return (bytes != null) ? bytes.getRate() : 0;
+    }
+
+    /**
+     * Sets the most bytes of SEND bodies per second the connection may publish, zero or less for no limit
+     */
+    public void setByteRate(long byteRate) {
+        this.bytes = createBucket(byteRate);
+    }
+
+    public String getDestinationRates() {
+        return destinationRates;
+    }
+
+    /**
+     * Sets limits for the destinations starting with given prefixes as a comma separated list of
+     * <code>prefix=frames</code> or <code>prefix=frames:bytes</code> entries such as
+     * <code>/queue/bulk.=100:1048576,/topic/=500</code>. A rate of zero leaves that measure unlimited and a
+     * destination is held to the limits of every prefix it starts with.
+     *
+     * @throws IllegalArgumentException if an entry cannot be parsed
+     */
+    public void setDestinationRates(String destinationRates) {
+        List<String> names = new ArrayList<String>();
+        List<TokenBucket> frameBuckets = new ArrayList<TokenBucket>();
+        List<TokenBucket> byteBuckets = new ArrayList<TokenBucket>();
+        if (destinationRates != null) {
+            String[] entries = destinationRates.split(",");
+            for (int i = 0; i < entries.length; i++) {
+                String entry = entries[i].trim();
+                if (entry.length() == 0) {
+                    continue;
+                }
+                int p = entry.lastIndexOf('=');
+                if (p <= 0) {
+                    throw new IllegalArgumentException("Invalid destination rate: " + entry);
+                }
+                String rates = entry.substring(p + 1);
+                int q = rates.indexOf(':');
+                try {
+                    long frameRate = Long.parseLong((q < 0) ? rates.trim() : rates.substring(0, q).trim());
+                    long byteRate = (q < 0) ? 0 : Long.parseLong(rates.substring(q + 1).trim());
+                    names.add(entry.substring(0, p).trim());
+                    frameBuckets.add(createBucket(frameRate));
+                    byteBuckets.add(createBucket(byteRate));
+                }
+                catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid destination rate: " + entry);
+                }
+            }
+        }
+        this.destinationRates = destinationRates;
+        this.prefixes = names.toArray(new String[names.size()]);
+        this.prefixFrames = frameBuckets.toArray(new TokenBucket[frameBuckets.size()]);
+        this.prefixBytes = byteBuckets.toArray(new TokenBucket[byteBuckets.size()]);
+    }
+
+    /**
+     * Returns the number of times reading from the connection has been paused by a limit
+     */
+    public long getThrottleCount() {
+        return throttleCount;
+    }
+
+    /**
+     * Returns the total time in milliseconds reading from the connection has been paused for
+     */
+    public long getThrottledTime() {
+        return throttledTime;
+    }
+
+    // Implementation methods
+    //-------------------------------------------------------------------------
+    protected long take(TokenBucket bucket, long count, long now) {
+        return (bucket != null) ? bucket.take(count, now) : 0;
+    }
+
+    protected long getBodyLength(StompFrame frame) {
+        SpooledContent spooled = frame.getSpooledContent();
+        return (spooled != null) ? spooled.getLength() : frame.getContent().length;
+    }
+
+    private static TokenBucket createBucket(long rate) {
+        return (rate > 0) ? new TokenBucket(rate, rate) : null;
+    }
+}
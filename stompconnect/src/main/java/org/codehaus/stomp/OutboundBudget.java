@@ -0,0 +1,232 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Accounts for the bytes of the frames queued to be written to a connection. Once the queue grows past the
+ * high watermark the connection applies its {@link SlowConsumerPolicy}; senders which block are woken when it
+ * has drained down to the low watermark. A high watermark of zero or less disables the limit.
+ * <p/>
+ * The counters are kept so they can be exposed as metrics of the connection.
+ *
+ * @version $Revision$
+ */
+public class OutboundBudget {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition drained = lock.newCondition();
+    private long highWatermark = 1024 * 1024;
+    private long lowWatermark = 512 * 1024;
+    private SlowConsumerPolicy policy = SlowConsumerPolicy.BLOCK;
+    private long queuedBytes;
+    private long peakQueuedBytes;
+    private long droppedFrames;
+    private long droppedBytes;
+    private boolean closed;
+
+    /**
+     * Adds the size of a frame if that keeps the queue within the high watermark. An empty queue always
+     * accepts a frame so that a frame larger than the watermark can still be sent.
+     *
+     * @return false if the frame would take the queue past the high watermark
+     */
+    public boolean tryReserve(int size) {
+        lock.lock();
+        try {
+            if (highWatermark > 0 && queuedBytes > 0 && queuedBytes + size > highWatermark) {
+                return false;
+            }
+            add(size);
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the size of a frame, first waiting for the queue to drain to the low watermark if it is over the
+     * high watermark
+     *
+     * @throws IOException if the connection is closed while waiting
+     */
+    public void reserve(int size) throws IOException {
+        lock.lock();
+        try {
+            if (highWatermark > 0 && queuedBytes > 0 && queuedBytes + size > highWatermark) {
+                while (!closed && queuedBytes > lowWatermark) {
+                    try {
+                        drained.await(1, TimeUnit.SECONDS);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for a slow consumer");
+                    }
+                }
+            }
+            if (closed) {
+                throw new IOException("The transport is not running.");
+            }
+            add(size);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the size of a frame regardless of the watermarks, for threads which must never block
+     */
+    public void forceReserve(int size) {
+        lock.lock();
+        try {
+            add(size);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the size of a frame which has been written or discarded
+     */
+    public void release(int size) {
+        lock.lock();
+        try {
+            queuedBytes -= size;
+            if (queuedBytes <= lowWatermark) {
+                drained.signalAll();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records a frame discarded by the {@link SlowConsumerPolicy#DROP_OLDEST} policy
+     */
+    public void dropped(int size) {
+        lock.lock();
+        try {
+            droppedFrames++;
+            droppedBytes += size;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes any blocked senders as the connection is closing
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            drained.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // Properties
+    //-------------------------------------------------------------------------
+    public long getHighWatermark() {
+        return highWatermark;
+    }
+
+    public void setHighWatermark(long highWatermark) {
+        this.highWatermark = highWatermark;
+    }
+
+    public long getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public void setLowWatermark(long lowWatermark) {
+        this.lowWatermark = lowWatermark;
+    }
+
+    public SlowConsumerPolicy getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(SlowConsumerPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Returns the number of bytes currently queued to be written
+     */
+    public long getQueuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the largest number of bytes which have been queued at once
+     */
+    public long getPeakQueuedBytes() {
+        lock.lock();
+        try {
+            return peakQueuedBytes;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedFrames() {
+        lock.lock();
+        try {
+            return droppedFrames;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedBytes() {
+        lock.lock();
+        try {
+            return droppedBytes;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void add(int size) {
+        queuedBytes += size;
+        if (queuedBytes > peakQueuedBytes) {
+            peakQueuedBytes = queuedBytes;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp;
+
+/**
+ * What a connection does when a client reads more slowly than frames are sent to it and its queue of outgoing
+ * frames reaches the high watermark of its {@link OutboundBudget}
+ *
+ * @version $Revision$
+ */
+public enum SlowConsumerPolicy {
+    /**
+     * The sending thread waits until the queue has drained down to the low watermark
+     */
+    BLOCK,
+    /**
+     * The oldest queued non-persistent messages are discarded to make room; if there are none the sender blocks
+     */
+    DROP_OLDEST,
+    /**
+     * The connection is closed
+     */
+    DISCONNECT;
+
+    /**
+     * Parses a policy name ignoring case, so that <code>drop-oldest</code> may be used in a URI
+     */
+    public static SlowConsumerPolicy parse(String text) {
+        return valueOf(text.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The body of a large frame which has been spooled to a temporary file rather than held on the heap.
+ * The file is deleted by {@link #delete()}, which {@link StompFrame#release()} calls.
+ *
+ * @version $Revision$
+ */
+public class SpooledContent {
+    private final File file;
+    private OutputStream out;
+    private long length;
+
+    public SpooledContent(File directory) throws IOException {
+        this.file = File.createTempFile("stomp-", ".body", directory);
+        this.out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+    }
+
+    public void write(byte[] data, int offset, int count) throws IOException {
+        if (out == null) {
+            throw new IOException("The spooled content has already been closed: " + file);
+        }
+        out.write(data, offset, count);
+        length += count;
+    }
+
+    /**
+     * Completes writing the content
+     */
+    public void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Opens a stream to read the content back from the start
+     */
+    public InputStream openStream() throws IOException {
+        close();
+        return new FileInputStream(file);
+    }
+
+    /**
+     * Reads all the content into memory; for callers which cannot process it as a stream
+     */
+    public byte[] toByteArray() throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) length);
+        InputStream in = openStream();
+        try {
+            byte[] chunk = new byte[8192];
+            int count;
+            while ((count = in.read(chunk)) > 0) {
+                buffer.write(chunk, 0, count);
+            }
+        }
+        finally {
+            in.close();
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Discards the content deleting the temporary file
+     */
+    public void delete() {
+        try {
+            close();
+        }
+        catch (IOException e) {
+            // ignore as we are discarding it anyway
+        }
+        file.delete();
+    }
+
+    public String toString() {
+        return "SpooledContent[" + file + " length: " + length + "]";
+    }
+}
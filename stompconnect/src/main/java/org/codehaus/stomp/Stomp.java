@@ -106,6 +106,7 @@ public interface Stomp {
             String PASSCODE = "passcode";
             String CLIENT_ID = "client-id";
             String REQUEST_ID = "request-id";
+            String HEART_BEAT = "heart-beat";
         }
 
         public interface Error {
@@ -115,6 +116,7 @@ public interface Stomp {
         public interface Connected {
             String SESSION = "session";
             String RESPONSE_ID = "response-id";
+            String HEART_BEAT = "heart-beat";
         }
 
         public interface Ack {
@@ -0,0 +1,96 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The STOMP commands, resolved once when a frame is decoded so that the frame can be dispatched with a switch
+ * rather than by comparing strings.
+ *
+ * @version $Revision$
+ */
+public enum StompCommand {
+    CONNECT(Stomp.Commands.CONNECT),
+    SEND(Stomp.Commands.SEND),
+    SUBSCRIBE(Stomp.Commands.SUBSCRIBE, "SUBSCRIBE"),
+    UNSUBSCRIBE(Stomp.Commands.UNSUBSCRIBE, "UNSUBSCRIBE"),
+    BEGIN(Stomp.Commands.BEGIN),
+    COMMIT(Stomp.Commands.COMMIT),
+    ABORT(Stomp.Commands.ABORT),
+    ACK(Stomp.Commands.ACK),
+    DISCONNECT(Stomp.Commands.DISCONNECT),
+    CONNECTED(Stomp.Responses.CONNECTED),
+    MESSAGE(Stomp.Responses.MESSAGE),
+    RECEIPT(Stomp.Responses.RECEIPT),
+    ERROR(Stomp.Responses.ERROR),
+    UNKNOWN();
+
+    private static final Map<String, StompCommand> COMMANDS = new HashMap<String, StompCommand>();
+
+    /**
+     * The order in which older releases matched the command prefixes
+     */
+    private static final StompCommand[] PREFIX_ORDER = {SEND, ACK, BEGIN, COMMIT, ABORT, SUBSCRIBE, UNSUBSCRIBE, CONNECT, DISCONNECT};
+
+    static {
+        StompCommand[] commands = values();
+        for (int i = 0; i < commands.length; i++) {
+            String[] names = commands[i].names;
+            for (int j = 0; j < names.length; j++) {
+                COMMANDS.put(names[j], commands[i]);
+            }
+        }
+    }
+
+    private final String[] names;
+
+    private StompCommand(String... names) {
+        this.names = names;
+    }
+
+    /**
+     * Returns the names this command may be sent as
+     */
+    public String[] getNames() {
+        return names.clone();
+    }
+
+    /**
+     * Resolves the action of a frame. Actions which do not exactly match a command are matched by
+     * prefix as older releases did, so that frames such as BEGIN_TRANSACTION keep working.
+     *
+     * @return the command or {@link #UNKNOWN}
+     */
+    public static StompCommand resolve(String action) {
+        if (action == null) {
+            return UNKNOWN;
+        }
+        StompCommand answer = COMMANDS.get(action);
+        if (answer != null) {
+            return answer;
+        }
+        for (int i = 0; i < PREFIX_ORDER.length; i++) {
+            if (action.startsWith(PREFIX_ORDER[i].names[0])) {
+                return PREFIX_ORDER[i];
+            }
+        }
+        return UNKNOWN;
+    }
+}
@@ -17,22 +17,30 @@
  */
 package org.codehaus.stomp;
 
-import java.util.HashMap;
+import java.io.IOException;
 import java.util.Map;
 
 /**
  * Represents all the data in a STOMP frame.
+ * <p/>
+ * Frames obtained from {@link StompFramePool#acquire()} should be handed back with {@link #release()} once
+ * they have been marshalled or converted; after that they must not be used again.
  *
  * @author <a href="http://hiramchirino.com">chirino</a>
  */
 public class StompFrame {
     private static final byte[] NO_DATA = new byte[]{};
     private String action;
+    private StompCommand command;
     private Map<String, Object> headers;
     private byte[] content = StompFrame.NO_DATA;
+    private SpooledContent spooledContent;
+    private boolean droppable;
+    private boolean pooled;
+    private boolean released;
 
     public StompFrame() {
-        this.headers = new HashMap<String, Object>();
+        this.headers = new HeaderMap();
     }
 
     public StompFrame(String command, Map<String, Object> headers, byte[] data) {
@@ -47,14 +55,69 @@ public class StompFrame {
 
     public void setAction(String command) {
         this.action = command;
+        this.command = null;
     }
 
+    /**
+     * Returns the command of this frame, resolved from the action
+     */
+    public StompCommand getCommand() {
+        if (command == null) {
+            command = StompCommand.resolve(action);
+        }
+        return command;
+    }
+
+    public void setCommand(StompCommand command) {
+        this.command = command;
+    }
+
+    /**
+     * Returns the body of the frame. If the body has been spooled to disk it is read back into memory,
+     * so callers able to process large bodies as a stream should use {@link #getSpooledContent()} first.
+     */
     public byte[] getContent() {
+        if (spooledContent != null) {
+            try {
+                content = spooledContent.toByteArray();
+            }
+            catch (IOException e) {
+                throw new IllegalStateException("Could not read spooled content " + spooledContent + ". Reason: " + e, e);
+            }
+            spooledContent.delete();
+            spooledContent = null;
+        }
         return content;
     }
 
     public void setContent(byte[] data) {
         this.content = data;
+        discardSpooledContent();
+    }
+
+    /**
+     * Returns the body of the frame if it was too large to be held in memory, otherwise null
+     */
+    public SpooledContent getSpooledContent() {
+        return spooledContent;
+    }
+
+    public void setSpooledContent(SpooledContent spooledContent) {
+        discardSpooledContent();
+        this.spooledContent = spooledContent;
+        this.content = StompFrame.NO_DATA;
+    }
+
+    /**
+     * Returns true if the frame may be discarded rather than sent to a slow consumer, see
+     * {@link SlowConsumerPolicy#DROP_OLDEST}. This is not part of the frame which is sent.
+     */
+    public boolean isDroppable() {
+        return droppable;
+    }
+
+    public void setDroppable(boolean droppable) {
+        this.droppable = droppable;
     }
 
     public Map<String, Object> getHeaders() {
@@ -64,4 +127,49 @@ public class StompFrame {
     public void setHeaders(Map<String, Object> headers) {
         this.headers = headers;
     }
+
+    /**
+     * Returns this frame to the pool it was acquired from and deletes any spooled content. Other than that
+     * this does nothing for frames which were not acquired from a {@link StompFramePool}.
+     *
+     * @throws IllegalStateException if the frame has already been released and leak detection is enabled
+     */
+    public void release() {
+        discardSpooledContent();
+        if (pooled) {
+            if (released) {
+                if (StompFramePool.isLeakDetection()) {
+                    throw new IllegalStateException("The frame has already been released: " + action);
+                }
+                return;
+            }
+            released = true;
+            StompFramePool.release(this);
+        }
+    }
+
+    void onAcquire() {
+        pooled = true;
+        released = false;
+    }
+
+    protected void discardSpooledContent() {
+        if (spooledContent != null) {
+            spooledContent.delete();
+            spooledContent = null;
+        }
+    }
+
+    void recycle() {
+        action = null;
+        command = null;
+        content = StompFrame.NO_DATA;
+        droppable = false;
+        if (headers instanceof HeaderMap) {
+            headers.clear();
+        }
+        else {
+            headers = new HeaderMap();
+        }
+    }
 }
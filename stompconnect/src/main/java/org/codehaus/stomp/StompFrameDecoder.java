@@ -0,0 +1,478 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp;
+
+import java.io.DataInput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A resumable decoder of <a href="http://stomp.codehaus.org/">Stomp</a> frames which works over
+ * whole buffers of data at a time. Frames may arrive split across any number of reads; the partial
+ * state is kept in the decoder until the rest of the frame turns up.
+ * <p/>
+ * Bodies larger than the {@link #setSpoolThreshold(int) spool threshold} are written to a temporary file
+ * as they arrive rather than being held on the heap, and are made available as
+ * {@link StompFrame#getSpooledContent()}.
+ * <p/>
+ * A decoder is not thread safe; use one per connection.
+ *
+ * @version $Revision$
+ */
+public class StompFrameDecoder {
+    private static final byte[] NO_DATA = new byte[]{};
+    private static final int MAX_COMMAND_LENGTH = 1024;
+    private static final int MAX_HEADER_LENGTH = 1024 * 10;
+    private static final int MAX_HEADERS = 1000;
+    private static final int MAX_DATA_LENGTH = 1024 * 1024 * 100;
+
+    private static final int MIN_WORD_SCAN = 16;
+    private static final long LOW_BITS = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private static final int READ_COMMAND = 0;
+    private static final int READ_HEADERS = 1;
+    private static final int READ_FIXED_BODY = 2;
+    private static final int READ_FIXED_BODY_END = 3;
+    private static final int READ_BODY = 4;
+
+    private int state = READ_COMMAND;
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private StompFrame current;
+    private HeaderMap headers;
+    private byte[] headerData;
+    private int headerDataLength;
+    private byte[] content = NO_DATA;
+    private int contentLength;
+    private int expectedLength;
+    private SpooledContent spool;
+    private int spoolThreshold;
+    private File spoolDirectory;
+    private StompFrame frame;
+    private byte[] scratch;
+    private final byte[] single = new byte[1];
+    private ByteBuffer words;
+
+    /**
+     * Decodes the next frame from the given buffer. Only the bytes up to the end of the frame are
+     * consumed, so any data for following frames is left in the buffer.
+     *
+     * @return the decoded frame or null if the buffer did not contain a complete frame, in which case all
+     *         the remaining data in the buffer has been consumed
+     */
+    public StompFrame decode(ByteBuffer buffer) throws IOException {
+        try {
+            if (buffer.hasArray()) {
+                int start = buffer.arrayOffset() + buffer.position();
+                int end = process(buffer.array(), start, start + buffer.remaining());
+                buffer.position(buffer.position() + (end - start));
+            }
+            else {
+                byte[] scratch = getScratch();
+                while (frame == null && buffer.hasRemaining()) {
+                    int position = buffer.position();
+                    int length = Math.min(buffer.remaining(), scratch.length);
+                    buffer.get(scratch, 0, length);
+                    buffer.position(position + process(scratch, 0, length));
+                }
+            }
+        }
+        catch (IOException e) {
+            // we cannot tell where the broken frame ends so lets discard what we have
+            buffer.position(buffer.limit());
+            reset();
+            throw e;
+        }
+        return takeFrame();
+    }
+
+    /**
+     * Decodes a complete frame from the given input, blocking until it has been read
+     */
+    public StompFrame decode(DataInput in) throws IOException {
+        try {
+            while (frame == null) {
+                if (state == READ_FIXED_BODY && spool == null) {
+                    in.readFully(content, contentLength, expectedLength - contentLength);
+                    contentLength = expectedLength;
+                    state = READ_FIXED_BODY_END;
+                }
+                else if (state == READ_FIXED_BODY) {
+                    byte[] chunk = getScratch();
+                    int length = Math.min(chunk.length, expectedLength - contentLength);
+                    in.readFully(chunk, 0, length);
+                    process(chunk, 0, length);
+                }
+                else {
+                    single[0] = in.readByte();
+                    process(single, 0, 1);
+                }
+            }
+        }
+        catch (IOException e) {
+            reset();
+            throw e;
+        }
+        return takeFrame();
+    }
+
+    /**
+     * Discards any partially decoded frame
+     */
+    public void reset() {
+        state = READ_COMMAND;
+        lineLength = 0;
+        if (current != null) {
+            current.release();
+            current = null;
+        }
+        headers = null;
+        headerData = null;
+        headerDataLength = 0;
+        content = NO_DATA;
+        contentLength = 0;
+        expectedLength = 0;
+        if (spool != null) {
+            spool.delete();
+            spool = null;
+        }
+        frame = null;
+    }
+
+    /**
+     * Returns true if part of a frame has been decoded, so more data is expected before the next frame is complete
+     */
+    public boolean hasPartialFrame() {
+        return state != READ_COMMAND || lineLength > 0;
+    }
+
+    public int getSpoolThreshold() {
+        return spoolThreshold;
+    }
+
+    /**
+     * Sets the size in bytes above which a body is spooled to a temporary file rather than held in memory.
+     * Zero, the default, disables spooling.
+     */
+    public void setSpoolThreshold(int spoolThreshold) {
+        this.spoolThreshold = spoolThreshold;
+    }
+
+    public File getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    /**
+     * Sets the directory spooled bodies are written to, the default being the temporary directory of the JVM
+     */
+    public void setSpoolDirectory(File spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    // Implementation methods
+    //-------------------------------------------------------------------------
+
+    /**
+     * Processes the data between the offset and end until a frame is complete or the data runs out
+     *
+     * @return the offset of the first byte which was not consumed
+     */
+    protected int process(byte[] data, int offset, int end) throws IOException {
+        while (offset < end && frame == null) {
+            switch (state) {
+                case READ_COMMAND:
+                case READ_HEADERS: {
+                    int eol = scan(data, offset, end, (byte) '\n');
+                    if (eol < 0) {
+                        appendLine(data, offset, end);
+                        return end;
+                    }
+                    if (lineLength == 0) {
+                        checkLineLength(eol - offset);
+                        onLine(data, offset, eol);
+                    }
+                    else {
+                        appendLine(data, offset, eol);
+                        onLine(line, 0, lineLength);
+                        lineLength = 0;
+                    }
+                    offset = eol + 1;
+                    break;
+                }
+                case READ_FIXED_BODY: {
+                    int length = Math.min(end - offset, expectedLength - contentLength);
+                    if (spool != null) {
+                        spool.write(data, offset, length);
+                    }
+                    else {
+                        System.arraycopy(data, offset, content, contentLength, length);
+                    }
+                    contentLength += length;
+                    offset += length;
+                    if (contentLength == expectedLength) {
+                        state = READ_FIXED_BODY_END;
+                    }
+                    break;
+                }
+                case READ_FIXED_BODY_END: {
+                    if (data[offset++] != 0) {
+                        throw new ProtocolException(Stomp.Headers.CONTENT_LENGTH + " bytes were read and " + "there was no trailing null byte", true);
+                    }
+                    completeFrame();
+                    break;
+                }
+                default: {
+                    int nul = scan(data, offset, end, (byte) 0);
+                    if (nul < 0) {
+                        appendContent(data, offset, end);
+                        return end;
+                    }
+                    appendContent(data, offset, nul);
+                    offset = nul + 1;
+                    completeFrame();
+                }
+            }
+        }
+        return offset;
+    }
+
+    protected void onLine(byte[] data, int start, int end) throws IOException {
+        // trim the line
+        while (start < end && (data[start] & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (data[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+
+        if (state == READ_COMMAND) {
+            // skip white space to next real action line
+            if (start < end) {
+                String action = StompNames.lookupCommand(data, start, end - start);
+                if (action == null) {
+                    action = new String(data, start, end - start, "UTF-8");
+                }
+                current = StompFramePool.acquire();
+                current.setAction(action);
+                current.setCommand(StompCommand.resolve(action));
+                headers = (HeaderMap) current.getHeaders();
+                state = READ_HEADERS;
+            }
+        }
+        else if (start < end) {
+            if (headers.size() > MAX_HEADERS) {
+                throw new ProtocolException("The maximum number of headers was exceeded", true);
+            }
+            int seperator = indexOf(data, start, end, (byte) ':');
+            if (seperator < 0) {
+                throw new ProtocolException("Unable to parser header line [" + new String(data, start, end - start, "UTF-8") + "]", true);
+            }
+            int nameEnd = seperator;
+            while (nameEnd > start && (data[nameEnd - 1] & 0xff) <= ' ') {
+                nameEnd--;
+            }
+            int valueStart = seperator + 1;
+            while (valueStart < end && (data[valueStart] & 0xff) <= ' ') {
+                valueStart++;
+            }
+            String name = StompNames.lookupHeaderName(data, start, nameEnd - start);
+            if (name == null) {
+                name = new String(data, start, nameEnd - start, "UTF-8");
+            }
+            putHeader(name, data, valueStart, end - valueStart);
+        }
+        else {
+            startBody();
+        }
+    }
+
+    /**
+     * Adds the header keeping its value as raw bytes, which are only decoded if the header is read
+     */
+    protected void putHeader(String name, byte[] data, int offset, int length) {
+        if (headerData == null || headerDataLength + length > headerData.length) {
+            // earlier headers keep referring to the old array so we never copy it
+            headerData = new byte[Math.max(256, length * 2)];
+            headerDataLength = 0;
+        }
+        System.arraycopy(data, offset, headerData, headerDataLength, length);
+        headers.putRaw(name, headerData, headerDataLength, length);
+        headerDataLength += length;
+    }
+
+    protected void startBody() throws IOException {
+        String contentLengthText = (String) headers.get(Stomp.Headers.CONTENT_LENGTH);
+        if (contentLengthText != null) {
+
+            // Bless the client, he's telling us how much data to read in.
+            int length;
+            try {
+                length = Integer.parseInt(contentLengthText.trim());
+            }
+            catch (NumberFormatException e) {
+                throw new ProtocolException("Specified content-length is not a valid integer", true);
+            }
+
+            if (length > MAX_DATA_LENGTH) {
+                throw new ProtocolException("The maximum data length was exceeded", true);
+            }
+            if (length < 0) {
+                throw new ProtocolException("Specified content-length is negative", true);
+            }
+
+            if (spoolThreshold > 0 && length > spoolThreshold) {
+                spool = new SpooledContent(spoolDirectory);
+                content = NO_DATA;
+            }
+            else {
+                content = (length == 0) ? NO_DATA : new byte[length];
+            }
+            contentLength = 0;
+            expectedLength = length;
+            state = (length == 0) ? READ_FIXED_BODY_END : READ_FIXED_BODY;
+        }
+        else {
+            // We don't know how much to read.. data ends when we hit a 0
+            content = NO_DATA;
+            contentLength = 0;
+            state = READ_BODY;
+        }
+    }
+
+    protected void completeFrame() throws IOException {
+        StompFrame answer = current;
+        if (spool != null) {
+            spool.close();
+            answer.setSpooledContent(spool);
+            spool = null;
+        }
+        else {
+            byte[] data = content;
+            if (state == READ_BODY && contentLength != data.length) {
+                data = new byte[contentLength];
+                System.arraycopy(content, 0, data, 0, contentLength);
+            }
+            answer.setContent(data);
+        }
+        current = null;
+        reset();
+        frame = answer;
+    }
+
+    protected StompFrame takeFrame() {
+        StompFrame answer = frame;
+        frame = null;
+        return answer;
+    }
+
+    private void appendLine(byte[] data, int start, int end) throws ProtocolException {
+        int length = end - start;
+        checkLineLength(lineLength + length);
+        if (lineLength + length > line.length) {
+            byte[] newLine = new byte[Math.max(line.length * 2, lineLength + length)];
+            System.arraycopy(line, 0, newLine, 0, lineLength);
+            line = newLine;
+        }
+        System.arraycopy(data, start, line, lineLength, length);
+        lineLength += length;
+    }
+
+    private void checkLineLength(int length) throws ProtocolException {
+        if (state == READ_COMMAND) {
+            if (length > MAX_COMMAND_LENGTH) {
+                throw new ProtocolException("The maximum command length was exceeded", true);
+            }
+        }
+        else if (length > MAX_HEADER_LENGTH) {
+            throw new ProtocolException("The maximum header length was exceeded", true);
+        }
+    }
+
+    private void appendContent(byte[] data, int start, int end) throws IOException {
+        int length = end - start;
+        if (length == 0) {
+            return;
+        }
+        if (contentLength + length > MAX_DATA_LENGTH) {
+            throw new ProtocolException("The maximum data length was exceeded", true);
+        }
+        if (spool == null && spoolThreshold > 0 && contentLength + length > spoolThreshold) {
+            // move what we have so far to disk
+            spool = new SpooledContent(spoolDirectory);
+            spool.write(content, 0, contentLength);
+            content = NO_DATA;
+        }
+        if (spool != null) {
+            spool.write(data, start, length);
+            contentLength += length;
+            return;
+        }
+        if (contentLength + length > content.length) {
+            byte[] newContent = new byte[Math.max(Math.max(content.length * 2, 1024), contentLength + length)];
+            System.arraycopy(content, 0, newContent, 0, contentLength);
+            content = newContent;
+        }
+        System.arraycopy(data, start, content, contentLength, length);
+        contentLength += length;
+    }
+
+    private byte[] getScratch() {
+        if (scratch == null) {
+            scratch = new byte[8192];
+        }
+        return scratch;
+    }
+
+    /**
+     * Returns the index of the first occurrence of the value or -1. Longer ranges are searched a long word at
+     * a time, testing all 8 bytes for the value with a few arithmetic operations rather than 8 comparisons.
+     */
+    int scan(byte[] data, int start, int end, byte value) {
+        if (end - start < MIN_WORD_SCAN) {
+            return indexOf(data, start, end, value);
+        }
+        ByteBuffer words = this.words;
+        if (words == null || words.array() != data) {
+            words = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+            this.words = words;
+        }
+        long pattern = LOW_BITS * (value & 0xff);
+        int i = start;
+        for (int last = end - 8; i <= last; i += 8) {
+            long word = words.getLong(i) ^ pattern;
+            long found = (word - LOW_BITS) & ~word & HIGH_BITS;
+            if (found != 0) {
+                // the lowest flagged byte is always a real match, only the bytes above it can be false positives
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+        return indexOf(data, i, end, value);
+    }
+
+    private static int indexOf(byte[] data, int start, int end, byte value) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,247 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Encodes <a href="http://stomp.codehaus.org/">Stomp</a> frames directly into a caller supplied
+ * {@link ByteBuffer} without building any intermediate strings. A byte array can be used as the
+ * sink by wrapping it with {@link ByteBuffer#wrap(byte[])}.
+ * <p/>
+ * The commands and header names defined in {@link Stomp} are written from pre-encoded byte arrays
+ * and other ASCII text is written a character at a time; only non ASCII text goes through the
+ * full UTF-8 encoding.
+ * <p/>
+ * An encoder has no state so may be shared between threads.
+ *
+ * @version $Revision$
+ */
+public class StompFrameEncoder {
+    private static final byte[] END_OF_FRAME = new byte[]{0, '\n'};
+    private static final Map<String, byte[]> COMMANDS = new HashMap<String, byte[]>();
+    private static final Map<String, byte[]> HEADER_NAMES = new HashMap<String, byte[]>();
+
+    static {
+        addConstants(StompNames.getCommands(), COMMANDS, '\n');
+        addConstants(StompNames.getHeaderNames(), HEADER_NAMES, ':');
+    }
+
+    /**
+     * Encodes the complete frame into the buffer
+     *
+     * @throws java.nio.BufferOverflowException if the buffer is too small, see {@link #getMaxEncodedLength(StompFrame)}
+     */
+    public void encode(StompFrame frame, ByteBuffer buffer) {
+        encodeHeaders(frame, buffer);
+        buffer.put(frame.getContent());
+        buffer.put(END_OF_FRAME);
+    }
+
+    /**
+     * Encodes the command and headers of the frame along with the blank line which separates them from the content.
+     * The caller is then responsible for writing the content and the trailing null byte.
+     *
+     * @throws java.nio.BufferOverflowException if the buffer is too small, see {@link #getMaxHeadersLength(StompFrame)}
+     */
+    public void encodeHeaders(StompFrame frame, ByteBuffer buffer) {
+        String action = frame.getAction();
+        byte[] encoded = COMMANDS.get(action);
+        if (encoded != null) {
+            buffer.put(encoded);
+        }
+        else {
+            putString(action, buffer);
+            buffer.put((byte) '\n');
+        }
+
+        Map<String, Object> headers = frame.getHeaders();
+        if (headers instanceof HeaderMap) {
+            HeaderMap map = (HeaderMap) headers;
+            for (int i = 0, size = map.size(); i < size; i++) {
+                putHeader(map.getKey(i), map.getValue(i), buffer);
+            }
+        }
+        else {
+            for (Iterator<Map.Entry<String, Object>> iter = headers.entrySet().iterator(); iter.hasNext();) {
+                Map.Entry<String, Object> entry = iter.next();
+                putHeader(entry.getKey(), entry.getValue(), buffer);
+            }
+        }
+
+        // Add a newline to seperate the headers from the content.
+        buffer.put((byte) '\n');
+    }
+
+    /**
+     * Returns the maximum number of bytes {@link #encode(StompFrame, ByteBuffer)} will write for the frame
+     */
+    public int getMaxEncodedLength(StompFrame frame) {
+        return getMaxHeadersLength(frame) + frame.getContent().length + END_OF_FRAME.length;
+    }
+
+    /**
+     * Returns the exact number of bytes {@link #encode(StompFrame, ByteBuffer)} will write for the frame, for when
+     * the length must be known up front. This walks all the text of the frame so costs more than
+     * {@link #getMaxEncodedLength(StompFrame)}.
+     */
+    public int getEncodedLength(StompFrame frame) {
+        int answer = getStringLength(frame.getAction()) + 2 + frame.getContent().length + END_OF_FRAME.length;
+        Map<String, Object> headers = frame.getHeaders();
+        if (headers instanceof HeaderMap) {
+            HeaderMap map = (HeaderMap) headers;
+            for (int i = 0, size = map.size(); i < size; i++) {
+                answer += getStringLength(map.getKey(i)) + getStringLength(String.valueOf(map.getValue(i))) + 2;
+            }
+        }
+        else {
+            for (Iterator<Map.Entry<String, Object>> iter = headers.entrySet().iterator(); iter.hasNext();) {
+                Map.Entry<String, Object> entry = iter.next();
+                answer += getStringLength(entry.getKey()) + getStringLength(String.valueOf(entry.getValue())) + 2;
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Returns the maximum number of bytes {@link #encodeHeaders(StompFrame, ByteBuffer)} will write for the frame
+     */
+    public int getMaxHeadersLength(StompFrame frame) {
+        // no UTF-16 char takes more than 3 bytes in UTF-8
+        int answer = frame.getAction().length() * 3 + 2;
+        Map<String, Object> headers = frame.getHeaders();
+        if (headers instanceof HeaderMap) {
+            HeaderMap map = (HeaderMap) headers;
+            for (int i = 0, size = map.size(); i < size; i++) {
+                answer += getMaxHeaderLength(map.getKey(i), map.getValue(i));
+            }
+        }
+        else {
+            for (Iterator<Map.Entry<String, Object>> iter = headers.entrySet().iterator(); iter.hasNext();) {
+                Map.Entry<String, Object> entry = iter.next();
+                answer += getMaxHeaderLength(entry.getKey(), entry.getValue());
+            }
+        }
+        return answer;
+    }
+
+    // Implementation methods
+    //-------------------------------------------------------------------------
+    protected void putHeader(String name, Object value, ByteBuffer buffer) {
+        byte[] encoded = HEADER_NAMES.get(name);
+        if (encoded != null) {
+            buffer.put(encoded);
+        }
+        else {
+            putString(name, buffer);
+            buffer.put((byte) ':');
+        }
+        putString(String.valueOf(value), buffer);
+        buffer.put((byte) '\n');
+    }
+
+    protected int getMaxHeaderLength(String name, Object value) {
+        int valueLength = (value instanceof String) ? ((String) value).length() : String.valueOf(value).length();
+        return (name.length() + valueLength) * 3 + 2;
+    }
+
+    protected void putString(String text, ByteBuffer buffer) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            }
+            else {
+                putUtf8(text, i, buffer);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes {@link #putString(String, ByteBuffer)} writes for the text
+     */
+    protected int getStringLength(String text) {
+        int length = text.length();
+        int answer = length;
+        for (int i = 0; i < length; i++) {
+            int c = text.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            else if (c < 0x800) {
+                answer += 1;
+            }
+            else if (Character.isHighSurrogate((char) c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                // four bytes for the pair of chars
+                answer += 2;
+                i++;
+            }
+            else if (!Character.isHighSurrogate((char) c) && !Character.isLowSurrogate((char) c)) {
+                answer += 2;
+            }
+        }
+        return answer;
+    }
+
+    protected void putUtf8(String text, int offset, ByteBuffer buffer) {
+        int length = text.length();
+        for (int i = offset; i < length; i++) {
+            int c = text.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            }
+            else if (c < 0x800) {
+                buffer.put((byte) (0xc0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            }
+            else if (Character.isHighSurrogate((char) c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint((char) c, text.charAt(++i));
+                buffer.put((byte) (0xf0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3f)));
+            }
+            else if (Character.isHighSurrogate((char) c) || Character.isLowSurrogate((char) c)) {
+                // unpaired surrogate so lets do the same as String.getBytes()
+                buffer.put((byte) '?');
+            }
+            else {
+                buffer.put((byte) (0xe0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    private static void addConstants(String[] names, Map<String, byte[]> map, char terminator) {
+        for (int i = 0; i < names.length; i++) {
+            String text = names[i];
+            byte[] encoded = new byte[text.length() + 1];
+            for (int j = 0; j < text.length(); j++) {
+                encoded[j] = (byte) text.charAt(j);
+            }
+            encoded[text.length()] = (byte) terminator;
+            map.put(text, encoded);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An optional pool of {@link StompFrame} instances, together with their {@link HeaderMap}s, so that busy
+ * connections do not allocate a new frame for every message. Each thread keeps its own small free list so no
+ * locking is required in the common case. Frames are often released on another thread than they were acquired
+ * on, such as outbound frames which are created on a JMS listener thread and released by the writer, so once a
+ * thread's list is full the frames it releases go to a bounded free list shared by all threads, which a thread
+ * with an empty list of its own acquires from.
+ * <p/>
+ * Pooling is disabled by default and can be enabled with {@link #setEnabled(boolean)} or the
+ * <code>org.codehaus.stomp.framePool</code> system property. When it is disabled {@link #acquire()}
+ * just creates a new frame and {@link StompFrame#release()} does nothing.
+ * <p/>
+ * In leak detection mode, enabled with {@link #setLeakDetection(boolean)} or the
+ * <code>org.codehaus.stomp.framePool.leakDetection</code> system property, every acquired frame is tracked
+ * until it is released, along with the stack trace of where it was acquired, and releasing a frame twice
+ * throws an exception. This is intended for tests.
+ *
+ * @version $Revision$
+ */
+public final class StompFramePool {
+    private static final int MAX_FREE_FRAMES_PER_THREAD = 64;
+    private static final int MAX_SHARED_FREE_FRAMES = 1024;
+    private static volatile boolean enabled = Boolean.getBoolean("org.codehaus.stomp.framePool");
+    private static volatile boolean leakDetection = Boolean.getBoolean("org.codehaus.stomp.framePool.leakDetection");
+    private static final Map<StompFrame, Throwable> outstanding = new IdentityHashMap<StompFrame, Throwable>();
+    private static final ThreadLocal<List<StompFrame>> freeFrames = new ThreadLocal<List<StompFrame>>() {
+        protected List<StompFrame> initialValue() {
+            return new ArrayList<StompFrame>(MAX_FREE_FRAMES_PER_THREAD);
+        }
+    };
+    private static final Queue<StompFrame> sharedFrames = new ConcurrentLinkedQueue<StompFrame>();
+    private static final AtomicInteger sharedCount = new AtomicInteger();
+
+    private StompFramePool() {
+    }
+
+    /**
+     * Returns an empty frame, which should be released with {@link StompFrame#release()} once it has been
+     * marshalled or converted
+     */
+    public static StompFrame acquire() {
+        if (!enabled) {
+            return new StompFrame();
+        }
+        List<StompFrame> free = freeFrames.get();
+        int size = free.size();
+        StompFrame frame = (size > 0) ? free.remove(size - 1) : null;
+        if (frame == null) {
+            frame = sharedFrames.poll();
+            if (frame != null) {
+                sharedCount.decrementAndGet();
+            }
+            else {
+                frame = new StompFrame();
+            }
+        }
+        frame.onAcquire();
+        if (leakDetection) {
+            synchronized (outstanding) {
+                outstanding.put(frame, new Throwable("Frame acquired by thread: " + Thread.currentThread().getName()));
+            }
+        }
+        return frame;
+    }
+
+    static void release(StompFrame frame) {
+        if (leakDetection) {
+            synchronized (outstanding) {
+                outstanding.remove(frame);
+            }
+        }
+        frame.recycle();
+        List<StompFrame> free = freeFrames.get();
+        if (free.size() < MAX_FREE_FRAMES_PER_THREAD) {
+            free.add(frame);
+        }
+        else if (sharedCount.incrementAndGet() <= MAX_SHARED_FREE_FRAMES) {
+            sharedFrames.add(frame);
+        }
+        else {
+            sharedCount.decrementAndGet();
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables pooling of frames
+     */
+    public static void setEnabled(boolean enabled) {
+        StompFramePool.enabled = enabled;
+    }
+
+    public static boolean isLeakDetection() {
+        return leakDetection;
+    }
+
+    /**
+     * Enables or disables tracking of frames which have been acquired but not yet released
+     */
+    public static void setLeakDetection(boolean leakDetection) {
+        StompFramePool.leakDetection = leakDetection;
+        if (!leakDetection) {
+            synchronized (outstanding) {
+                outstanding.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the stack traces of where each frame which has not yet been released was acquired.
+     * Only frames acquired while leak detection was enabled are tracked.
+     */
+    public static List<Throwable> getLeaks() {
+        synchronized (outstanding) {
+            return new ArrayList<Throwable>(outstanding.values());
+        }
+    }
+
+    /**
+     * Discards the free frames of the calling thread and those shared by all threads
+     */
+    public static void clear() {
+        freeFrames.get().clear();
+        while (sharedFrames.poll() != null) {
+            sharedCount.decrementAndGet();
+        }
+    }
+}
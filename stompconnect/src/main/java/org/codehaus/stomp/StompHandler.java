@@ -23,6 +23,11 @@ package org.codehaus.stomp;
  * @version $Revision$
  */
 public interface StompHandler {
+    /**
+     * Processes the frame. The handler takes ownership of the frame; once it has been completely processed,
+     * such as marshalled onto the wire or converted to a JMS message, the handler which consumes it should
+     * call {@link StompFrame#release()} and must not refer to it again.
+     */
     void onStompFrame(StompFrame frame) throws Exception;
 
     void onException(Exception e);
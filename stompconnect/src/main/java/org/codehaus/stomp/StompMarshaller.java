@@ -23,21 +23,19 @@ import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.nio.ByteBuffer;
 
 /**
  * Implements marshalling and unmarsalling the <a href="http://stomp.codehaus.org/">Stomp</a> protocol.
  */
 public class StompMarshaller {
-    private static final byte[] NO_DATA = new byte[]{};
     private static final byte[] END_OF_FRAME = new byte[]{0, '\n'};
-    private static final int MAX_COMMAND_LENGTH = 1024;
-    private static final int MAX_HEADER_LENGTH = 1024 * 10;
-    private static final int MAX_HEADERS = 1000;
-    private static final int MAX_DATA_LENGTH = 1024 * 1024 * 100;
+    private static final int MAX_CACHED_HEADER_BUFFER = 64 * 1024;
+    private static final StompFrameEncoder encoder = new StompFrameEncoder();
+    private static final ThreadLocal<ByteBuffer> headerBuffers = new ThreadLocal<ByteBuffer>();
+    private final StompFrameDecoder decoder = new StompFrameDecoder();
     private int version = 1;
 
     public int getVersion() {
@@ -48,6 +46,32 @@ public class StompMarshaller {
         this.version = version;
     }
 
+    public int getSpoolThreshold() {
+        return decoder.getSpoolThreshold();
+    }
+
+    /**
+     * Sets the size in bytes above which an unmarshalled body is spooled to disk, zero disables spooling
+     */
+    public void setSpoolThreshold(int spoolThreshold) {
+        decoder.setSpoolThreshold(spoolThreshold);
+    }
+
+    public File getSpoolDirectory() {
+        return decoder.getSpoolDirectory();
+    }
+
+    public void setSpoolDirectory(File spoolDirectory) {
+        decoder.setSpoolDirectory(spoolDirectory);
+    }
+
+    /**
+     * Returns true if a frame is part way through being unmarshalled
+     */
+    public boolean hasPartialFrame() {
+        return decoder.hasPartialFrame();
+    }
+
     public byte[] marshal(StompFrame command) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         DataOutputStream dos = new DataOutputStream(baos);
@@ -56,143 +80,81 @@ public class StompMarshaller {
         return baos.toByteArray();
     }
 
-    public Object unmarshal(byte[] packet) throws IOException {
+    public StompFrame unmarshal(byte[] packet) throws IOException {
         ByteArrayInputStream stream = new ByteArrayInputStream(packet);
         DataInputStream dis = new DataInputStream(stream);
         return unmarshal(dis);
     }
 
     public void marshal(StompFrame stomp, DataOutput os) throws IOException {
-        StringBuffer buffer = new StringBuffer();
-        buffer.append(stomp.getAction());
-        buffer.append(Stomp.NEWLINE);
-
-        // Output the headers.
-        for (Iterator iter = stomp.getHeaders().entrySet().iterator(); iter.hasNext();) {
-            Map.Entry entry = (Map.Entry) iter.next();
-            buffer.append(entry.getKey());
-            buffer.append(Stomp.Headers.SEPERATOR);
-            buffer.append(entry.getValue());
-            buffer.append(Stomp.NEWLINE);
-        }
-
-        // Add a newline to seperate the headers from the content.
-        buffer.append(Stomp.NEWLINE);
-
-        os.write(buffer.toString().getBytes("UTF-8"));
+        ByteBuffer buffer = getHeaderBuffer(encoder.getMaxHeadersLength(stomp));
+        encoder.encodeHeaders(stomp, buffer);
+        os.write(buffer.array(), 0, buffer.position());
         os.write(stomp.getContent());
         os.write(END_OF_FRAME);
     }
 
-    public StompFrame unmarshal(DataInput in) throws IOException {
+    /**
+     * Returns the size of buffer which is large enough for {@link #marshal(StompFrame, ByteBuffer)}
+     */
+    public int getMaxEncodedLength(StompFrame stomp) {
+        return encoder.getMaxEncodedLength(stomp);
+    }
+
+    /**
+     * Returns the exact number of bytes {@link #marshal(StompFrame, ByteBuffer)} writes for the frame
+     */
+    public int getEncodedLength(StompFrame stomp) {
+        return encoder.getEncodedLength(stomp);
+    }
+
+    /**
+     * Marshals the frame into the given buffer
+     *
+     * @throws java.nio.BufferOverflowException if the buffer is too small, see {@link StompFrameEncoder#getMaxEncodedLength(StompFrame)}
+     */
+    public void marshal(StompFrame stomp, ByteBuffer buffer) {
+        encoder.encode(stomp, buffer);
+    }
+
+    /**
+     * Unmarshals the next frame from the given buffer
+     *
+     * @return the frame or null if the buffer does not yet contain a complete frame
+     * @see StompFrameDecoder#decode(ByteBuffer)
+     */
+    public StompFrame unmarshal(ByteBuffer buffer) throws IOException {
+        try {
+            return decoder.decode(buffer);
+        }
+        catch (ProtocolException e) {
+            return new StompFrameError(e);
+        }
+    }
 
+    public StompFrame unmarshal(DataInput in) throws IOException {
         try {
-            String action = null;
-
-            // skip white space to next real action line
-            while (true) {
-                action = readLine(in, MAX_COMMAND_LENGTH, "The maximum command length was exceeded");
-                if (action == null) {
-                    throw new IOException("connection was closed");
-                }
-                else {
-                    action = action.trim();
-                    if (action.length() > 0) {
-                        break;
-                    }
-                }
-            }
-
-            // Parse the headers
-            HashMap headers = new HashMap(25);
-            while (true) {
-                String line = readLine(in, MAX_HEADER_LENGTH, "The maximum header length was exceeded");
-                if (line != null && line.trim().length() > 0) {
-
-                    if (headers.size() > MAX_HEADERS) {
-                        throw new ProtocolException("The maximum number of headers was exceeded", true);
-                    }
-
-                    try {
-                        int seperator_index = line.indexOf(Stomp.Headers.SEPERATOR);
-                        String name = line.substring(0, seperator_index).trim();
-                        String value = line.substring(seperator_index + 1, line.length()).trim();
-                        headers.put(name, value);
-                    }
-                    catch (Exception e) {
-                        throw new ProtocolException("Unable to parser header line [" + line + "]", true);
-                    }
-                }
-                else {
-                    break;
-                }
-            }
-
-            // Read in the data part.
-            byte[] data = NO_DATA;
-            String contentLength = (String) headers.get(Stomp.Headers.CONTENT_LENGTH);
-            if (contentLength != null) {
-
-                // Bless the client, he's telling us how much data to read in.
-                int length;
-                try {
-                    length = Integer.parseInt(contentLength.trim());
-                }
-                catch (NumberFormatException e) {
-                    throw new ProtocolException("Specified content-length is not a valid integer", true);
-                }
-
-                if (length > MAX_DATA_LENGTH) {
-                    throw new ProtocolException("The maximum data length was exceeded", true);
-                }
-
-                data = new byte[length];
-                in.readFully(data);
-
-                if (in.readByte() != 0) {
-                    throw new ProtocolException(Stomp.Headers.CONTENT_LENGTH + " bytes were read and " + "there was no trailing null byte", true);
-                }
-            }
-            else {
-
-                // We don't know how much to read.. data ends when we hit a 0
-                byte b;
-                ByteArrayOutputStream baos = null;
-                while ((b = in.readByte()) != 0) {
-
-                    if (baos == null) {
-                        baos = new ByteArrayOutputStream();
-                    }
-                    else if (baos.size() > MAX_DATA_LENGTH) {
-                        throw new ProtocolException("The maximum data length was exceeded", true);
-                    }
-
-                    baos.write(b);
-                }
-
-                if (baos != null) {
-                    baos.close();
-                    data = baos.toByteArray();
-                }
-            }
-
-            return new StompFrame(action, headers, data);
+            return decoder.decode(in);
         }
         catch (ProtocolException e) {
             return new StompFrameError(e);
         }
     }
 
-    protected String readLine(DataInput in, int maxLength, String errorMessage) throws IOException {
-        byte b;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(maxLength);
-        while ((b = in.readByte()) != '\n') {
-            if (baos.size() > maxLength) {
-                throw new ProtocolException(errorMessage, true);
-            }
-            baos.write(b);
+    /**
+     * Returns an empty buffer of at least the given size which is reused by the calling thread,
+     * as frames may be marshalled concurrently by a number of JMS sessions
+     */
+    protected ByteBuffer getHeaderBuffer(int size) {
+        if (size > MAX_CACHED_HEADER_BUFFER) {
+            return ByteBuffer.allocate(size);
+        }
+        ByteBuffer buffer = headerBuffers.get();
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(Math.max(size, 1024));
+            headerBuffers.set(buffer);
         }
-        byte[] sequence = baos.toByteArray();
-        return new String(sequence, "UTF-8");
+        buffer.clear();
+        return buffer;
     }
 }
@@ -0,0 +1,174 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The well-known commands and header names declared in {@link Stomp} along with tables to look them up from
+ * their raw bytes, so that decoding a frame can use the canonical constant strings rather than allocating
+ * new ones. As the constants are then the very same instances, {@link HeaderMap} finds them by identity.
+ *
+ * @version $Revision$
+ */
+public final class StompNames {
+    private static final String[] COMMANDS;
+    private static final String[] HEADER_NAMES;
+    private static final Table COMMAND_TABLE;
+    private static final Table HEADER_TABLE;
+
+    static {
+        List<String> commands = new ArrayList<String>();
+        addConstants(Stomp.Commands.class, commands);
+        addConstants(Stomp.Responses.class, commands);
+        StompCommand[] values = StompCommand.values();
+        for (int i = 0; i < values.length; i++) {
+            String[] names = values[i].getNames();
+            for (int j = 0; j < names.length; j++) {
+                if (!commands.contains(names[j])) {
+                    commands.add(names[j]);
+                }
+            }
+        }
+        COMMANDS = commands.toArray(new String[commands.size()]);
+        COMMAND_TABLE = new Table(COMMANDS);
+
+        List<String> headers = new ArrayList<String>();
+        addConstants(Stomp.Headers.class, headers);
+        headers.remove(Stomp.Headers.SEPERATOR);
+        HEADER_NAMES = headers.toArray(new String[headers.size()]);
+        HEADER_TABLE = new Table(HEADER_NAMES);
+    }
+
+    private StompNames() {
+    }
+
+    /**
+     * Returns all the well-known commands and responses
+     */
+    public static String[] getCommands() {
+        return COMMANDS.clone();
+    }
+
+    /**
+     * Returns all the well-known header names
+     */
+    public static String[] getHeaderNames() {
+        return HEADER_NAMES.clone();
+    }
+
+    /**
+     * Returns the canonical command for the given bytes or null if it is not a well-known command
+     */
+    public static String lookupCommand(byte[] data, int offset, int length) {
+        return COMMAND_TABLE.lookup(data, offset, length);
+    }
+
+    /**
+     * Returns the canonical header name for the given bytes or null if it is not a well-known header
+     */
+    public static String lookupHeaderName(byte[] data, int offset, int length) {
+        return HEADER_TABLE.lookup(data, offset, length);
+    }
+
+    private static void addConstants(Class type, List<String> list) {
+        Field[] fields = type.getFields();
+        for (int i = 0; i < fields.length; i++) {
+            try {
+                Object value = fields[i].get(null);
+                if (value instanceof String && !list.contains(value)) {
+                    list.add((String) value);
+                }
+            }
+            catch (IllegalAccessException e) {
+                // ignore
+            }
+        }
+        Class[] nested = type.getClasses();
+        for (int i = 0; i < nested.length; i++) {
+            addConstants(nested[i], list);
+        }
+    }
+
+    /**
+     * An open addressing hash table keyed on the ASCII bytes of the names
+     */
+    private static final class Table {
+        private final byte[][] keys;
+        private final String[] values;
+        private final int mask;
+
+        Table(String[] names) {
+            int size = 16;
+            while (size < names.length * 4) {
+                size <<= 1;
+            }
+            keys = new byte[size][];
+            values = new String[size];
+            mask = size - 1;
+
+            for (int i = 0; i < names.length; i++) {
+                String name = names[i];
+                byte[] key = new byte[name.length()];
+                for (int j = 0; j < key.length; j++) {
+                    key[j] = (byte) name.charAt(j);
+                }
+                int slot = hash(key, 0, key.length) & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                values[slot] = name;
+            }
+        }
+
+        String lookup(byte[] data, int offset, int length) {
+            int slot = hash(data, offset, length) & mask;
+            byte[] key;
+            while ((key = keys[slot]) != null) {
+                if (matches(key, data, offset, length)) {
+                    return values[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        private static int hash(byte[] data, int offset, int length) {
+            int h = length;
+            for (int i = offset, end = offset + length; i < end; i++) {
+                h = 31 * h + data[i];
+            }
+            return h ^ (h >>> 16);
+        }
+
+        private static boolean matches(byte[] key, byte[] data, int offset, int length) {
+            if (key.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (key[i] != data[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
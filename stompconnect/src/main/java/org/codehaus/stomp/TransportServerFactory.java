@@ -0,0 +1,36 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * Creates the {@link TransportServer} for URIs of one scheme, such as <code>tcp</code> or <code>unix</code>
+ *
+ * @version $Revision$
+ */
+public interface TransportServerFactory {
+
+    /**
+     * Creates an unstarted server listening on the given location which creates a {@link StompHandler}
+     * for each connection from the given factory
+     */
+    TransportServer createTransportServer(StompHandlerFactory stompHandlerFactory, URI location) throws IOException, URISyntaxException;
+}
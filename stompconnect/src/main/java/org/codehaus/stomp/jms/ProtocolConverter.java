@@ -19,10 +19,13 @@ package org.codehaus.stomp.jms;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.codehaus.stomp.HeartBeatMonitor;
+import org.codehaus.stomp.HeartBeatSupport;
 import org.codehaus.stomp.ProtocolException;
 import org.codehaus.stomp.Stomp;
 import org.codehaus.stomp.StompFrame;
 import org.codehaus.stomp.StompFrameError;
+import org.codehaus.stomp.StompFramePool;
 import org.codehaus.stomp.StompHandler;
 import org.codehaus.stomp.util.IntrospectionSupport;
 
@@ -34,11 +37,12 @@ import javax.jms.Session;
 import java.io.ByteArrayOutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Collection;
 import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A protocol switch between JMS and Stomp
@@ -56,6 +60,8 @@ public class ProtocolConverter implements StompHandler {
     private final Map<String,StompSession> transactedSessions = new ConcurrentHashMap<String,StompSession>();
     private final Map subscriptions = new ConcurrentHashMap();
     private final Map messages = new ConcurrentHashMap();
+    // not synchronized as closing blocks on the JMS provider which would pin a virtual thread
+    private final Lock closeLock = new ReentrantLock();
 
     public ProtocolConverter(ConnectionFactory connectionFactory, StompHandler outputHandler) {
         this.connectionFactory = connectionFactory;
@@ -70,7 +76,8 @@ public class ProtocolConverter implements StompHandler {
         return outputHandler;
     }
 
-    public synchronized void close() throws JMSException {
+    public void close() throws JMSException {
+        closeLock.lock();
         try {
             // lets close all the sessions first
             JMSException firstException = null;
@@ -111,6 +118,7 @@ public class ProtocolConverter implements StompHandler {
             transactedSessions.clear();
             subscriptions.clear();
             messages.clear();
+            closeLock.unlock();
         }
     }
 
@@ -127,36 +135,36 @@ public class ProtocolConverter implements StompHandler {
                 throw ((StompFrameError) command).getException();
             }
 
-            String action = command.getAction();
-            if (action.startsWith(Stomp.Commands.SEND)) {
-                onStompSend(command);
-            }
-            else if (action.startsWith(Stomp.Commands.ACK)) {
-                onStompAck(command);
-            }
-            else if (action.startsWith(Stomp.Commands.BEGIN)) {
-                onStompBegin(command);
-            }
-            else if (action.startsWith(Stomp.Commands.COMMIT)) {
-                onStompCommit(command);
-            }
-            else if (action.startsWith(Stomp.Commands.ABORT)) {
-                onStompAbort(command);
-            }
-            else if (action.startsWith(Stomp.Commands.SUBSCRIBE)) {
-                onStompSubscribe(command);
-            }
-            else if (action.startsWith(Stomp.Commands.UNSUBSCRIBE)) {
-                onStompUnsubscribe(command);
-            }
-            else if (action.startsWith(Stomp.Commands.CONNECT)) {
-                onStompConnect(command);
-            }
-            else if (action.startsWith(Stomp.Commands.DISCONNECT)) {
-                onStompDisconnect(command);
-            }
-            else {
-                throw new ProtocolException("Unknown STOMP action: " + action);
+            switch (command.getCommand()) {
+                case SEND:
+                    onStompSend(command);
+                    break;
+                case ACK:
+                    onStompAck(command);
+                    break;
+                case BEGIN:
+                    onStompBegin(command);
+                    break;
+                case COMMIT:
+                    onStompCommit(command);
+                    break;
+                case ABORT:
+                    onStompAbort(command);
+                    break;
+                case SUBSCRIBE:
+                    onStompSubscribe(command);
+                    break;
+                case UNSUBSCRIBE:
+                    onStompUnsubscribe(command);
+                    break;
+                case CONNECT:
+                    onStompConnect(command);
+                    break;
+                case DISCONNECT:
+                    onStompDisconnect(command);
+                    break;
+                default:
+                    throw new ProtocolException("Unknown STOMP action: " + command.getAction());
             }
         }
         catch (Exception e) {
@@ -167,7 +175,10 @@ public class ProtocolConverter implements StompHandler {
             e.printStackTrace(stream);
             stream.close();
 
-            HashMap headers = new HashMap();
+            StompFrame errorMessage = StompFramePool.acquire();
+            errorMessage.setAction(Stomp.Responses.ERROR);
+            errorMessage.setContent(baos.toByteArray());
+            Map headers = errorMessage.getHeaders();
             headers.put(Stomp.Headers.Error.MESSAGE, e.getMessage());
 
             final String receiptId = (String) command.getHeaders().get(Stomp.Headers.RECEIPT_REQUESTED);
@@ -175,11 +186,13 @@ public class ProtocolConverter implements StompHandler {
                 headers.put(Stomp.Headers.Response.RECEIPT_ID, receiptId);
             }
 
-            StompFrame errorMessage = new StompFrame(Stomp.Responses.ERROR, headers, baos.toByteArray());
             sendToStomp(errorMessage);
 
             // TODO need to do anything else? Should we close the connection?
         }
+        finally {
+            command.release();
+        }
     }
 
     public void onException(Exception e) {
@@ -218,7 +231,9 @@ public class ProtocolConverter implements StompHandler {
 
         connection.start();
 
-        Map responseHeaders = new HashMap();
+        StompFrame sc = StompFramePool.acquire();
+        sc.setAction(Stomp.Responses.CONNECTED);
+        Map responseHeaders = sc.getHeaders();
 
         responseHeaders.put(Stomp.Headers.Connected.SESSION, connection.getClientID());
         String requestId = (String) headers.get(Stomp.Headers.Connect.REQUEST_ID);
@@ -232,10 +247,23 @@ public class ProtocolConverter implements StompHandler {
             responseHeaders.put(Stomp.Headers.Response.RECEIPT_ID, requestId);
         }
 
-        StompFrame sc = new StompFrame();
-        sc.setAction(Stomp.Responses.CONNECTED);
-        sc.setHeaders(responseHeaders);
-        sendToStomp(sc);
+        Object heartBeat = headers.get(Stomp.Headers.Connect.HEART_BEAT);
+        if (heartBeat != null && outputHandler instanceof HeartBeatSupport) {
+            HeartBeatSupport support = (HeartBeatSupport) outputHandler;
+            long[] client = HeartBeatMonitor.parseHeartBeat(heartBeat);
+            long[] server = support.getHeartBeat();
+            responseHeaders.put(Stomp.Headers.Connected.HEART_BEAT, server[0] + "," + server[1]);
+            sendToStomp(sc);
+
+            // each side uses the slower of what one can send and the other wants to receive
+            long sendInterval = (server[0] > 0 && client[1] > 0) ? Math.max(server[0], client[1]) : 0;
+            long receiveInterval = (server[1] > 0 && client[0] > 0) ? Math.max(server[1], client[0]) : 0;
+            // allow for some network delay before giving up on the client
+            support.startHeartBeat(sendInterval, receiveInterval + receiveInterval / 2);
+        }
+        else {
+            sendToStomp(sc);
+        }
     }
 
     protected void onStompDisconnect(StompFrame command) throws Exception {
@@ -452,9 +480,8 @@ public class ProtocolConverter implements StompHandler {
         final String receiptId = (String) command.getHeaders().get(Stomp.Headers.RECEIPT_REQUESTED);
         // A response may not be needed.
         if (receiptId != null) {
-            StompFrame sc = new StompFrame();
+            StompFrame sc = StompFramePool.acquire();
             sc.setAction(Stomp.Responses.RECEIPT);
-            sc.setHeaders(new HashMap(1));
             sc.getHeaders().put(Stomp.Headers.Response.RECEIPT_ID, receiptId);
             sendToStomp(sc);
         }
@@ -19,7 +19,14 @@ package org.codehaus.stomp.jms;
 
 import org.codehaus.stomp.StompHandler;
 import org.codehaus.stomp.StompHandlerFactory;
+import org.codehaus.stomp.TransportServer;
+import org.codehaus.stomp.TransportServerFactory;
+import org.codehaus.stomp.nio.NioTransportServer;
+import org.codehaus.stomp.ssl.SslTransportServer;
 import org.codehaus.stomp.tcp.TcpTransportServer;
+import org.codehaus.stomp.unix.UnixTransportServer;
+import org.codehaus.stomp.vm.VmTransportServer;
+import org.codehaus.stomp.ws.WebSocketTransportServer;
 import org.codehaus.stomp.util.ServiceSupport;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -28,13 +35,25 @@ import javax.jms.ConnectionFactory;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.net.ServerSocketFactory;
+import javax.net.ssl.SSLContext;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Map;
 
 /**
  * This class represents a service which accepts STOMP socket connections and binds them to JMS operations
+ * <p/>
+ * The scheme of the URI chooses the {@link TransportServerFactory} which creates the server;
+ * <code>tcp://</code> uses a thread per connection, <code>nio://</code> serves all connections from a few
+ * selector threads and <code>unix://</code> listens on a Unix domain socket for clients on the same host.
+ * <code>vm://name</code> accepts clients in the same JVM, which connect through {@link #getVmServer()} or
+ * {@link org.codehaus.stomp.vm.VmTransportRegistry}. <code>ws://</code> accepts STOMP over WebSocket from
+ * browsers on the same selector threads as <code>nio://</code>. <code>nio+ssl://</code> accepts TLS connections on the
+ * selector threads, using the {@link #setSslContext(SSLContext) SSLContext} if one is given.
+ * Other schemes can be added with {@link #addTransportServerFactory(String, TransportServerFactory)}.
  *
  * @version $Revision$
  */
@@ -45,7 +64,9 @@ public class StompConnect extends ServiceSupport implements StompHandlerFactory
     private String uri = "tcp://localhost:61613";
     private URI location;
     private ServerSocketFactory serverSocketFactory;
-    private TcpTransportServer tcpServer;
+    private SSLContext sslContext;
+    private TransportServer transportServer;
+    private Map<String, TransportServerFactory> transportServerFactories;
     private InitialContext initialContext;
     private String jndiName = "ConnectionFactory";
     private Hashtable jndiEnvironment = new Hashtable();
@@ -69,7 +90,22 @@ public class StompConnect extends ServiceSupport implements StompHandlerFactory
      * Joins with the background thread until the transport is stopped
      */
     public void join() throws IOException, URISyntaxException, InterruptedException {
-        getTcpServer().join();
+        getTransportServer().join();
+    }
+
+    /**
+     * Stops gracefully, for rolling restarts. A <code>tcp://</code> server stops accepting connections, lets the
+     * frames being processed finish and closes its connections in parallel, see {@link TcpTransportServer#drain(long)};
+     * other servers are simply stopped.
+     *
+     * @param timeout the overall time allowed in milliseconds
+     */
+    public void drain(long timeout) throws Exception {
+        TransportServer server = transportServer;
+        if (server instanceof TcpTransportServer && isStarted()) {
+            ((TcpTransportServer) server).drain(timeout);
+        }
+        stop();
     }
 
     // Properties
@@ -127,15 +163,80 @@ public class StompConnect extends ServiceSupport implements StompHandlerFactory
         this.serverSocketFactory = serverSocketFactory;
     }
 
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    /**
+     * Sets the {@link SSLContext} of a <code>nio+ssl://</code> server, which otherwise creates one from its options
+     */
+    public void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    public TransportServer getTransportServer() throws IOException, URISyntaxException {
+        if (transportServer == null) {
+            transportServer = createTransportServer();
+        }
+        return transportServer;
+    }
+
+    /**
+     * Sets the server used to accept connections rather than creating one from the URI
+     */
+    public void setTransportServer(TransportServer transportServer) {
+        this.transportServer = transportServer;
+    }
+
+    /**
+     * Returns the server if it is a <code>tcp://</code> server
+     *
+     * @throws IllegalStateException if a different kind of server is in use
+     */
     public TcpTransportServer getTcpServer() throws IOException, URISyntaxException {
-        if (tcpServer == null) {
-            tcpServer = createTcpServer();
+        TransportServer server = getTransportServer();
+        if (!(server instanceof TcpTransportServer)) {
+            throw new IllegalStateException("Not using a TCP server: " + server);
         }
-        return tcpServer;
+        return (TcpTransportServer) server;
     }
 
     public void setTcpServer(TcpTransportServer tcpServer) {
-        this.tcpServer = tcpServer;
+        this.transportServer = tcpServer;
+    }
+
+    /**
+     * Returns the server if it is a <code>vm://</code> server, which in-VM clients connect to
+     *
+     * @throws IllegalStateException if a different kind of server is in use
+     */
+    public VmTransportServer getVmServer() throws IOException, URISyntaxException {
+        TransportServer server = getTransportServer();
+        if (!(server instanceof VmTransportServer)) {
+            throw new IllegalStateException("Not using an in-VM server: " + server);
+        }
+        return (VmTransportServer) server;
+    }
+
+    public Map<String, TransportServerFactory> getTransportServerFactories() {
+        if (transportServerFactories == null) {
+            transportServerFactories = createTransportServerFactories();
+        }
+        return transportServerFactories;
+    }
+
+    /**
+     * Sets the factories used to create the server keyed on the scheme of the URI
+     */
+    public void setTransportServerFactories(Map<String, TransportServerFactory> transportServerFactories) {
+        this.transportServerFactories = transportServerFactories;
+    }
+
+    /**
+     * Registers the factory used to create the server for URIs with the given scheme
+     */
+    public void addTransportServerFactory(String scheme, TransportServerFactory factory) {
+        getTransportServerFactories().put(scheme, factory);
     }
 
     public InitialContext getInitialContext() throws NamingException {
@@ -186,15 +287,119 @@ public class StompConnect extends ServiceSupport implements StompHandlerFactory
             throw new IllegalArgumentException("No ConnectionFactory has been configured!");
         }
 
-        getTcpServer().start();
+        getTransportServer().start();
     }
 
     protected void doStop() throws Exception {
-        getTcpServer().stop();
+        getTransportServer().stop();
     }
 
+    /**
+     * Creates the server using the factory registered for the scheme of the URI
+     */
+    protected TransportServer createTransportServer() throws IOException, URISyntaxException {
+        URI location = getLocation();
+        TransportServerFactory factory = getTransportServerFactories().get(location.getScheme());
+        if (factory == null) {
+            throw new IllegalArgumentException("No transport is available for the URI: " + location
+                    + ". Supported schemes are: " + getTransportServerFactories().keySet());
+        }
+        return factory.createTransportServer(this, location);
+    }
+
+    /**
+     * Creates the factories for the built in transports, which call the create methods below so that
+     * derived classes can still override those
+     */
+    protected Map<String, TransportServerFactory> createTransportServerFactories() {
+        Map<String, TransportServerFactory> answer = new HashMap<String, TransportServerFactory>();
+        answer.put("tcp", new TransportServerFactory() {
+            public TransportServer createTransportServer(StompHandlerFactory stompHandlerFactory, URI location) throws IOException, URISyntaxException {
+                if (isOwnServer(stompHandlerFactory, location)) {
+                    return createTcpServer();
+                }
+                return createTcpServer(stompHandlerFactory, location);
+            }
+        });
+        answer.put("nio", new TransportServerFactory() {
+            public TransportServer createTransportServer(StompHandlerFactory stompHandlerFactory, URI location) throws URISyntaxException {
+                if (isOwnServer(stompHandlerFactory, location)) {
+                    return createNioServer();
+                }
+                return createNioServer(stompHandlerFactory, location);
+            }
+        });
+        answer.put("unix", new TransportServerFactory() {
+            public TransportServer createTransportServer(StompHandlerFactory stompHandlerFactory, URI location) {
+                return createUnixServer(stompHandlerFactory, location);
+            }
+        });
+        answer.put("vm", new TransportServerFactory() {
+            public TransportServer createTransportServer(StompHandlerFactory stompHandlerFactory, URI location) {
+                return createVmServer(stompHandlerFactory, location);
+            }
+        });
+        answer.put("nio+ssl", new TransportServerFactory() {
+            public TransportServer createTransportServer(StompHandlerFactory stompHandlerFactory, URI location) {
+                return createSslServer(stompHandlerFactory, location);
+            }
+        });
+        answer.put("ws", new TransportServerFactory() {
+            public TransportServer createTransportServer(StompHandlerFactory stompHandlerFactory, URI location) {
+                return createWebSocketServer(stompHandlerFactory, location);
+            }
+        });
+        return answer;
+    }
+
+    /**
+     * Creates the server for our own <code>tcp://</code> location, which derived classes may override
+     */
     protected TcpTransportServer createTcpServer() throws IOException, URISyntaxException {
-        return new TcpTransportServer(this, getLocation(), getServerSocketFactory());
+        return createTcpServer(this, getLocation());
+    }
+
+    protected TcpTransportServer createTcpServer(StompHandlerFactory stompHandlerFactory, URI location) throws IOException, URISyntaxException {
+        return new TcpTransportServer(stompHandlerFactory, location, getServerSocketFactory());
+    }
+
+    /**
+     * Creates the server for our own <code>nio://</code> location, which derived classes may override
+     */
+    protected NioTransportServer createNioServer() throws URISyntaxException {
+        return createNioServer(this, getLocation());
+    }
+
+    protected NioTransportServer createNioServer(StompHandlerFactory stompHandlerFactory, URI location) {
+        return new NioTransportServer(stompHandlerFactory, location);
+    }
+
+    protected SslTransportServer createSslServer(StompHandlerFactory stompHandlerFactory, URI location) {
+        SslTransportServer server = new SslTransportServer(stompHandlerFactory, location);
+        if (sslContext != null) {
+            server.setSslContext(sslContext);
+        }
+        return server;
+    }
+
+    protected UnixTransportServer createUnixServer(StompHandlerFactory stompHandlerFactory, URI location) {
+        return new UnixTransportServer(stompHandlerFactory, location);
+    }
+
+    protected VmTransportServer createVmServer(StompHandlerFactory stompHandlerFactory, URI location) {
+        return new VmTransportServer(stompHandlerFactory, location);
+    }
+
+    protected WebSocketTransportServer createWebSocketServer(StompHandlerFactory stompHandlerFactory, URI location) {
+        return new WebSocketTransportServer(stompHandlerFactory, location);
+    }
+
+    /**
+     * Returns true if the server is for our own location, in which case the factories call the create methods
+     * without arguments which derived classes written before there were factories override
+     */
+    protected boolean isOwnServer(StompHandlerFactory stompHandlerFactory, URI location) throws URISyntaxException {
+        return stompHandlerFactory == this && location.equals(getLocation());
     }
 
     /**
@@ -17,16 +17,20 @@
  */
 package org.codehaus.stomp.jms;
 
+import org.codehaus.stomp.HeaderMap;
 import org.codehaus.stomp.ProtocolException;
+import org.codehaus.stomp.SpooledContent;
 import org.codehaus.stomp.Stomp;
 import org.codehaus.stomp.StompFrame;
+import org.codehaus.stomp.StompFramePool;
 
 import javax.jms.*;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Represents a logical session (a parallel unit of work) within a Stomp connection
@@ -37,7 +41,7 @@ public class StompSession {
     private final ProtocolConverter protocolConverter;
     private final Session session;
     private MessageProducer producer;
-    private Map<String, Destination> temporaryDestinations = new HashMap<String, Destination>();
+    private ConcurrentHashMap<String, Destination> temporaryDestinations = new ConcurrentHashMap<String, Destination>();
 
     public StompSession(ProtocolConverter protocolConverter, Session session) {
         this.protocolConverter = protocolConverter;
@@ -138,13 +142,9 @@ public class StompSession {
     }
 
 
-    protected synchronized Destination temporaryDestination(String tempName, Destination temporaryDestination) {
-        Destination answer = temporaryDestinations.get(tempName);
-        if (answer == null) {
-            temporaryDestinations.put(tempName, temporaryDestination);
-            answer = temporaryDestination;
-        }
-        return answer;
+    protected Destination temporaryDestination(String tempName, Destination temporaryDestination) {
+        Destination answer = temporaryDestinations.putIfAbsent(tempName, temporaryDestination);
+        return (answer != null) ? answer : temporaryDestination;
     }
 
     protected int getDeliveryMode(Map headers) throws JMSException {
@@ -190,6 +190,8 @@ public class StompSession {
         if (message.getJMSRedelivered()) {
             headers.put(Stomp.Headers.Message.REDELIVERED, "true");
         }
+        // only messages which were not sent persistently may be discarded for a slow consumer
+        command.setDroppable(message.getJMSDeliveryMode() != DeliveryMode.PERSISTENT);
         headers.put(Stomp.Headers.Message.PRORITY, "" + message.getJMSPriority());
 
         if (message.getJMSReplyTo() != null) {
@@ -211,26 +213,38 @@ public class StompSession {
     }
 
     protected void copyStandardHeadersFromFrameToMessage(StompFrame command, Message msg) throws JMSException, ProtocolException {
-        final Map headers = new HashMap(command.getHeaders());
+        final Map headers = command.getHeaders();
 
         // the standard JMS headers
-        msg.setJMSCorrelationID((String) headers.remove(Stomp.Headers.Send.CORRELATION_ID));
+        msg.setJMSCorrelationID((String) headers.get(Stomp.Headers.Send.CORRELATION_ID));
 
-        Object o = headers.remove(Stomp.Headers.Send.TYPE);
+        Object o = headers.get(Stomp.Headers.Send.TYPE);
         if (o != null) {
             msg.setJMSType((String) o);
         }
 
-        o = headers.remove(Stomp.Headers.Send.REPLY_TO);
+        o = headers.get(Stomp.Headers.Send.REPLY_TO);
         if (o != null) {
             msg.setJMSReplyTo(convertDestination((String) o));
         }
 
-        // now the general headers
-        for (Iterator iter = headers.entrySet().iterator(); iter.hasNext();) {
-            Map.Entry entry = (Map.Entry) iter.next();
-            String name = (String) entry.getKey();
-            Object value = entry.getValue();
+        // now the general headers, which we walk in place rather than copying the map
+        if (headers instanceof HeaderMap) {
+            HeaderMap map = (HeaderMap) headers;
+            for (int i = 0, size = map.size(); i < size; i++) {
+                copyGeneralHeaderToMessage(map.getKey(i), map.getValue(i), msg);
+            }
+        }
+        else {
+            for (Iterator iter = headers.entrySet().iterator(); iter.hasNext();) {
+                Map.Entry entry = (Map.Entry) iter.next();
+                copyGeneralHeaderToMessage((String) entry.getKey(), entry.getValue(), msg);
+            }
+        }
+    }
+
+    protected void copyGeneralHeaderToMessage(String name, Object value, Message msg) throws JMSException {
+        if (!Stomp.Headers.Send.CORRELATION_ID.equals(name) && !Stomp.Headers.Send.TYPE.equals(name) && !Stomp.Headers.Send.REPLY_TO.equals(name)) {
             msg.setObjectProperty(name, value);
         }
     }
@@ -241,7 +255,13 @@ public class StompSession {
         if (headers.containsKey(Stomp.Headers.CONTENT_LENGTH)) {
             headers.remove(Stomp.Headers.CONTENT_LENGTH);
             BytesMessage bm = session.createBytesMessage();
-            bm.writeBytes(command.getContent());
+            SpooledContent spooled = command.getSpooledContent();
+            if (spooled != null) {
+                writeSpooledContent(spooled, bm);
+            }
+            else {
+                bm.writeBytes(command.getContent());
+            }
             msg = bm;
         }
         else {
@@ -258,11 +278,32 @@ public class StompSession {
         return msg;
     }
 
+    /**
+     * Streams a body which was spooled to disk into the message rather than reading it all into memory first
+     */
+    protected void writeSpooledContent(SpooledContent spooled, BytesMessage msg) throws JMSException, ProtocolException {
+        try {
+            InputStream in = spooled.openStream();
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    msg.writeBytes(buffer, 0, count);
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            throw new ProtocolException("Could not read spooled content: " + e, false, e);
+        }
+    }
+
     protected StompFrame convertMessage(Message message) throws IOException, JMSException {
-        StompFrame command = new StompFrame();
+        StompFrame command = StompFramePool.acquire();
         command.setAction(Stomp.Responses.MESSAGE);
-        Map headers = new HashMap(25);
-        command.setHeaders(headers);
+        Map headers = command.getHeaders();
 
         copyStandardHeadersFromMessageToFrame(message, command);
 
@@ -85,9 +85,7 @@ public class StompSubscription implements MessageListener {
         try {
             int ackMode = session.getSession().getAcknowledgeMode();
             if (ackMode == Session.CLIENT_ACKNOWLEDGE) {
-                synchronized (this) {
-                    session.getProtocolConverter().addMessageToAck(message);
-                }
+                session.getProtocolConverter().addMessageToAck(message);
             }
             session.sendToStomp(message, this);
         }
@@ -0,0 +1,175 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.nio;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A thread which owns a {@link Selector} and performs all the reads and writes for the {@link NioTransport}
+ * connections registered with it. Other threads hand work to the loop with {@link #execute(Runnable)}.
+ * <p/>
+ * As frames are decoded one connection at a time, the loop shares a single read buffer between all its
+ * connections so an idle connection costs no more than its decoder state.
+ *
+ * @version $Revision$
+ */
+public class NioEventLoop implements Runnable {
+    private static final Log log = LogFactory.getLog(NioEventLoop.class);
+    private final Selector selector;
+    private final ByteBuffer readBuffer;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public NioEventLoop(String name, int readBufferSize, boolean daemon) throws IOException {
+        this.selector = Selector.open();
+        this.readBuffer = ByteBuffer.allocate(readBufferSize);
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(daemon);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Closes all the connections of this loop and waits for its thread to complete
+     */
+    public void stop(boolean join) throws InterruptedException {
+        running = false;
+        selector.wakeup();
+        if (join && Thread.currentThread() != thread) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Runs the task on the loop thread
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Returns the number of connections registered with this loop
+     */
+    public int getConnectionCount() {
+        return selector.keys().size();
+    }
+
+    public String toString() {
+        return thread.getName();
+    }
+
+    public void run() {
+        try {
+            while (running) {
+                // tasks added while processing the last keys must run before we block again
+                runTasks();
+                selector.select();
+                Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    processKey(key);
+                }
+            }
+        }
+        catch (Throwable e) {
+            log.error("Event loop " + this + " failed: " + e, e);
+        }
+        finally {
+            closeAll();
+        }
+    }
+
+    // Implementation methods
+    //-------------------------------------------------------------------------
+    protected void processKey(SelectionKey key) {
+        NioTransport transport = (NioTransport) key.attachment();
+        try {
+            if (key.isReadable()) {
+                transport.onReadable(readBuffer);
+            }
+            if (key.isValid() && key.isWritable()) {
+                transport.onWritable();
+            }
+        }
+        catch (CancelledKeyException e) {
+            // the transport was closed by another thread
+        }
+        catch (Exception e) {
+            transport.onReadFailure(e);
+        }
+    }
+
+    protected void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            }
+            catch (Throwable e) {
+                log.warn("Event loop task failed: " + e, e);
+            }
+        }
+    }
+
+    protected void closeAll() {
+        runTasks();
+        List<SelectionKey> keys = new ArrayList<SelectionKey>(selector.keys());
+        for (Iterator<SelectionKey> iter = keys.iterator(); iter.hasNext();) {
+            NioTransport transport = (NioTransport) iter.next().attachment();
+            try {
+                transport.stop();
+            }
+            catch (Exception e) {
+                log.warn("Failed to stop " + transport + ": " + e, e);
+            }
+        }
+        try {
+            selector.close();
+        }
+        catch (IOException e) {
+            log.debug("Failed to close selector: " + e, e);
+        }
+    }
+}
@@ -0,0 +1,906 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.nio;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.stomp.HeartBeatMonitor;
+import org.codehaus.stomp.HeartBeatSupport;
+import org.codehaus.stomp.InboundRateLimit;
+import org.codehaus.stomp.OutboundBudget;
+import org.codehaus.stomp.SlowConsumerPolicy;
+import org.codehaus.stomp.StompFrame;
+import org.codehaus.stomp.StompHandler;
+import org.codehaus.stomp.StompMarshaller;
+import org.codehaus.stomp.util.BufferPool;
+import org.codehaus.stomp.util.IntrospectionSupport;
+import org.codehaus.stomp.util.SerialExecutor;
+import org.codehaus.stomp.util.ServiceSupport;
+import org.codehaus.stomp.util.TimerWheel;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A STOMP connection over a non-blocking {@link SocketChannel} whose reads and writes are performed by a
+ * {@link NioEventLoop} rather than a thread of its own.
+ * <p/>
+ * Incoming frames are decoded on the event loop thread. Given a {@link #setWorkerExecutor(Executor) worker pool}
+ * they are passed to the input handler one at a time on its threads, so a handler which blocks on the JMS
+ * provider only holds up its own connection; reading stops while <code>maxPendingFrames</code> frames are waiting
+ * for the handler. Without a pool the handler is called on the event loop thread. Outgoing frames may be sent from
+ * any thread; they are
+ * written straight away if the socket can take them and otherwise queued until the loop sees the socket is writable.
+ * The queue is bounded by an {@link OutboundBudget}; a sender on the event loop thread itself never blocks on it.
+ *
+ * @version $Revision$
+ */
+public class NioTransport extends ServiceSupport implements StompHandler, HeartBeatSupport {
+    private static final Log log = LogFactory.getLog(NioTransport.class);
+    private static final int MAX_GATHER = 64;
+    private static final byte[] HEART_BEAT = new byte[]{'\n'};
+    private static final long MAX_THROTTLE_TICK = 1000;
+    private final SocketChannel channel;
+    private final NioEventLoop eventLoop;
+    private final StompMarshaller marshaller = new StompMarshaller();
+    private final LinkedList<ByteBuffer> writeQueue = new LinkedList<ByteBuffer>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final LinkedList<Boolean> droppable = new LinkedList<Boolean>();
+    private final OutboundBudget outboundBudget = new OutboundBudget();
+    private final InboundRateLimit inboundRateLimit = new InboundRateLimit();
+    private BufferPool bufferPool = BufferPool.getDirectPool();
+    private StompHandler inputHandler;
+    private SelectionKey key;
+    private boolean writeInterest;
+    private boolean throttled;
+    private boolean backlogged;
+    private long throttledUntil;
+    private Executor workerExecutor;
+    private SerialExecutor dispatcher;
+    private final AtomicInteger pendingFrames = new AtomicInteger();
+    private int maxPendingFrames = 64;
+    private ByteBuffer heldInput;
+    private int socketBufferSize = 64 * 1024;
+    private Boolean keepAlive;
+    private Boolean tcpNoDelay;
+    private Map socketOptions;
+    private long[] heartBeat = new long[]{10000, 10000};
+    private long idleTimeout;
+    private final HeartBeatMonitor heartBeatMonitor = new HeartBeatMonitor() {
+        protected void sendHeartBeat() {
+            try {
+                ByteBuffer buffer = createHeartBeat();
+                outboundBudget.forceReserve(buffer.remaining());
+                enqueue(buffer, false);
+            }
+            catch (IOException e) {
+                log.debug("Failed to send heart-beat to " + NioTransport.this + ": " + e, e);
+            }
+        }
+
+        protected void onReadTimeout(long silence) {
+            log.warn("Closing " + NioTransport.this + " as nothing has been read for " + silence + " ms");
+            eventLoop.execute(new Runnable() {
+                public void run() {
+                    try {
+                        NioTransport.this.stop();
+                    }
+                    catch (Exception e) {
+                        log.warn("Caught while closing: " + e + ". Now Closed", e);
+                    }
+                }
+            });
+        }
+    };
+
+    public NioTransport(SocketChannel channel, NioEventLoop eventLoop) {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+    }
+
+    /**
+     * A one way asynchronous send
+     */
+    public void onStompFrame(StompFrame command) throws Exception {
+        try {
+            checkStarted();
+            ByteBuffer buffer = encode(command);
+            boolean queued = false;
+            try {
+                if (reserve(command, buffer.remaining())) {
+                    // from here on the queue owns the buffer
+                    queued = true;
+                    enqueue(buffer, command.isDroppable());
+                }
+            }
+            finally {
+                if (!queued) {
+                    bufferPool.release(buffer);
+                }
+            }
+        }
+        finally {
+            command.release();
+        }
+    }
+
+    public long[] getHeartBeat() {
+        return heartBeat.clone();
+    }
+
+    /**
+     * Sets the heart-beat offered to clients which ask for one, such as <code>10000,10000</code>,
+     * or <code>0,0</code> to refuse heart-beating
+     */
+    public void setHeartBeat(String heartBeat) {
+        this.heartBeat = HeartBeatMonitor.parseHeartBeat(heartBeat);
+    }
+
+    public void startHeartBeat(long sendInterval, long receiveTimeout) {
+        heartBeatMonitor.start(sendInterval, (receiveTimeout > 0) ? receiveTimeout : idleTimeout);
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets how long in milliseconds a client which does not heart-beat may send nothing before its connection is
+     * closed, zero, the default, for no limit
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public void onException(Exception e) {
+        log.error("Caught: " + e, e);
+    }
+
+    public void close() throws Exception {
+        stop();
+    }
+
+    public String toString() {
+        Socket socket = channel.socket();
+        return "nio://" + socket.getInetAddress() + ":" + socket.getPort();
+    }
+
+    // Properties
+    //-------------------------------------------------------------------------
+    public StompHandler getInputHandler() {
+        return inputHandler;
+    }
+
+    public void setInputHandler(StompHandler inputHandler) {
+        this.inputHandler = inputHandler;
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public NioEventLoop getEventLoop() {
+        return eventLoop;
+    }
+
+    public String getRemoteAddress() {
+        return "" + channel.socket().getRemoteSocketAddress();
+    }
+
+    public int getSocketBufferSize() {
+        return socketBufferSize;
+    }
+
+    /**
+     * Sets the buffer size to use on the socket
+     */
+    public void setSocketBufferSize(int socketBufferSize) {
+        this.socketBufferSize = socketBufferSize;
+    }
+
+    public StompMarshaller getMarshaller() {
+        return marshaller;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Sets the pool encoded frames are held in until they have been written, which defaults to the pool of
+     * direct buffers shared by every connection
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    public Boolean getKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Enable/disable TCP KEEP_ALIVE mode
+     */
+    public void setKeepAlive(Boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public Boolean getTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * Enable/disable the TCP_NODELAY option
+     */
+    public void setTcpNoDelay(Boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public int getSpoolThreshold() {
+        return marshaller.getSpoolThreshold();
+    }
+
+    /**
+     * Sets the size in bytes above which the body of an incoming frame is streamed to a temporary file
+     * rather than being held in memory. Zero, the default, disables spooling.
+     */
+    public void setSpoolThreshold(int spoolThreshold) {
+        marshaller.setSpoolThreshold(spoolThreshold);
+    }
+
+    public String getSpoolDirectory() {
+        File directory = marshaller.getSpoolDirectory();
+        return (directory != null) ? directory.getPath() : null;
+    }
+
+    public void setSpoolDirectory(String spoolDirectory) {
+        marshaller.setSpoolDirectory((spoolDirectory != null) ? new File(spoolDirectory) : null);
+    }
+
+    public long getHighWatermark() {
+        return outboundBudget.getHighWatermark();
+    }
+
+    /**
+     * Sets the number of bytes of outgoing frames which may be queued before the slow consumer policy
+     * applies, zero or less for no limit
+     */
+    public void setHighWatermark(long highWatermark) {
+        outboundBudget.setHighWatermark(highWatermark);
+    }
+
+    public long getLowWatermark() {
+        return outboundBudget.getLowWatermark();
+    }
+
+    public void setLowWatermark(long lowWatermark) {
+        outboundBudget.setLowWatermark(lowWatermark);
+    }
+
+    public String getSlowConsumerPolicy() {
+        return outboundBudget.getPolicy().name();
+    }
+
+    /**
+     * Sets what happens when the high watermark is reached; one of <code>block</code> (the default),
+     * <code>drop-oldest</code> or <code>disconnect</code>
+     */
+    public void setSlowConsumerPolicy(String policy) {
+        outboundBudget.setPolicy(SlowConsumerPolicy.parse(policy));
+    }
+
+    /**
+     * Returns the metrics of the outbound queue, such as the number of bytes queued
+     */
+    public OutboundBudget getOutboundBudget() {
+        return outboundBudget;
+    }
+
+    public long getSendRate() {
+        return inboundRateLimit.getFrameRate();
+    }
+
+    /**
+     * Sets the most SEND frames per second the client may publish before reading from the socket is paused,
+     * zero, the default, for no limit
+     */
+    public void setSendRate(long sendRate) {
+        inboundRateLimit.setFrameRate(sendRate);
+    }
+
+    public long getSendByteRate() {
+        return inboundRateLimit.getByteRate();
+    }
+
+    /**
+     * Sets the most bytes of SEND bodies per second the client may publish before reading from the socket is
+     * paused, zero, the default, for no limit
+     */
+    public void setSendByteRate(long sendByteRate) {
+        inboundRateLimit.setByteRate(sendByteRate);
+    }
+
+    public String getSendDestinationRates() {
+        return inboundRateLimit.getDestinationRates();
+    }
+
+    /**
+     * Sets the publish limits of destination prefixes, see {@link InboundRateLimit#setDestinationRates(String)}
+     */
+    public void setSendDestinationRates(String sendDestinationRates) {
+        inboundRateLimit.setDestinationRates(sendDestinationRates);
+    }
+
+    /**
+     * Returns the limits on the rate the client may publish at along with how often they have paused reading
+     */
+    public InboundRateLimit getInboundRateLimit() {
+        return inboundRateLimit;
+    }
+
+    public Executor getWorkerExecutor() {
+        return workerExecutor;
+    }
+
+    /**
+     * Sets the pool the input handler is called on, which must be set before the transport is started.
+     * By default the handler is called on the event loop thread.
+     */
+    public void setWorkerExecutor(Executor workerExecutor) {
+        this.workerExecutor = workerExecutor;
+    }
+
+    public int getMaxPendingFrames() {
+        return maxPendingFrames;
+    }
+
+    /**
+     * Sets how many decoded frames may wait for the input handler before reading from the socket stops
+     */
+    public void setMaxPendingFrames(int maxPendingFrames) {
+        this.maxPendingFrames = Math.max(1, maxPendingFrames);
+    }
+
+    /**
+     * Returns the number of decoded frames waiting for, or being processed by, the input handler
+     */
+    public int getPendingFrames() {
+        return pendingFrames.get();
+    }
+
+    public void setSocketOptions(Map socketOptions) {
+        this.socketOptions = new HashMap(socketOptions);
+    }
+
+    // Implementation methods
+    //-------------------------------------------------------------------------
+    protected void doStart() throws Exception {
+        if (workerExecutor != null) {
+            dispatcher = new SerialExecutor(workerExecutor);
+        }
+        initialiseChannel();
+        channel.configureBlocking(false);
+        eventLoop.execute(new Runnable() {
+            public void run() {
+                register();
+            }
+        });
+        if (idleTimeout > 0) {
+            heartBeatMonitor.start(0, idleTimeout);
+        }
+    }
+
+    protected void doStop() throws Exception {
+        if (log.isDebugEnabled()) {
+            log.debug("Stopping transport " + this);
+        }
+        try {
+            if (inputHandler != null) {
+                closeInputHandler();
+            }
+        }
+        finally {
+            // closing the channel also cancels its key
+            heartBeatMonitor.stop();
+            channel.close();
+            outboundBudget.close();
+            synchronized (writeQueue) {
+                while (!writeQueue.isEmpty()) {
+                    ByteBuffer buffer = writeQueue.removeFirst();
+                    outboundBudget.release(buffer.limit());
+                    bufferPool.release(buffer);
+                }
+                droppable.clear();
+            }
+            if (heldInput != null) {
+                eventLoop.execute(new Runnable() {
+                    public void run() {
+                        releaseHeldInput();
+                    }
+                });
+            }
+        }
+    }
+
+    protected void register() {
+        try {
+            key = channel.register(eventLoop.getSelector(), SelectionKey.OP_READ, this);
+            updateInterest();
+        }
+        catch (ClosedChannelException e) {
+            // stopped before we were registered
+        }
+    }
+
+    /**
+     * Reads what is available on the socket and dispatches all the complete frames it contains
+     */
+    protected void onReadable(ByteBuffer readBuffer) throws Exception {
+        readBuffer.clear();
+        int count = channel.read(readBuffer);
+        if (count < 0) {
+            throw new EOFException("The connection was closed");
+        }
+        heartBeatMonitor.onRead();
+        readBuffer.flip();
+        onData(readBuffer);
+    }
+
+    /**
+     * Decodes the frames in the data read from the channel, passing each one to the input handler. While reading
+     * is paused by the {@link InboundRateLimit} the data is held back to be decoded once it resumes.
+     */
+    protected void onData(ByteBuffer data) throws Exception {
+        if (isReadSuspended()) {
+            holdInput(data);
+        }
+        else {
+            decode(data);
+        }
+    }
+
+    protected void decode(ByteBuffer data) throws Exception {
+        StompFrame frame;
+        while (!isStopped() && (frame = marshaller.unmarshal(data)) != null) {
+            // charge the frame before the handler releases it
+            long pause = inboundRateLimit.onFrame(frame);
+            dispatch(frame);
+            if (pause > 0) {
+                suspendReading(pause);
+            }
+            if (isReadSuspended()) {
+                holdInput(data);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Passes the frame to the input handler, on the worker pool if there is one. Once too many frames are
+     * waiting for the handler reading stops until it has caught up.
+     */
+    protected void dispatch(final StompFrame frame) throws Exception {
+        if (dispatcher == null) {
+            inputHandler.onStompFrame(frame);
+            return;
+        }
+        if (pendingFrames.incrementAndGet() >= maxPendingFrames) {
+            backlogged = true;
+            updateInterest();
+        }
+        dispatcher.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (!isStopped()) {
+                        inputHandler.onStompFrame(frame);
+                    }
+                    else {
+                        frame.release();
+                    }
+                }
+                catch (final Exception e) {
+                    eventLoop.execute(new Runnable() {
+                        public void run() {
+                            onReadFailure(e);
+                        }
+                    });
+                }
+                finally {
+                    if (pendingFrames.decrementAndGet() == maxPendingFrames / 2) {
+                        eventLoop.execute(new Runnable() {
+                            public void run() {
+                                resumeFromBacklog();
+                            }
+                        });
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes the input handler after the frames already passed to it, on the worker pool if there is one
+     */
+    protected void closeInputHandler() throws Exception {
+        if (dispatcher != null) {
+            try {
+                dispatcher.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            inputHandler.close();
+                        }
+                        catch (Exception e) {
+                            log.warn("Caught while closing: " + e + ". Now Closed", e);
+                        }
+                    }
+                });
+                return;
+            }
+            catch (RejectedExecutionException e) {
+                // the pool has been shut down
+            }
+        }
+        inputHandler.close();
+    }
+
+    /**
+     * Stops watching the socket for reads for the given number of milliseconds once the client has gone over its
+     * publish rate, so the data it keeps sending fills up the socket buffers until TCP flow control makes it wait.
+     * Must be called on the event loop thread.
+     */
+    protected void suspendReading(long millis) {
+        throttled = true;
+        throttledUntil = System.currentTimeMillis() + millis;
+        updateInterest();
+        scheduleResume(millis);
+    }
+
+    protected void scheduleResume(long millis) {
+        TimerWheel.getDefault().schedule(new Runnable() {
+            public void run() {
+                eventLoop.execute(new Runnable() {
+                    public void run() {
+                        resumeReading();
+                    }
+                });
+            }
+        }, Math.min(millis, MAX_THROTTLE_TICK));
+    }
+
+    /**
+     * Decodes the data held back while reading was paused then starts watching the socket for reads again.
+     * A throttled connection is not idle so this counts as reading as far as heart-beating is concerned.
+     */
+    protected void resumeReading() {
+        if (isStopped()) {
+            releaseHeldInput();
+            return;
+        }
+        heartBeatMonitor.onRead();
+        long remaining = throttledUntil - System.currentTimeMillis();
+        if (remaining > 0) {
+            scheduleResume(remaining);
+            return;
+        }
+        throttled = false;
+        resumeInput();
+    }
+
+    /**
+     * Starts reading again once the input handler has caught up, unless reading is also throttled
+     */
+    protected void resumeFromBacklog() {
+        if (isStopped()) {
+            releaseHeldInput();
+            return;
+        }
+        if (!backlogged || pendingFrames.get() >= maxPendingFrames) {
+            return;
+        }
+        backlogged = false;
+        resumeInput();
+    }
+
+    protected boolean isReadSuspended() {
+        return throttled || backlogged;
+    }
+
+    protected void resumeInput() {
+        if (isReadSuspended()) {
+            return;
+        }
+        ByteBuffer data = heldInput;
+        if (data != null) {
+            heldInput = null;
+            data.flip();
+            try {
+                decode(data);
+            }
+            catch (Exception e) {
+                onReadFailure(e);
+            }
+            finally {
+                bufferPool.release(data);
+            }
+        }
+        if (!isReadSuspended()) {
+            updateInterest();
+        }
+    }
+
+    /**
+     * Keeps data which has been read from the channel but not yet decoded
+     */
+    protected void holdInput(ByteBuffer data) {
+        if (!data.hasRemaining()) {
+            return;
+        }
+        if (heldInput == null) {
+            heldInput = bufferPool.acquire(data.remaining());
+        }
+        else if (heldInput.remaining() < data.remaining()) {
+            ByteBuffer larger = bufferPool.acquire(heldInput.position() + data.remaining());
+            heldInput.flip();
+            larger.put(heldInput);
+            bufferPool.release(heldInput);
+            heldInput = larger;
+        }
+        heldInput.put(data);
+    }
+
+    protected void releaseHeldInput() {
+        if (heldInput != null) {
+            bufferPool.release(heldInput);
+            heldInput = null;
+        }
+    }
+
+    /**
+     * Encodes the frame into a buffer borrowed from the pool, ready to be written
+     */
+    protected ByteBuffer encode(StompFrame command) {
+        ByteBuffer buffer = bufferPool.acquire(marshaller.getMaxEncodedLength(command));
+        try {
+            marshaller.marshal(command, buffer);
+        }
+        catch (RuntimeException e) {
+            bufferPool.release(buffer);
+            throw e;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Creates the data written when there is nothing else to send for the heart-beat interval
+     */
+    protected ByteBuffer createHeartBeat() {
+        return ByteBuffer.wrap(HEART_BEAT);
+    }
+
+    protected void onWritable() throws IOException {
+        synchronized (writeQueue) {
+            flush();
+            if (writeQueue.isEmpty()) {
+                writeInterest = false;
+                updateInterest();
+            }
+        }
+    }
+
+    protected void onReadFailure(Exception e) {
+        try {
+            stop();
+        }
+        catch (Exception e2) {
+            log.warn("Caught while closing: " + e2 + ". Now Closed", e2);
+        }
+
+        // no need to log EOF exceptions
+        if (!(e instanceof EOFException) && inputHandler != null) {
+            inputHandler.onException(e);
+        }
+    }
+
+    /**
+     * Writes as much of the queue as the socket will take without blocking, handing up to {@link #MAX_GATHER}
+     * frames to a single gathering write. Must be called holding the queue lock.
+     */
+    protected void flush() throws IOException {
+        while (!writeQueue.isEmpty()) {
+            int count = 0;
+            for (Iterator<ByteBuffer> iter = writeQueue.iterator(); iter.hasNext() && count < MAX_GATHER;) {
+                gather[count++] = iter.next();
+            }
+            ByteBuffer last = gather[count - 1];
+            try {
+                if (channel.write(gather, 0, count) > 0) {
+                    heartBeatMonitor.onWrite();
+                }
+            }
+            finally {
+                Arrays.fill(gather, 0, count, null);
+            }
+            while (!writeQueue.isEmpty() && !writeQueue.getFirst().hasRemaining()) {
+                ByteBuffer buffer = writeQueue.removeFirst();
+                outboundBudget.release(buffer.limit());
+                bufferPool.release(buffer);
+                droppable.removeFirst();
+            }
+            if (last.hasRemaining()) {
+                // the socket is full
+                return;
+            }
+        }
+    }
+
+    /**
+     * Updates the operations the selector watches for, must be called on the event loop thread
+     */
+    protected void updateInterest() {
+        if (key != null && key.isValid()) {
+            boolean write;
+            synchronized (writeQueue) {
+                write = writeInterest;
+            }
+            int ops = isReadSuspended() ? 0 : SelectionKey.OP_READ;
+            key.interestOps(write ? ops | SelectionKey.OP_WRITE : ops);
+        }
+    }
+
+    /**
+     * Queues an encoded frame whose size has already been reserved, writing it straight away if nothing is
+     * queued ahead of it. The queue takes over the buffer, giving it back to the pool once it has been written.
+     */
+    protected void enqueue(ByteBuffer buffer, boolean canDrop) throws IOException {
+        synchronized (writeQueue) {
+            if (isStopped()) {
+                outboundBudget.release(buffer.remaining());
+                bufferPool.release(buffer);
+                throw new IOException("The transport is not running.");
+            }
+            writeQueue.add(buffer);
+            droppable.add(Boolean.valueOf(canDrop));
+            if (writeQueue.size() == 1) {
+                flush();
+            }
+            if (!writeQueue.isEmpty() && !writeInterest) {
+                writeInterest = true;
+                eventLoop.execute(new Runnable() {
+                    public void run() {
+                        updateInterest();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Accounts for the frame in the outbound budget, applying the slow consumer policy if it is exhausted
+     *
+     * @return false if the frame itself was dropped
+     */
+    protected boolean reserve(StompFrame frame, int size) throws IOException {
+        if (outboundBudget.tryReserve(size)) {
+            return true;
+        }
+        switch (outboundBudget.getPolicy()) {
+            case DISCONNECT:
+                log.warn("Closing slow consumer " + this + " with " + outboundBudget.getQueuedBytes() + " bytes queued");
+                eventLoop.execute(new Runnable() {
+                    public void run() {
+                        onReadFailure(new IOException("Slow consumer disconnected"));
+                    }
+                });
+                throw new IOException("Slow consumer disconnected: " + this);
+            case DROP_OLDEST:
+                if (dropOldest(size)) {
+                    return true;
+                }
+                if (frame.isDroppable()) {
+                    outboundBudget.dropped(size);
+                    return false;
+                }
+                break;
+            default:
+                break;
+        }
+        if (eventLoop.inEventLoop()) {
+            // blocking would stop the loop from ever draining the queue
+            outboundBudget.forceReserve(size);
+        }
+        else {
+            outboundBudget.reserve(size);
+        }
+        return true;
+    }
+
+    /**
+     * Discards the oldest droppable frames which have not started to be written until there is room for the
+     * given number of bytes
+     */
+    protected boolean dropOldest(int size) {
+        synchronized (writeQueue) {
+            Iterator<ByteBuffer> buffers = writeQueue.iterator();
+            Iterator<Boolean> flags = droppable.iterator();
+            while (buffers.hasNext()) {
+                ByteBuffer buffer = buffers.next();
+                boolean flag = flags.next().booleanValue();
+                if (flag && buffer.position() == 0) {
+                    buffers.remove();
+                    flags.remove();
+                    outboundBudget.release(buffer.limit());
+                    outboundBudget.dropped(buffer.limit());
+                    bufferPool.release(buffer);
+                    if (outboundBudget.tryReserve(size)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Applies the socket options to the channel before it is registered with the event loop
+     */
+    protected void initialiseChannel() throws IOException {
+        initialiseSocket(channel.socket());
+    }
+
+    protected void initialiseSocket(Socket sock) throws SocketException {
+        if (socketOptions != null) {
+            IntrospectionSupport.setProperties(sock, socketOptions);
+        }
+        try {
+            sock.setReceiveBufferSize(socketBufferSize);
+            sock.setSendBufferSize(socketBufferSize);
+        }
+        catch (SocketException se) {
+            log.warn("Cannot set socket buffer size = " + socketBufferSize);
+            log.debug("Cannot set socket buffer size. Reason: " + se, se);
+        }
+        if (keepAlive != null) {
+            sock.setKeepAlive(keepAlive.booleanValue());
+        }
+        if (tcpNoDelay != null) {
+            sock.setTcpNoDelay(tcpNoDelay.booleanValue());
+        }
+    }
+
+    protected void checkStarted() throws IOException {
+        if (!isStarted()) {
+            throw new IOException("The transport is not running.");
+        }
+    }
+}
@@ -0,0 +1,446 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.nio;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.stomp.StompHandler;
+import org.codehaus.stomp.StompHandlerFactory;
+import org.codehaus.stomp.TransportServer;
+import org.codehaus.stomp.util.IOExceptionSupport;
+import org.codehaus.stomp.util.IntrospectionSupport;
+import org.codehaus.stomp.util.ServiceSupport;
+import org.codehaus.stomp.util.URISupport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A server for URIs such as <code>nio://0.0.0.0:61613</code> which serves all its connections from a fixed
+ * number of {@link NioEventLoop} threads rather than a thread per connection, for brokers with large numbers
+ * of mostly idle clients.
+ * <p/>
+ * The input handlers, which make blocking calls to the JMS provider, run on a shared pool of up to
+ * <code>workerThreads</code> threads so that a slow broker does not stall the event loops. Each connection's
+ * frames are still handled one at a time in order. Setting it to zero calls the handlers on the event loops.
+ * <p/>
+ * Options in the query of the URI are applied to this server first, such as <code>eventLoops</code>, then to
+ * each {@link NioTransport} and whatever remains to its socket. The query is left out of the connect URI and
+ * {@link #toString()}, so that options such as passwords do not appear in logs and thread names.
+ *
+ * @version $Revision$
+ */
+public class NioTransportServer extends ServiceSupport implements Runnable, TransportServer {
+    private static final Log log = LogFactory.getLog(NioTransportServer.class);
+    private static final long MIN_ACCEPT_BACKOFF = 10;
+    private static final long MAX_ACCEPT_BACKOFF = 1000;
+    private StompHandlerFactory stompHandlerFactory;
+    private ServerSocketChannel serverChannel;
+    private int backlog = 5000;
+    private int eventLoopCount = Runtime.getRuntime().availableProcessors();
+    private int readBufferSize = 64 * 1024;
+    private int workerThreads = 256;
+    private ThreadPoolExecutor workerExecutor;
+    private Map transportOptions;
+    private boolean daemon = true;
+    private boolean joinOnStop = true;
+    private Thread runner;
+    private NioEventLoop[] eventLoops;
+    private int nextEventLoop;
+    private URI connectURI;
+    private URI bindLocation;
+
+    public NioTransportServer(StompHandlerFactory stompHandlerFactory, URI location) {
+        this(stompHandlerFactory, location, true);
+    }
+
+    /**
+     * Derived classes pass false and call {@link #applyOptions()} at the end of their own constructor, as the
+     * initializers of their fields would otherwise overwrite the options
+     */
+    protected NioTransportServer(StompHandlerFactory stompHandlerFactory, URI location, boolean applyOptions) {
+        this.stompHandlerFactory = stompHandlerFactory;
+        this.connectURI = URISupport.removeQuery(location);
+        this.bindLocation = location;
+        this.transportOptions = URISupport.parseQuery(location);
+        if (applyOptions) {
+            applyOptions();
+        }
+    }
+
+    /**
+     * @return pretty print of this
+     */
+    public String toString() {
+        return "" + URISupport.removeQuery(getBindLocation());
+    }
+
+    /**
+     * pull channels from the ServerSocketChannel and hand them out to the event loops in turn. An accept which
+     * fails while the server channel is still open, such as when the process has run out of file descriptors, is
+     * retried after a pause which doubles with each failure in a row, so the server rides out the shortage rather
+     * than shutting down.
+     */
+    public void run() {
+        long backoff = MIN_ACCEPT_BACKOFF;
+        while (!isStopped()) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+                backoff = MIN_ACCEPT_BACKOFF;
+            }
+            catch (ClosedChannelException e) {
+                if (!isStopping() && !isStopped()) {
+                    onAcceptError(e);
+                }
+                return;
+            }
+            catch (IOException e) {
+                if (isStopping() || isStopped()) {
+                    return;
+                }
+                log.warn("Failed to accept a connection on " + this + ", retrying in " + backoff + " ms: " + e, e);
+                try {
+                    Thread.sleep(backoff);
+                }
+                catch (InterruptedException e1) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                backoff = Math.min(backoff * 2, MAX_ACCEPT_BACKOFF);
+                continue;
+            }
+            if (channel != null) {
+                if (isStopped()) {
+                    closeQuietly(channel);
+                }
+                else {
+                    setupConnection(channel);
+                }
+            }
+        }
+    }
+
+    /**
+     * Joins with the background thread until the transport is stopped
+     */
+    public void join() throws InterruptedException {
+        runner.join();
+    }
+
+    // Properties
+    //-------------------------------------------------------------------------
+    public boolean isDaemon() {
+        return daemon;
+    }
+
+    /**
+     * Sets whether the accept and event loop threads are daemon threads or not
+     */
+    public void setDaemon(boolean daemon) {
+        this.daemon = daemon;
+    }
+
+    public boolean isJoinOnStop() {
+        return joinOnStop;
+    }
+
+    /**
+     * Sets whether the background threads are joined with (waited for) on a stop
+     */
+    public void setJoinOnStop(boolean joinOnStop) {
+        this.joinOnStop = joinOnStop;
+    }
+
+    public int getEventLoops() {
+        return eventLoopCount;
+    }
+
+    /**
+     * Sets the number of selector threads serving the connections, by default one per processor
+     */
+    public void setEventLoops(int eventLoops) {
+        this.eventLoopCount = eventLoops;
+    }
+
+    public int getReadBufferSize() {
+        return readBufferSize;
+    }
+
+    /**
+     * Sets the size of the read buffer each event loop shares between its connections
+     */
+    public void setReadBufferSize(int readBufferSize) {
+        this.readBufferSize = readBufferSize;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * Sets the most threads the input handlers of the connections run on, which are only started as needed,
+     * or zero to run them on the event loops
+     */
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    public URI getConnectURI() {
+        return connectURI;
+    }
+
+    public void setConnectURI(URI location) {
+        this.connectURI = location;
+    }
+
+    public URI getBindLocation() {
+        return bindLocation;
+    }
+
+    public void setBindLocation(URI bindLocation) {
+        this.bindLocation = bindLocation;
+    }
+
+    public InetSocketAddress getSocketAddress() {
+        return (InetSocketAddress) serverChannel.socket().getLocalSocketAddress();
+    }
+
+    public void setTransportOption(Map transportOptions) {
+        this.transportOptions = transportOptions;
+    }
+
+    public Map getTransportOptions() {
+        return transportOptions;
+    }
+
+    /**
+     * Returns the number of open connections
+     */
+    public int getConnectionCount() {
+        int answer = 0;
+        NioEventLoop[] loops = eventLoops;
+        if (loops != null) {
+            for (int i = 0; i < loops.length; i++) {
+                answer += loops[i].getConnectionCount();
+            }
+        }
+        return answer;
+    }
+
+    // Implementation methods
+    //-------------------------------------------------------------------------
+    /**
+     * Applies the options of the URI which are properties of this server, leaving the rest for each transport
+     */
+    protected void applyOptions() {
+        IntrospectionSupport.setProperties(this, transportOptions);
+    }
+
+    protected void doStart() throws Exception {
+        bind();
+        if (workerThreads > 0) {
+            workerExecutor = new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    createThreadFactory("StompConnect NIO Worker"));
+            workerExecutor.allowCoreThreadTimeOut(true);
+        }
+        int count = Math.max(1, eventLoopCount);
+        eventLoops = new NioEventLoop[count];
+        for (int i = 0; i < count; i++) {
+            eventLoops[i] = new NioEventLoop("StompConnect NIO Event Loop " + (i + 1) + ": " + toString(), readBufferSize, daemon);
+            eventLoops[i].start();
+        }
+        log.info("Listening for connections at: " + getConnectURI() + " using " + count + " event loop(s)");
+        runner = new Thread(this, "StompConnect Server Thread: " + toString());
+        runner.setDaemon(daemon);
+        runner.start();
+    }
+
+    protected void doStop() throws Exception {
+        // lets stop accepting new connections first
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+
+        // now the event loops close all their connections
+        if (eventLoops != null) {
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i].stop(joinOnStop);
+            }
+        }
+
+        if (runner != null && joinOnStop) {
+            join();
+            runner = null;
+        }
+
+        // the handlers of the closed connections are closed on the workers
+        if (workerExecutor != null) {
+            workerExecutor.shutdown();
+            if (joinOnStop) {
+                workerExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            }
+            workerExecutor = null;
+        }
+    }
+
+    protected void bind() throws IOException {
+        URI bind = getBindLocation();
+
+        String host = bind.getHost();
+        host = (host == null || host.length() == 0) ? "localhost" : host;
+        InetAddress addr = InetAddress.getByName(host);
+
+        try {
+            serverChannel = ServerSocketChannel.open();
+            if (host.trim().equals("localhost") || addr.equals(InetAddress.getLocalHost())) {
+                serverChannel.socket().bind(new InetSocketAddress(bind.getPort()), backlog);
+            }
+            else {
+                serverChannel.socket().bind(new InetSocketAddress(addr, bind.getPort()), backlog);
+            }
+        }
+        catch (IOException e) {
+            throw IOExceptionSupport.create("Failed to bind to server socket: " + this + " due to: " + e, e);
+        }
+        try {
+            setConnectURI(new URI(bind.getScheme(), bind.getUserInfo(), resolveHostName(bind.getHost()), serverChannel.socket().getLocalPort(), bind.getPath(),
+                    null, null));
+        }
+        catch (URISyntaxException e) {
+            throw IOExceptionSupport.create(e);
+        }
+    }
+
+    protected ServerSocketChannel getServerChannel() {
+        return serverChannel;
+    }
+
+    protected void setServerChannel(ServerSocketChannel serverChannel) {
+        this.serverChannel = serverChannel;
+    }
+
+    protected NioEventLoop nextEventLoop() {
+        NioEventLoop answer = eventLoops[nextEventLoop];
+        nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+        return answer;
+    }
+
+    /**
+     * Creates and starts the transport for a newly accepted channel. A failure only closes that connection.
+     */
+    protected void setupConnection(SocketChannel channel) {
+        NioTransport transport = null;
+        try {
+            transport = createTransport(channel, nextEventLoop());
+            connectHandlers(transport);
+            transport.start();
+        }
+        catch (Exception e) {
+            log.warn("Failed to set up a connection on " + this + ": " + e, e);
+            if (transport != null) {
+                try {
+                    transport.stop();
+                }
+                catch (Exception e2) {
+                    log.debug("Caught while closing: " + e2, e2);
+                }
+            }
+            closeQuietly(channel);
+        }
+    }
+
+    protected void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            log.debug("Caught while closing: " + e, e);
+        }
+    }
+
+    protected void connectHandlers(NioTransport transport) throws Exception {
+        StompHandler inputHandler = stompHandlerFactory.createStompHandler(transport);
+        transport.setInputHandler(inputHandler);
+        transport.setWorkerExecutor(workerExecutor);
+    }
+
+    protected void onAcceptError(Exception e) {
+        log.error("Received accept error: " + e, e);
+        try {
+            stop();
+        }
+        catch (Exception e1) {
+            log.error("Failed to shut down: " + e, e);
+        }
+    }
+
+    /**
+     * Allow derived classes to override the Transport implementation that this transport server creates.
+     */
+    protected NioTransport createTransport(SocketChannel channel, NioEventLoop eventLoop) throws IOException {
+        Map options = (transportOptions != null) ? new HashMap(transportOptions) : new HashMap();
+        NioTransport transport = new NioTransport(channel, eventLoop);
+        // options which are not properties of the transport are applied to the socket
+        IntrospectionSupport.setProperties(transport, options);
+        transport.setSocketOptions(options);
+        return transport;
+    }
+
+    protected ThreadFactory createThreadFactory(final String name) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + " " + threadCount.incrementAndGet() + ": " + NioTransportServer.this);
+                thread.setDaemon(daemon);
+                return thread;
+            }
+        };
+    }
+
+    protected String resolveHostName(String hostName) throws UnknownHostException {
+        String result = hostName;
+        // hostname can be null for vm:// protocol ...
+        if (hostName != null && (hostName.equalsIgnoreCase("localhost") || hostName.equals("127.0.0.1"))) {
+            result = InetAddress.getLocalHost().getHostName();
+        }
+        return result;
+    }
+}
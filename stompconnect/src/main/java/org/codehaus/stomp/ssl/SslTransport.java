@@ -0,0 +1,404 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.ssl;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.stomp.nio.NioEventLoop;
+import org.codehaus.stomp.nio.NioTransport;
+import org.codehaus.stomp.util.BufferPool;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * A {@link NioTransport} which encrypts the connection with TLS using an {@link SSLEngine}, so TLS clients are
+ * served by the {@link NioEventLoop}s like any others rather than by a thread each.
+ * <p/>
+ * Records are decrypted on the event loop straight from the data read from the socket; only a partial record
+ * is kept between reads, in a direct buffer borrowed from the {@link BufferPool}. Frames are encrypted into pooled
+ * buffers by whichever thread sends them, in the order they are queued to be written. The expensive steps of a
+ * handshake, such as checking certificates, run on the handshake executor if one is set so that they do
+ * not hold up the other connections of the event loop.
+ * <p/>
+ * Encrypted records cannot be dropped from the write queue without breaking the session, so the
+ * <code>dropOldest</code> slow consumer policy only ever drops the frame being sent.
+ *
+ * @version $Revision$
+ */
+public class SslTransport extends NioTransport {
+    private static final Log log = LogFactory.getLog(SslTransport.class);
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final int MAX_RECORD_LENGTH = 16 * 1024;
+    private final SSLEngine engine;
+    private final String name;
+    private final Object wrapLock = new Object();
+    private Executor handshakeExecutor;
+    private volatile boolean handshakeComplete;
+
+    // only used on the event loop
+    private ByteBuffer netIn;
+    private boolean runningTasks;
+
+    public SslTransport(SocketChannel channel, NioEventLoop eventLoop, SSLEngine engine) {
+        super(channel, eventLoop);
+        this.engine = engine;
+        Socket socket = channel.socket();
+        this.name = "nio+ssl://" + socket.getInetAddress() + ":" + socket.getPort();
+    }
+
+    public String toString() {
+        return name;
+    }
+
+    // Properties
+    //-------------------------------------------------------------------------
+    public SSLEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Returns the TLS session, which is only complete once {@link #isHandshakeComplete()}
+     */
+    public SSLSession getSession() {
+        return engine.getSession();
+    }
+
+    public boolean isHandshakeComplete() {
+        return handshakeComplete;
+    }
+
+    public Executor getHandshakeExecutor() {
+        return handshakeExecutor;
+    }
+
+    /**
+     * Sets the executor which runs the delegated tasks of handshakes, or null to run them on the event loop
+     */
+    public void setHandshakeExecutor(Executor handshakeExecutor) {
+        this.handshakeExecutor = handshakeExecutor;
+    }
+
+    // Implementation methods
+    //-------------------------------------------------------------------------
+    protected void doStop() throws Exception {
+        try {
+            super.doStop();
+        }
+        finally {
+            engine.closeOutbound();
+            // the event loop may still be part way through the last read
+            getEventLoop().execute(new Runnable() {
+                public void run() {
+                    releaseNetIn();
+                }
+            });
+        }
+    }
+
+    /**
+     * Decrypts the records read from the socket, keeping any partial record for the next read
+     */
+    protected void onData(ByteBuffer data) throws Exception {
+        if (netIn == null) {
+            if (!runningTasks) {
+                unwrap(data);
+            }
+            if (data.hasRemaining() && !isStopped()) {
+                netIn = getBufferPool().acquire(Math.max(getSession().getPacketBufferSize(), data.remaining()));
+                netIn.put(data);
+            }
+        }
+        else {
+            if (netIn.remaining() < data.remaining()) {
+                ByteBuffer larger = getBufferPool().acquire(netIn.position() + data.remaining());
+                netIn.flip();
+                larger.put(netIn);
+                getBufferPool().release(netIn);
+                netIn = larger;
+            }
+            netIn.put(data);
+            if (!runningTasks) {
+                processNetIn();
+            }
+        }
+    }
+
+    protected void processNetIn() throws Exception {
+        netIn.flip();
+        try {
+            unwrap(netIn);
+        }
+        finally {
+            if (netIn != null) {
+                if (netIn.hasRemaining()) {
+                    netIn.compact();
+                }
+                else {
+                    releaseNetIn();
+                }
+            }
+        }
+    }
+
+    /**
+     * Decrypts as many records as the data holds, driving the handshake along the way and passing the plain
+     * text on to be decoded as Stomp frames
+     */
+    protected void unwrap(ByteBuffer data) throws Exception {
+        ByteBuffer appIn = null;
+        try {
+            while (!isStopped()) {
+                SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                    return;
+                }
+                if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    sendHandshake();
+                    if (engine.isOutboundDone()) {
+                        stop();
+                        return;
+                    }
+                    continue;
+                }
+                if (!data.hasRemaining()) {
+                    return;
+                }
+
+                if (appIn == null) {
+                    appIn = getBufferPool().acquire(getSession().getApplicationBufferSize());
+                }
+                SSLEngineResult result = engine.unwrap(data, appIn);
+                if (appIn.position() > 0) {
+                    // the decoder copies what it needs so the buffer can be reused straight away
+                    appIn.flip();
+                    super.onData(appIn);
+                    appIn.clear();
+                }
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+                    onHandshakeComplete();
+                }
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        // wait for the rest of the record
+                        return;
+                    case BUFFER_OVERFLOW:
+                        int size = Math.max(getSession().getApplicationBufferSize(), appIn.capacity() * 2);
+                        getBufferPool().release(appIn);
+                        appIn = getBufferPool().acquire(size);
+                        break;
+                    case CLOSED:
+                        // the client sent close_notify so answer it with ours
+                        engine.closeOutbound();
+                        if (engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                            stop();
+                            return;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        finally {
+            if (appIn != null) {
+                getBufferPool().release(appIn);
+            }
+        }
+    }
+
+    /**
+     * Encrypts the frame then queues it, so that records are queued in the same order they were encrypted
+     */
+    protected void enqueue(ByteBuffer buffer, boolean canDrop) throws IOException {
+        int length = buffer.remaining();
+        synchronized (wrapLock) {
+            ByteBuffer encrypted;
+            try {
+                encrypted = wrap(buffer);
+            }
+            catch (IOException e) {
+                getOutboundBudget().release(length);
+                throw e;
+            }
+            catch (RuntimeException e) {
+                getOutboundBudget().release(length);
+                throw e;
+            }
+            finally {
+                getBufferPool().release(buffer);
+            }
+            // the budget was reserved for the plain text
+            int overhead = encrypted.remaining() - length;
+            if (overhead > 0) {
+                getOutboundBudget().forceReserve(overhead);
+            }
+            else {
+                getOutboundBudget().release(-overhead);
+            }
+            super.enqueue(encrypted, canDrop);
+        }
+    }
+
+    /**
+     * Records which have been encrypted cannot be dropped without breaking the session
+     */
+    protected boolean dropOldest(int size) {
+        return false;
+    }
+
+    /**
+     * Encrypts all the data into a buffer borrowed from the pool, must be called holding the wrap lock
+     */
+    protected ByteBuffer wrap(ByteBuffer data) throws IOException {
+        int overhead = Math.max(getSession().getPacketBufferSize() - MAX_RECORD_LENGTH, 512);
+        int records = data.remaining() / MAX_RECORD_LENGTH + 1;
+        ByteBuffer out = getBufferPool().acquire(data.remaining() + records * overhead);
+        try {
+            while (true) {
+                SSLEngineResult result = engine.wrap(data, out);
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                }
+                else if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+                    onHandshakeComplete();
+                }
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    ByteBuffer larger = getBufferPool().acquire(out.capacity() + getSession().getPacketBufferSize());
+                    out.flip();
+                    larger.put(out);
+                    getBufferPool().release(out);
+                    out = larger;
+                }
+                else if (result.getStatus() == SSLEngineResult.Status.CLOSED || !data.hasRemaining()) {
+                    break;
+                }
+                else if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                    throw new IOException("Cannot send to " + this + " until the TLS handshake has completed");
+                }
+            }
+        }
+        catch (IOException e) {
+            getBufferPool().release(out);
+            throw e;
+        }
+        catch (RuntimeException e) {
+            getBufferPool().release(out);
+            throw e;
+        }
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Sends the next handshake message
+     */
+    protected void sendHandshake() throws IOException {
+        synchronized (wrapLock) {
+            ByteBuffer encrypted = wrap(EMPTY);
+            if (!encrypted.hasRemaining()) {
+                getBufferPool().release(encrypted);
+                return;
+            }
+            getOutboundBudget().forceReserve(encrypted.remaining());
+            super.enqueue(encrypted, false);
+        }
+    }
+
+    /**
+     * Runs the delegated tasks of the handshake on the handshake executor, carrying on with the handshake on the
+     * event loop once they are done. Data which arrives meanwhile is kept until then.
+     */
+    protected void runDelegatedTasks() {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            tasks.add(task);
+        }
+        runningTasks = true;
+        Runnable runner = new Runnable() {
+            public void run() {
+                try {
+                    for (Runnable task : tasks) {
+                        task.run();
+                    }
+                }
+                finally {
+                    getEventLoop().execute(new Runnable() {
+                        public void run() {
+                            resumeHandshake();
+                        }
+                    });
+                }
+            }
+        };
+        if (handshakeExecutor != null) {
+            handshakeExecutor.execute(runner);
+        }
+        else {
+            runner.run();
+        }
+    }
+
+    protected void resumeHandshake() {
+        runningTasks = false;
+        if (isStopped()) {
+            return;
+        }
+        try {
+            if (netIn != null) {
+                processNetIn();
+            }
+            else {
+                unwrap(EMPTY);
+            }
+        }
+        catch (Exception e) {
+            onReadFailure(e);
+        }
+    }
+
+    protected void onHandshakeComplete() {
+        if (!handshakeComplete) {
+            handshakeComplete = true;
+            if (log.isDebugEnabled()) {
+                SSLSession session = engine.getSession();
+                log.debug("TLS handshake with " + this + " complete using " + session.getProtocol() + " " + session.getCipherSuite());
+            }
+        }
+    }
+
+    protected void releaseNetIn() {
+        if (netIn != null) {
+            getBufferPool().release(netIn);
+            netIn = null;
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.ssl;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.stomp.StompHandlerFactory;
+import org.codehaus.stomp.nio.NioEventLoop;
+import org.codehaus.stomp.nio.NioTransport;
+import org.codehaus.stomp.nio.NioTransportServer;
+import org.codehaus.stomp.util.IOExceptionSupport;
+import org.codehaus.stomp.util.IntrospectionSupport;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A server for URIs such as <code>nio+ssl://0.0.0.0:61612</code> which accepts TLS connections and serves them
+ * from {@link NioEventLoop}s in the same way as <code>nio://</code>, see {@link SslTransport}.
+ * <p/>
+ * The {@link SSLContext} can be given with {@link #setSslContext(SSLContext)}; otherwise one is created from the
+ * <code>keyStore</code> and <code>trustStore</code> options, or the default context is used, which is configured
+ * with the usual <code>javax.net.ssl</code> system properties. Its server session cache lets clients resume
+ * their sessions when they reconnect, skipping the full handshake; <code>sessionCacheSize</code> and
+ * <code>sessionTimeout</code> size it. The cache of the default context is shared by every TLS user in the JVM
+ * so it is left as it is.
+ * <p/>
+ * The delegated tasks of handshakes run on a pool of <code>handshakeThreads</code> threads, or on the event loops
+ * if it is set to zero.
+ *
+ * @version $Revision$
+ */
+public class SslTransportServer extends NioTransportServer {
+    private static final Log log = LogFactory.getLog(SslTransportServer.class);
+    private SSLContext sslContext;
+    private String keyStore;
+    private String keyStorePassword;
+    private String keyStoreType = KeyStore.getDefaultType();
+    private String keyPassword;
+    private String trustStore;
+    private String trustStorePassword;
+    private boolean needClientAuth;
+    private boolean wantClientAuth;
+    private String enabledProtocols;
+    private String enabledCipherSuites;
+    private int sessionCacheSize = 10000;
+    private int sessionTimeout = 24 * 60 * 60;
+    private int handshakeThreads = Runtime.getRuntime().availableProcessors();
+    private ExecutorService handshakeExecutor;
+
+    public SslTransportServer(StompHandlerFactory stompHandlerFactory, URI location) {
+        super(stompHandlerFactory, location, false);
+        applyOptions();
+    }
+
+    // Properties
+    //-------------------------------------------------------------------------
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    public void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    public String getKeyStore() {
+        return keyStore;
+    }
+
+    /**
+     * Sets the file of the key store holding the certificate and private key of the server
+     */
+    public void setKeyStore(String keyStore) {
+        this.keyStore = keyStore;
+    }
+
+    public String getKeyStorePassword() {
+        return keyStorePassword;
+    }
+
+    public void setKeyStorePassword(String keyStorePassword) {
+        this.keyStorePassword = keyStorePassword;
+    }
+
+    public String getKeyStoreType() {
+        return keyStoreType;
+    }
+
+    /**
+     * Sets the type of the key and trust stores, such as <code>PKCS12</code> or <code>JKS</code>
+     */
+    public void setKeyStoreType(String keyStoreType) {
+        this.keyStoreType = keyStoreType;
+    }
+
+    public String getKeyPassword() {
+        return keyPassword;
+    }
+
+    /**
+     * Sets the password of the private key if it differs from that of the key store
+     */
+    public void setKeyPassword(String keyPassword) {
+        this.keyPassword = keyPassword;
+    }
+
+    public String getTrustStore() {
+        return trustStore;
+    }
+
+    /**
+     * Sets the file of the trust store used to check client certificates, by default those of the JVM
+     */
+    public void setTrustStore(String trustStore) {
+        this.trustStore = trustStore;
+    }
+
+    public String getTrustStorePassword() {
+        return trustStorePassword;
+    }
+
+    public void setTrustStorePassword(String trustStorePassword) {
+        this.trustStorePassword = trustStorePassword;
+    }
+
+    public boolean isNeedClientAuth() {
+        return needClientAuth;
+    }
+
+    public void setNeedClientAuth(boolean needClientAuth) {
+        this.needClientAuth = needClientAuth;
+    }
+
+    public boolean isWantClientAuth() {
+        return wantClientAuth;
+    }
+
+    public void setWantClientAuth(boolean wantClientAuth) {
+        this.wantClientAuth = wantClientAuth;
+    }
+
+    public String getEnabledProtocols() {
+        return enabledProtocols;
+    }
+
+    /**
+     * Sets a comma separated list of the protocols allowed, such as <code>TLSv1.3,TLSv1.2</code>
+     */
+    public void setEnabledProtocols(String enabledProtocols) {
+        this.enabledProtocols = enabledProtocols;
+    }
+
+    public String getEnabledCipherSuites() {
+        return enabledCipherSuites;
+    }
+
+    /**
+     * Sets a comma separated list of the cipher suites allowed
+     */
+    public void setEnabledCipherSuites(String enabledCipherSuites) {
+        this.enabledCipherSuites = enabledCipherSuites;
+    }
+
+    public int getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    /**
+     * Sets the most sessions kept for clients to resume, zero for no limit
+     */
+    public void setSessionCacheSize(int sessionCacheSize) {
+        this.sessionCacheSize = sessionCacheSize;
+    }
+
+    public int getSessionTimeout() {
+        return sessionTimeout;
+    }
+
+    /**
+     * Sets how long in seconds a session can be resumed for, zero for no limit
+     */
+    public void setSessionTimeout(int sessionTimeout) {
+        this.sessionTimeout = sessionTimeout;
+    }
+
+    public int getHandshakeThreads() {
+        return handshakeThreads;
+    }
+
+    /**
+     * Sets the number of threads running the delegated tasks of handshakes, zero to run them on the event loops
+     */
+    public void setHandshakeThreads(int handshakeThreads) {
+        this.handshakeThreads = handshakeThreads;
+    }
+
+    // Implementation methods
+    //-------------------------------------------------------------------------
+    protected void doStart() throws Exception {
+        boolean sharedContext = false;
+        if (sslContext == null) {
+            sslContext = createSslContext();
+            sharedContext = keyStore == null;
+        }
+        SSLSessionContext sessions = sharedContext ? null : sslContext.getServerSessionContext();
+        if (sessions != null) {
+            sessions.setSessionCacheSize(sessionCacheSize);
+            sessions.setSessionTimeout(sessionTimeout);
+        }
+        if (handshakeThreads > 0) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(handshakeThreads, handshakeThreads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "StompConnect TLS Handshake " + threadCount.incrementAndGet() + ": " + SslTransportServer.this);
+                    thread.setDaemon(isDaemon());
+                    return thread;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+            handshakeExecutor = executor;
+        }
+        super.doStart();
+    }
+
+    protected void doStop() throws Exception {
+        try {
+            super.doStop();
+        }
+        finally {
+            if (handshakeExecutor != null) {
+                handshakeExecutor.shutdownNow();
+                handshakeExecutor = null;
+            }
+        }
+    }
+
+    protected NioTransport createTransport(SocketChannel channel, NioEventLoop eventLoop) throws IOException {
+        Socket socket = channel.socket();
+        SSLEngine engine = sslContext.createSSLEngine(socket.getInetAddress().getHostAddress(), socket.getPort());
+        engine.setUseClientMode(false);
+        if (needClientAuth) {
+            engine.setNeedClientAuth(true);
+        }
+        else if (wantClientAuth) {
+            engine.setWantClientAuth(true);
+        }
+        if (enabledProtocols != null) {
+            engine.setEnabledProtocols(split(enabledProtocols));
+        }
+        if (enabledCipherSuites != null) {
+            engine.setEnabledCipherSuites(split(enabledCipherSuites));
+        }
+
+        Map options = (getTransportOptions() != null) ? new HashMap(getTransportOptions()) : new HashMap();
+        SslTransport transport = new SslTransport(channel, eventLoop, engine);
+        transport.setHandshakeExecutor(handshakeExecutor);
+        // options which are not properties of the transport are applied to the socket
+        IntrospectionSupport.setProperties(transport, options);
+        transport.setSocketOptions(options);
+        return transport;
+    }
+
+    /**
+     * Creates the context from the key and trust stores, or returns the default context if no key store is given
+     */
+    protected SSLContext createSslContext() throws IOException {
+        try {
+            if (keyStore == null) {
+                log.debug("No keyStore given so using the default SSLContext");
+                return SSLContext.getDefault();
+            }
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            String password = (keyPassword != null) ? keyPassword : keyStorePassword;
+            keyManagers.init(loadKeyStore(keyStore, keyStorePassword), (password != null) ? password.toCharArray() : null);
+
+            TrustManagerFactory trustManagers = null;
+            if (trustStore != null) {
+                trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                trustManagers.init(loadKeyStore(trustStore, trustStorePassword));
+            }
+
+            SSLContext answer = SSLContext.getInstance("TLS");
+            answer.init(keyManagers.getKeyManagers(), (trustManagers != null) ? trustManagers.getTrustManagers() : null, null);
+            return answer;
+        }
+        catch (GeneralSecurityException e) {
+            throw IOExceptionSupport.create("Failed to create the SSLContext for " + this + " due to: " + e, e);
+        }
+    }
+
+    protected KeyStore loadKeyStore(String file, String password) throws IOException, GeneralSecurityException {
+        KeyStore answer = KeyStore.getInstance(keyStoreType);
+        InputStream in = new FileInputStream(file);
+        try {
+            answer.load(in, (password != null) ? password.toCharArray() : null);
+        }
+        finally {
+            in.close();
+        }
+        return answer;
+    }
+
+    private static String[] split(String list) {
+        String[] answer = list.split(",");
+        for (int i = 0; i < answer.length; i++) {
+            answer[i] = answer[i].trim();
+        }
+        return answer;
+    }
+}
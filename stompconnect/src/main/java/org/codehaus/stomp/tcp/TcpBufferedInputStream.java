@@ -88,22 +88,9 @@ public class TcpBufferedInputStream extends FilterInputStream {
         else if (len == 0) {
             return 0;
         }
-        int n = 0;
-        for (; ;) {
-            int nread = readStream(b, off + n, len - n);
-            if (nread <= 0) {
-                return (n == 0) ? nread : n;
-            }
-            n += nread;
-            if (n >= len) {
-                return n;
-            }
-            // if not closed but no bytes available, return
-            InputStream input = in;
-            if (input != null && input.available() <= 0) {
-                return n;
-            }
-        }
+        // return whatever one read gives rather than asking the socket what else is available, which
+        // costs a system call each time and rarely finds anything more
+        return readStream(b, off, len);
     }
 
     public long skip(long n) throws IOException {
@@ -17,22 +17,31 @@
  */
 package org.codehaus.stomp.tcp;
 
+import org.codehaus.stomp.util.BufferPool;
+
 import java.io.EOFException;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * An optimized buffered outputstream for Tcp
+ * <p/>
+ * When created with a {@link BufferPool} the buffer is only borrowed from the pool when data is written and
+ * is given back on each flush, so an idle stream holds no buffer at all.
  *
  * @version $Revision$
  */
 public class TcpBufferedOutputStream extends FilterOutputStream {
     private final static int BUFFER_SIZE = 8192;
     private byte[] buffer;
+    private int offset;
     private int bufferlen;
     private int count;
     private boolean closed;
+    private BufferPool pool;
+    private ByteBuffer pooled;
 
     /**
      * Constructor
@@ -60,6 +69,27 @@ public class TcpBufferedOutputStream extends FilterOutputStream {
         bufferlen = size;
     }
 
+    /**
+     * Creates a new buffered output stream which borrows a buffer of the given size from the pool while there is
+     * data waiting to be flushed
+     *
+     * @param out  the underlying output stream.
+     * @param pool the pool of heap buffers
+     * @param size the buffer size.
+     * @throws IllegalArgumentException if size <= 0 or the pool does not hold heap buffers
+     */
+    public TcpBufferedOutputStream(OutputStream out, BufferPool pool, int size) {
+        super(out);
+        if (size <= 0) {
+            throw new IllegalArgumentException("Buffer size <= 0");
+        }
+        if (pool.isDirect()) {
+            throw new IllegalArgumentException("A stream needs a pool of heap buffers");
+        }
+        this.pool = pool;
+        bufferlen = size;
+    }
+
     /**
      * write a byte on to the stream
      *
@@ -70,7 +100,10 @@ public class TcpBufferedOutputStream extends FilterOutputStream {
         if ((bufferlen - count) < 1) {
             flush();
         }
-        buffer[count++] = (byte) b;
+        if (buffer == null) {
+            borrowBuffer();
+        }
+        buffer[offset + count++] = (byte) b;
     }
 
     /**
@@ -85,8 +118,11 @@ public class TcpBufferedOutputStream extends FilterOutputStream {
         if ((bufferlen - count) < len) {
             flush();
         }
-        if (buffer.length >= len) {
-            System.arraycopy(b, off, buffer, count, len);
+        if (bufferlen >= len) {
+            if (buffer == null) {
+                borrowBuffer();
+            }
+            System.arraycopy(b, off, buffer, offset + count, len);
             count += len;
         }
         else {
@@ -103,11 +139,24 @@ public class TcpBufferedOutputStream extends FilterOutputStream {
      */
     public void flush() throws IOException {
         if (count > 0 && out != null) {
-            out.write(buffer, 0, count);
-            count = 0;
+            try {
+                out.write(buffer, offset, count);
+            }
+            finally {
+                count = 0;
+                returnBuffer();
+            }
         }
     }
 
+    /**
+     * Throws away any data which has not been flushed, giving the buffer back to the pool
+     */
+    public void discard() {
+        count = 0;
+        returnBuffer();
+    }
+
     /**
      * close this stream
      *
@@ -116,6 +165,22 @@ public class TcpBufferedOutputStream extends FilterOutputStream {
     public void close() throws IOException {
         super.close();
         closed = true;
+        returnBuffer();
+    }
+
+    private void borrowBuffer() {
+        pooled = pool.acquire(bufferlen);
+        buffer = pooled.array();
+        offset = pooled.arrayOffset();
+    }
+
+    private void returnBuffer() {
+        if (pooled != null) {
+            pool.release(pooled);
+            pooled = null;
+            buffer = null;
+            offset = 0;
+        }
     }
 
     /**
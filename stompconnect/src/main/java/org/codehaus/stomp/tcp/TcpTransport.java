@@ -19,17 +19,28 @@ package org.codehaus.stomp.tcp;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.codehaus.stomp.HeartBeatMonitor;
+import org.codehaus.stomp.HeartBeatSupport;
+import org.codehaus.stomp.InboundRateLimit;
+import org.codehaus.stomp.OutboundBudget;
+import org.codehaus.stomp.SlowConsumerPolicy;
 import org.codehaus.stomp.StompFrame;
 import org.codehaus.stomp.StompHandler;
 import org.codehaus.stomp.StompMarshaller;
+import org.codehaus.stomp.util.AdaptiveBufferSize;
+import org.codehaus.stomp.util.BufferPool;
+import org.codehaus.stomp.util.ConnectionRegistry;
 import org.codehaus.stomp.util.IntrospectionSupport;
 import org.codehaus.stomp.util.ServiceSupport;
+import org.codehaus.stomp.util.ThreadSupport;
+import org.codehaus.stomp.util.TimerWheel;
 
 import javax.net.SocketFactory;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -38,14 +49,29 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * @version $Revision: $
  */
-public class TcpTransport extends ServiceSupport implements Runnable, StompHandler {
+public class TcpTransport extends ServiceSupport implements Runnable, StompHandler, HeartBeatSupport {
     private static final Log log = LogFactory.getLog(TcpTransport.class);
+    private static final int WRITER_THREADS = Integer.getInteger("org.codehaus.stomp.writerThreads", 64).intValue();
+    private static ThreadPoolExecutor writerExecutor;
+    private static final int IDLE_READ_SIZE = 512;
     private StompMarshaller marshaller = new StompMarshaller();
     private StompHandler inputHandler;
     private final URI remoteLocation;
@@ -54,9 +80,18 @@ public class TcpTransport extends ServiceSupport implements Runnable, StompHandl
     private int soTimeout = 0;
     private int socketBufferSize = 64 * 1024;
     private int ioBufferSize = 8 * 1024;
+    private int minReadBufferSize = 1024;
+    private int maxReadBufferSize = 64 * 1024;
+    private AdaptiveBufferSize readSize;
     private Socket socket;
     private DataOutputStream dataOut;
-    private DataInputStream dataIn;
+    private TcpBufferedOutputStream bufferedOut;
+    private InputStream dataIn;
+    private ByteBuffer readBuffer;
+    private byte[] idleBytes;
+    private ByteBuffer idleBuffer;
+    private ByteBuffer input;
+    private BufferPool bufferPool = BufferPool.getHeapPool();
     private boolean trace;
     private boolean useLocalHost = true;
     private SocketFactory socketFactory;
@@ -64,7 +99,53 @@ public class TcpTransport extends ServiceSupport implements Runnable, StompHandl
     private Boolean keepAlive;
     private Boolean tcpNoDelay;
     private boolean daemon = false;
+    private boolean virtualThreads;
     private Thread runner;
+    private ConnectionRegistry<TcpTransport> registry;
+    private long connectionId;
+    private volatile boolean draining;
+    private volatile boolean dispatching;
+    private final Queue<StompFrame> outbound = new ConcurrentLinkedQueue<StompFrame>();
+    private final AtomicBoolean writing = new AtomicBoolean(false);
+    private final AtomicInteger pendingSenders = new AtomicInteger();
+    private long flushLinger;
+    private long writeTimeout = 30000;
+    private volatile Thread lingeringWriter;
+    private volatile boolean heartBeatPending;
+    private long[] heartBeat = new long[]{10000, 10000};
+    private long idleTimeout;
+    private final HeartBeatMonitor heartBeatMonitor = new HeartBeatMonitor() {
+        protected void sendHeartBeat() {
+            writeHeartBeat();
+        }
+
+        protected void onReadTimeout(long silence) {
+            log.warn("Closing " + TcpTransport.this + " as nothing has been read for " + silence + " ms");
+            // stopping may block on the socket so keep it off the timer thread
+            executeWriter(new Runnable() {
+                public void run() {
+                    try {
+                        TcpTransport.this.stop();
+                    }
+                    catch (Exception e) {
+                        log.warn("Caught while closing: " + e + ". Now Closed", e);
+                    }
+                }
+            });
+        }
+    };
+    private final Runnable writeTask = new Runnable() {
+        public void run() {
+            writeQueued();
+        }
+    };
+    private final Runnable writeTimeoutTask = new Runnable() {
+        public void run() {
+            onWriteTimeout();
+        }
+    };
+    private final OutboundBudget outboundBudget = new OutboundBudget();
+    private final InboundRateLimit inboundRateLimit = new InboundRateLimit();
 
     /**
      * Initialize from a server Socket
@@ -97,12 +178,38 @@ public class TcpTransport extends ServiceSupport implements Runnable, StompHandl
     }
 
     /**
-     * A one way asynchronous send
+     * A one way asynchronous send. Frames are sent from the reader thread as well as the listener thread of
+     * every JMS session, so they are only queued here and a thread of a shared writer pool marshals everything
+     * queued into the output buffer before flushing it to the socket once. A burst of messages to a subscriber
+     * therefore goes out in as few writes as the buffer allows and frames from different threads are never
+     * interleaved.
+     * <p/>
+     * The sender never waits for the socket, so a slow consumer only holds up the writer. The queue is bounded by
+     * the {@link #setHighWatermark(long) high watermark}, beyond which the
+     * {@link #setSlowConsumerPolicy(String) slow consumer policy} applies to the sender.
      */
     public void onStompFrame(StompFrame command) throws Exception {
-        checkStarted();
-        marshaller.marshal(command, dataOut);
-        dataOut.flush();
+        pendingSenders.incrementAndGet();
+        try {
+            checkStarted();
+            if (!reserve(command)) {
+                command.release();
+                return;
+            }
+            outbound.add(command);
+            Thread writer = lingeringWriter;
+            if (writer != null) {
+                LockSupport.unpark(writer);
+            }
+        }
+        catch (IOException e) {
+            command.release();
+            throw e;
+        }
+        finally {
+            pendingSenders.decrementAndGet();
+        }
+        scheduleWrite();
     }
 
     public void onException(Exception e) {
@@ -126,15 +233,36 @@ public class TcpTransport extends ServiceSupport implements Runnable, StompHandl
     public void run() {
         log.trace("StompConnect TCP consumer thread starting");
         while (!isStopped()) {
+            // once draining we still finish the frames which had arrived
+            if (draining && !hasBufferedInput()) {
+                break;
+            }
             try {
-                StompFrame frame = marshaller.unmarshal(dataIn);
-                inputHandler.onStompFrame(frame);
+                StompFrame frame = readFrame();
+                if (frame == null) {
+                    // the drain began before the next frame arrived
+                    break;
+                }
+                // charge the frame before the handler releases it
+                long pause = inboundRateLimit.onFrame(frame);
+                try {
+                    inputHandler.onStompFrame(frame);
+                }
+                finally {
+                    dispatching = hasBufferedInput();
+                }
+                if (pause > 0) {
+                    throttle(pause);
+                }
             }
             catch (SocketTimeoutException e) {
             }
             catch (InterruptedIOException e) {
             }
             catch (Exception e) {
+                dispatching = false;
+                // the socket fails once we have been stopped by another thread
+                boolean expected = isStopped();
                 try {
                     stop();
                 }
@@ -143,11 +271,45 @@ public class TcpTransport extends ServiceSupport implements Runnable, StompHandl
                 }
 
                 // no need to log EOF exceptions
-                if (!(e instanceof EOFException)) {
+                if (!(e instanceof EOFException) && !expected) {
                     inputHandler.onException(e);
                 }
             }
         }
+        releaseReadBuffer();
+    }
+
+    public long[] getHeartBeat() {
+        return heartBeat.clone();
+    }
+
+    /**
+     * Sets the heart-beat offered to clients which ask for one, as the two values of the <code>heart-beat</code>
+     * header such as <code>10000,10000</code>; the shortest interval in milliseconds the server will send at and
+     * the interval it would like to receive at. Use <code>0,0</code> to refuse heart-beating.
+     */
+    public void setHeartBeat(String heartBeat) {
+        this.heartBeat = HeartBeatMonitor.parseHeartBeat(heartBeat);
+    }
+
+    public void startHeartBeat(long sendInterval, long receiveTimeout) {
+        heartBeatMonitor.start(sendInterval, (receiveTimeout > 0) ? receiveTimeout : idleTimeout);
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets how long in milliseconds a client which does not heart-beat may send nothing before its connection is
+     * closed, zero, the default, for no limit
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public HeartBeatMonitor getHeartBeatMonitor() {
+        return heartBeatMonitor;
     }
 
     // Properties
@@ -160,6 +322,41 @@ public class TcpTransport extends ServiceSupport implements Runnable, StompHandl
         this.inputHandler = inputHandler;
     }
 
+    /**
+     * Returns the id of this connection in the registry of its server or zero if it is not registered
+     */
+    public long getConnectionId() {
+        return connectionId;
+    }
+
+    /**
+     * Stops reading frames once the frame being processed, if any, has been handled, so that the transport
+     * can be stopped without losing the effects of a SEND or COMMIT or the receipt for it, see {@link #isDrained()}
+     */
+    public void drain() {
+        draining = true;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Returns true if no frame is being received or processed and everything queued to send has been written to
+     * the socket
+     */
+    public boolean isDrained() {
+        return !dispatching && pendingSenders.get() == 0 && outbound.isEmpty() && !writing.get();
+    }
+
+    /**
+     * Registers this transport with the registry of its server, from which it removes itself when it is stopped
+     */
+    public void setConnectionRegistry(ConnectionRegistry<TcpTransport> registry) {
+        this.registry = registry;
+        this.connectionId = registry.register(this);
+    }
+
     public boolean isDaemon() {
         return daemon;
     }
@@ -168,6 +365,129 @@ public class TcpTransport extends ServiceSupport implements Runnable, StompHandl
         this.daemon = daemon;
     }
 
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Sets whether the blocking read loop runs on a virtual thread rather than a platform thread, so that
+     * large numbers of mostly idle connections do not each hold a thread stack. This requires Java 21 or
+     * later; on older JVMs a platform thread is used.
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public long getFlushLinger() {
+        return flushLinger;
+    }
+
+    /**
+     * Sets the longest time in microseconds the writer holds back a flush waiting for more frames to be queued, so
+     * that frames sent close together go out in the same TCP segment. The wait is counted from the start of the
+     * batch, so no frame is delayed by more than this. Zero, the default, flushes at the end of each batch of
+     * queued frames.
+     */
+    public void setFlushLinger(long flushLinger) {
+        this.flushLinger = flushLinger;
+    }
+
+    public long getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    /**
+     * Sets the longest time in milliseconds a write to the socket may be blocked for before the client is treated
+     * as a slow consumer and disconnected, which frees the writer thread. Zero or less waits for ever.
+     */
+    public void setWriteTimeout(long writeTimeout) {
+        this.writeTimeout = writeTimeout;
+    }
+
+    public long getHighWatermark() {
+        return outboundBudget.getHighWatermark();
+    }
+
+    /**
+     * Sets the number of bytes of outgoing frames which may be queued before the slow consumer policy
+     * applies, zero or less for no limit
+     */
+    public void setHighWatermark(long highWatermark) {
+        outboundBudget.setHighWatermark(highWatermark);
+    }
+
+    public long getLowWatermark() {
+        return outboundBudget.getLowWatermark();
+    }
+
+    /**
+     * Sets the number of queued bytes blocked senders wait for the queue to drain down to
+     */
+    public void setLowWatermark(long lowWatermark) {
+        outboundBudget.setLowWatermark(lowWatermark);
+    }
+
+    public String getSlowConsumerPolicy() {
+        return outboundBudget.getPolicy().name();
+    }
+
+    /**
+     * Sets what happens when the high watermark is reached; one of <code>block</code> (the default),
+     * <code>drop-oldest</code> or <code>disconnect</code>
+     */
+    public void setSlowConsumerPolicy(String policy) {
+        outboundBudget.setPolicy(SlowConsumerPolicy.parse(policy));
+    }
+
+    /**
+     * Returns the metrics of the outbound queue, such as the number of bytes queued
+     */
+    public OutboundBudget getOutboundBudget() {
+        return outboundBudget;
+    }
+
+    public long getSendRate() {
+        return inboundRateLimit.getFrameRate();
+    }
+
+    /**
+     * Sets the most SEND frames per second the client may publish before reading from the socket is paused,
+     * zero, the default, for no limit
+     */
+    public void setSendRate(long sendRate) {
+        inboundRateLimit.setFrameRate(sendRate);
+    }
+
+    public long getSendByteRate() {
+        return inboundRateLimit.getByteRate();
+    }
+
+    /**
+     * Sets the most bytes of SEND bodies per second the client may publish before reading from the socket is
+     * paused, zero, the default, for no limit
+     */
+    public void setSendByteRate(long sendByteRate) {
+        inboundRateLimit.setByteRate(sendByteRate);
+    }
+
+    public String getSendDestinationRates() {
+        return inboundRateLimit.getDestinationRates();
+    }
+
+    /**
+     * Sets the publish limits of destination prefixes, see {@link InboundRateLimit#setDestinationRates(String)}
+     */
+    public void setSendDestinationRates(String sendDestinationRates) {
+        inboundRateLimit.setDestinationRates(sendDestinationRates);
+    }
+
+    /**
+     * Returns the limits on the rate the client may publish at along with how often they have paused reading
+     */
+    public InboundRateLimit getInboundRateLimit() {
+        return inboundRateLimit;
+    }
+
     public boolean isTrace() {
         return trace;
     }
@@ -258,6 +578,71 @@ public class TcpTransport extends ServiceSupport implements Runnable, StompHandl
         this.ioBufferSize = ioBufferSize;
     }
 
+    public int getMinReadBufferSize() {
+        return minReadBufferSize;
+    }
+
+    /**
+     * Sets the smallest size the read buffer shrinks to when a connection only sends small frames
+     */
+    public void setMinReadBufferSize(int minReadBufferSize) {
+        this.minReadBufferSize = minReadBufferSize;
+    }
+
+    public int getMaxReadBufferSize() {
+        return maxReadBufferSize;
+    }
+
+    /**
+     * Sets the largest size the read buffer grows to when a connection keeps filling it, the
+     * {@link #setIoBufferSize(int) ioBufferSize} being the size it starts at
+     */
+    public void setMaxReadBufferSize(int maxReadBufferSize) {
+        this.maxReadBufferSize = maxReadBufferSize;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Sets the pool the read and write buffers are borrowed from while data is in flight, which defaults to the
+     * pool of heap buffers shared by every connection. A socket stream can only read and write byte arrays, so
+     * the pool must hold heap buffers; direct buffers are only of use to the channels of the nio transports.
+     *
+     * @throws IllegalArgumentException if the pool holds direct buffers
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        if (bufferPool.isDirect()) {
+            throw new IllegalArgumentException("A tcp:// transport needs a pool of heap buffers");
+        }
+        this.bufferPool = bufferPool;
+    }
+
+    public int getSpoolThreshold() {
+        return marshaller.getSpoolThreshold();
+    }
+
+    /**
+     * Sets the size in bytes above which the body of an incoming frame is streamed to a temporary file
+     * rather than being held in memory. Zero, the default, disables spooling.
+     */
+    public void setSpoolThreshold(int spoolThreshold) {
+        marshaller.setSpoolThreshold(spoolThreshold);
+    }
+
+    public String getSpoolDirectory() {
+        File directory = marshaller.getSpoolDirectory();
+        return (directory != null) ? directory.getPath() : null;
+    }
+
+    /**
+     * Sets the directory large bodies are spooled to, by default the temporary directory of the JVM
+     */
+    public void setSpoolDirectory(String spoolDirectory) {
+        marshaller.setSpoolDirectory((spoolDirectory != null) ? new File(spoolDirectory) : null);
+    }
+
     public void setSocketOptions(Map socketOptions) {
         this.socketOptions = new HashMap(socketOptions);
     }
@@ -313,8 +698,7 @@ public class TcpTransport extends ServiceSupport implements Runnable, StompHandl
     protected void doStart() throws Exception {
         connect();
 
-        runner = new Thread(this, "StompConnect Transport: " + toString());
-        runner.setDaemon(daemon);
+        runner = ThreadSupport.createThread(this, "StompConnect Transport: " + toString(), daemon, virtualThreads);
         runner.start();
     }
 
@@ -366,22 +750,375 @@ public class TcpTransport extends ServiceSupport implements Runnable, StompHandl
 
         initialiseSocket(socket);
         initializeStreams();
+        if (idleTimeout > 0) {
+            heartBeatMonitor.start(0, idleTimeout);
+        }
     }
 
     protected void doStop() throws Exception {
         if (log.isDebugEnabled()) {
             log.debug("Stopping transport " + this);
         }
-        if (inputHandler != null) {
-            inputHandler.close();
+        outboundBudget.close();
+        heartBeatMonitor.stop();
+        try {
+            if (inputHandler != null) {
+                inputHandler.close();
+            }
+
+            // Closing the streams flush the sockets before closing.. if the socket
+            // is hung.. then this hangs the close.
+            // closeStreams();
+            if (socket != null) {
+                socket.close();
+            }
+            discardOutbound();
+        }
+        finally {
+            if (registry != null) {
+                registry.unregister(connectionId, this);
+            }
         }
+    }
 
-        // Closing the streams flush the sockets before closing.. if the socket
-        // is hung.. then this hangs the close.
-        // closeStreams();
-        if (socket != null) {
-            socket.close();
+    /**
+     * Reads the next frame, decoding whole blocks of data from the socket at a time.
+     * A partially read frame is kept by the marshaller so a socket timeout does not lose any data.
+     * <p/>
+     * Between frames we wait with a read into a small array the connection keeps, which is usually enough for
+     * heart-beats and small frames. A read buffer is only borrowed from the pool while the rest of a larger frame
+     * is arriving, so an idle connection holds no pooled buffer.
+     * <p/>
+     * The connection counts as busy for {@link #isDrained()} from the first byte of a frame until the data read
+     * has all been dispatched. A frame which starts after {@link #drain()} is not read.
+     *
+     * @return the frame or null if the connection is being drained
+     */
+    protected StompFrame readFrame() throws IOException {
+        while (true) {
+            if (input != null && input.hasRemaining()) {
+                StompFrame frame = marshaller.unmarshal(input);
+                if (frame != null) {
+                    return frame;
+                }
+            }
+            if (!marshaller.hasPartialFrame()) {
+                // nothing is buffered so we are between frames
+                releaseReadBuffer();
+                dispatching = false;
+                if (draining) {
+                    return null;
+                }
+                int count = dataIn.read(idleBytes, 0, idleBytes.length);
+                if (count < 0) {
+                    throw new EOFException("The connection was closed");
+                }
+                // mark the connection busy before looking at draining, which drain() sets before looking at us
+                dispatching = true;
+                if (draining) {
+                    dispatching = false;
+                    return null;
+                }
+                idleBuffer.clear();
+                idleBuffer.limit(count);
+                input = idleBuffer;
+            }
+            else {
+                int size = readSize.getSize();
+                if (readBuffer == null || readBuffer.capacity() < size || readBuffer.capacity() >= size * 2) {
+                    // everything has been decoded so we can swap to a buffer of the predicted size
+                    releaseReadBuffer();
+                    readBuffer = bufferPool.acquire(size);
+                }
+                int count = read(readBuffer);
+                if (count < 0) {
+                    throw new EOFException("The connection was closed");
+                }
+                readSize.record(count);
+                input = readBuffer;
+            }
+            heartBeatMonitor.onRead();
+        }
+    }
+
+    /**
+     * Reads what the socket has into the buffer, leaving it ready to be decoded
+     *
+     * @return the number of bytes read or -1 at the end of the stream
+     */
+    protected int read(ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        int count = dataIn.read(buffer.array(), buffer.arrayOffset(), buffer.capacity());
+        buffer.limit(Math.max(count, 0));
+        buffer.position(0);
+        return count;
+    }
+
+    /**
+     * Stops reading for the given number of milliseconds once the client has gone over its publish rate. The data
+     * it keeps sending fills up the socket buffers until TCP flow control makes it wait. A throttled connection
+     * is not idle so this counts as reading as far as heart-beating is concerned.
+     */
+    protected void throttle(long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        long remaining = millis;
+        while (remaining > 0 && !isStopped()) {
+            try {
+                Thread.sleep(Math.min(remaining, 100));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            heartBeatMonitor.onRead();
+            remaining = deadline - System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Returns true if data has been read which has not yet been dispatched
+     */
+    protected boolean hasBufferedInput() {
+        return (input != null && input.hasRemaining()) || marshaller.hasPartialFrame();
+    }
+
+    protected void releaseReadBuffer() {
+        if (readBuffer != null) {
+            if (input == readBuffer) {
+                input = null;
+            }
+            bufferPool.release(readBuffer);
+            readBuffer = null;
+        }
+    }
+
+    /**
+     * Asks the writer for a heart-beat, which it leaves out if it has frames to write anyway. This never blocks
+     * so it is safe to call from the timer thread.
+     */
+    protected void writeHeartBeat() {
+        if (!isStarted()) {
+            return;
+        }
+        heartBeatPending = true;
+        scheduleWrite();
+    }
+
+    /**
+     * Returns the pool of writer threads shared by all the connections which do not use virtual threads. Its size
+     * is set with the <code>org.codehaus.stomp.writerThreads</code> system property and a writer blocked on a
+     * socket only holds on to its thread for the {@link #setWriteTimeout(long) write timeout}.
+     */
+    protected static synchronized Executor getWriterExecutor() {
+        if (writerExecutor == null) {
+            writerExecutor = new ThreadPoolExecutor(WRITER_THREADS, WRITER_THREADS, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "StompConnect Writer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            writerExecutor.allowCoreThreadTimeOut(true);
+        }
+        return writerExecutor;
+    }
+
+    /**
+     * Hands the queued frames to a writer unless a write is already in progress. With
+     * {@link #setVirtualThreads(boolean) virtual threads} each batch is written on a virtual thread of its own,
+     * otherwise on the shared writer pool.
+     */
+    protected void scheduleWrite() {
+        if ((!outbound.isEmpty() || heartBeatPending) && writing.compareAndSet(false, true)) {
+            executeWriter(writeTask);
+        }
+    }
+
+    protected void executeWriter(Runnable task) {
+        if (virtualThreads && ThreadSupport.isVirtualThreadsAvailable()) {
+            ThreadSupport.createThread(task, "StompConnect Writer", true, true).start();
+        }
+        else {
+            getWriterExecutor().execute(task);
+        }
+    }
+
+    /**
+     * Runs on a writer thread. A failed write closes the socket so the reader thread then stops the transport, as
+     * does a write which is still blocked once the write timeout has passed.
+     */
+    protected void writeQueued() {
+        TimerWheel.Timeout timeout = null;
+        if (writeTimeout > 0) {
+            timeout = TimerWheel.getDefault().schedule(writeTimeoutTask, writeTimeout);
+        }
+        try {
+            writeOutbound();
+        }
+        catch (IOException e) {
+            if (!isStopped()) {
+                log.debug("Failed to write to " + this + ": " + e, e);
+                try {
+                    socket.close();
+                }
+                catch (IOException e2) {
+                    log.debug("Caught while closing: " + e2, e2);
+                }
+            }
+        }
+        finally {
+            if (timeout != null) {
+                timeout.cancel();
+            }
+            writing.set(false);
+        }
+        // check again after giving up the writer role in case a frame was queued just before
+        scheduleWrite();
+    }
+
+    /**
+     * Writes the queued frames, or a heart-beat if one is due and there are none, must only be called by the
+     * thread holding the writer role
+     */
+    protected void writeOutbound() throws IOException {
+        long deadline = System.nanoTime() + flushLinger * 1000;
+        boolean heartBeatDue = heartBeatPending;
+        heartBeatPending = false;
+        try {
+            do {
+                StompFrame frame;
+                while ((frame = outbound.poll()) != null) {
+                    heartBeatDue = false;
+                    try {
+                        outboundBudget.release(marshaller.getMaxEncodedLength(frame));
+                        marshaller.marshal(frame, dataOut);
+                    }
+                    finally {
+                        frame.release();
+                    }
+                }
+            }
+            while (lingerForMore(deadline));
+            if (heartBeatDue) {
+                dataOut.write('\n');
+            }
+            dataOut.flush();
+            heartBeatMonitor.onWrite();
+        }
+        catch (IOException e) {
+            bufferedOut.discard();
+            discardOutbound();
+            throw e;
+        }
+    }
+
+    /**
+     * Decides whether to hold back the flush because more frames may be on their way. When the queue is empty the
+     * writer parks until a sender queues another frame or the deadline of the batch passes.
+     *
+     * @return true if there are more frames to write before flushing
+     */
+    protected boolean lingerForMore(long deadline) {
+        if (!outbound.isEmpty()) {
+            return true;
+        }
+        if (flushLinger <= 0) {
+            return false;
+        }
+        lingeringWriter = Thread.currentThread();
+        try {
+            long remaining;
+            while (outbound.isEmpty() && (remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, remaining);
+            }
+        }
+        finally {
+            lingeringWriter = null;
+        }
+        return !outbound.isEmpty();
+    }
+
+    /**
+     * Called by the timer when a batch has been writing for longer than the write timeout
+     */
+    protected void onWriteTimeout() {
+        if (isStarted()) {
+            try {
+                disconnectSlowConsumer("as a write has been blocked for over " + writeTimeout + " ms");
+            }
+            catch (IOException e) {
+                log.debug("Caught while closing: " + e, e);
+            }
+        }
+    }
+
+    /**
+     * Closes the socket of a client which is not keeping up, after which the reader thread fails and stops the
+     * transport
+     */
+    protected void disconnectSlowConsumer(String reason) throws IOException {
+        log.warn("Closing slow consumer " + this + " " + reason);
+        socket.close();
+    }
+
+    protected void discardOutbound() {
+        StompFrame frame;
+        while ((frame = outbound.poll()) != null) {
+            outboundBudget.release(marshaller.getMaxEncodedLength(frame));
+            frame.release();
+        }
+    }
+
+    /**
+     * Accounts for the frame in the outbound budget, applying the slow consumer policy if it is exhausted.
+     * As frames are only marshalled by the writer, the budget counts the upper bound of their encoded size.
+     *
+     * @return false if the frame itself was dropped
+     */
+    protected boolean reserve(StompFrame frame) throws IOException {
+        int size = marshaller.getMaxEncodedLength(frame);
+        if (outboundBudget.tryReserve(size)) {
+            return true;
+        }
+        switch (outboundBudget.getPolicy()) {
+            case DISCONNECT:
+                disconnectSlowConsumer("with " + outboundBudget.getQueuedBytes() + " bytes queued");
+                throw new IOException("Slow consumer disconnected: " + this);
+            case DROP_OLDEST:
+                if (dropOldest(size)) {
+                    return true;
+                }
+                if (frame.isDroppable()) {
+                    outboundBudget.dropped(size);
+                    return false;
+                }
+                break;
+            default:
+                break;
+        }
+        outboundBudget.reserve(size);
+        return true;
+    }
+
+    /**
+     * Discards the oldest droppable frames until there is room for the given number of bytes
+     */
+    protected boolean dropOldest(int size) {
+        for (Iterator<StompFrame> iter = outbound.iterator(); iter.hasNext();) {
+            StompFrame frame = iter.next();
+            // the writer may already have taken it
+            if (frame.isDroppable() && outbound.remove(frame)) {
+                int frameSize = marshaller.getMaxEncodedLength(frame);
+                outboundBudget.release(frameSize);
+                outboundBudget.dropped(frameSize);
+                frame.release();
+                if (outboundBudget.tryReserve(size)) {
+                    return true;
+                }
+            }
         }
+        return false;
     }
 
     protected void checkStarted() throws IOException {
@@ -391,10 +1128,13 @@ public class TcpTransport extends ServiceSupport implements Runnable, StompHandl
     }
 
     protected void initializeStreams() throws Exception {
-        TcpBufferedInputStream buffIn = new TcpBufferedInputStream(socket.getInputStream(), ioBufferSize);
-        this.dataIn = new DataInputStream(buffIn);
-        TcpBufferedOutputStream buffOut = new TcpBufferedOutputStream(socket.getOutputStream(), ioBufferSize);
-        this.dataOut = new DataOutputStream(buffOut);
+        // the buffers are borrowed from the pool as needed so an idle connection holds none
+        this.dataIn = socket.getInputStream();
+        this.idleBytes = new byte[IDLE_READ_SIZE];
+        this.idleBuffer = ByteBuffer.wrap(idleBytes);
+        this.readSize = new AdaptiveBufferSize(minReadBufferSize, ioBufferSize, maxReadBufferSize);
+        this.bufferedOut = new TcpBufferedOutputStream(socket.getOutputStream(), bufferPool, ioBufferSize);
+        this.dataOut = new DataOutputStream(bufferedOut);
     }
 
     protected void closeStreams() throws IOException {
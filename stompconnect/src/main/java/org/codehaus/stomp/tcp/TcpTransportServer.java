@@ -21,8 +21,12 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.codehaus.stomp.StompHandler;
 import org.codehaus.stomp.StompHandlerFactory;
+import org.codehaus.stomp.TransportServer;
+import org.codehaus.stomp.util.ConnectionRegistry;
 import org.codehaus.stomp.util.IOExceptionSupport;
+import org.codehaus.stomp.util.IntrospectionSupport;
 import org.codehaus.stomp.util.ServiceSupport;
+import org.codehaus.stomp.util.URISupport;
 
 import javax.net.ServerSocketFactory;
 import java.io.IOException;
@@ -30,19 +34,70 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * A server for URIs such as <code>tcp://0.0.0.0:61613</code> which serves each connection from its own thread.
+ * <p/>
+ * Sockets are accepted by <code>acceptors</code> threads, one by default, which do nothing but hand each new
+ * socket to a pool of <code>setupThreads</code> threads which create its transport and protocol handler, so that
+ * a burst of reconnecting clients is accepted as fast as the kernel can queue them. When there is more than
+ * one acceptor each has its own server socket bound to the same port with <code>SO_REUSEPORT</code>, so the
+ * kernel spreads the connections between them; where that option is not available, before Java 9 or on some
+ * platforms, the acceptors share a single server socket instead.
+ * <p/>
+ * Stopping the server closes its connections in parallel on up to <code>closeThreads</code> threads, as closing
+ * the JMS connection of each can take a while, waiting at most <code>stopTimeout</code> milliseconds for them.
+ * {@link #drain(long)} stops more gracefully, letting the frames being processed finish first.
+ * <p/>
+ * The <code>acceptors</code>, <code>setupThreads</code>, <code>reusePort</code>, <code>backlog</code>,
+ * <code>closeThreads</code> and <code>stopTimeout</code> options in the query of the URI are applied to this server,
+ * the others to each {@link TcpTransport} and its socket.
+ *
  * @version $Revision$
  */
-public class TcpTransportServer extends ServiceSupport implements Runnable {
+public class TcpTransportServer extends ServiceSupport implements Runnable, TransportServer {
     private static final Log log = LogFactory.getLog(TcpTransportServer.class);
+    private static final String[] SERVER_OPTIONS = new String[]{"acceptors", "setupThreads", "reusePort", "backlog", "closeThreads", "stopTimeout"};
+    private static final long DRAIN_POLL_INTERVAL = 10;
+    private static final long MIN_ACCEPT_BACKOFF = 10;
+    private static final long MAX_ACCEPT_BACKOFF = 1000;
+    private static final Object SO_REUSEPORT;
+    private static final Method SET_OPTION;
+
+    static {
+        Object option = null;
+        Method setOption = null;
+        try {
+            // Java 9 or later
+            option = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+            setOption = ServerSocket.class.getMethod("setOption", Class.forName("java.net.SocketOption"), Object.class);
+        }
+        catch (Exception e) {
+            option = null;
+            setOption = null;
+        }
+        SO_REUSEPORT = option;
+        SET_OPTION = setOption;
+    }
+
     private StompHandlerFactory stompHandlerFactory;
     private ServerSocket serverSocket;
     private int backlog = 5000;
@@ -51,16 +106,37 @@ public class TcpTransportServer extends ServiceSupport implements Runnable {
     private ServerSocketFactory serverSocketFactory;
     private boolean daemon = true;
     private boolean joinOnStop = true;
-    private Thread runner;
+    private int acceptorCount = 1;
+    private int setupThreads = Runtime.getRuntime().availableProcessors();
+    private boolean reusePort = true;
+    private ServerSocket[] serverSockets;
+    private Thread[] acceptors;
+    private ThreadPoolExecutor setupExecutor;
+    private int closeThreads = 32;
+    private long stopTimeout = 30000;
+    private volatile boolean draining;
+    private long drainQuietDeadline;
+    private long closeDeadline;
+    private final AtomicInteger connectionsToClose = new AtomicInteger();
+    private final AtomicInteger connectionsClosed = new AtomicInteger();
+    private volatile int connectionsAbandoned;
     private URI connectURI;
     private URI bindLocation;
-    private List<TcpTransport> connections = new CopyOnWriteArrayList<TcpTransport>();
+    private final ConnectionRegistry<TcpTransport> connections = new ConnectionRegistry<TcpTransport>();
 
     public TcpTransportServer(StompHandlerFactory stompHandlerFactory, URI location, ServerSocketFactory serverSocketFactory) throws IOException, URISyntaxException {
         this.stompHandlerFactory = stompHandlerFactory;
         this.connectURI = location;
         this.bindLocation = location;
         this.serverSocketFactory = serverSocketFactory;
+        this.transportOptions = URISupport.parseQuery(location);
+        Map serverOptions = new HashMap();
+        for (int i = 0; i < SERVER_OPTIONS.length; i++) {
+            if (transportOptions.containsKey(SERVER_OPTIONS[i])) {
+                serverOptions.put(SERVER_OPTIONS[i], transportOptions.remove(SERVER_OPTIONS[i]));
+            }
+        }
+        IntrospectionSupport.setProperties(this, serverOptions);
     }
 
     /**
@@ -71,41 +147,48 @@ public class TcpTransportServer extends ServiceSupport implements Runnable {
     }
 
     /**
-     * pull Sockets from the ServerSocket
+     * pull Sockets from the first ServerSocket, see {@link #accept(ServerSocket)}
      */
     public void run() {
-        while (!isStopped()) {
-            Socket socket = null;
-            try {
-                socket = serverSocket.accept();
-                if (socket != null) {
-                    if (isStopped()) {
-                        socket.close();
-                    }
-                    else {
-                        TcpTransport transport = createTransport(socket);
-                        connectHandlers(transport);
-                        transport.start();
-                        connections.add(transport);
-                    }
-                }
-            }
-            catch (SocketTimeoutException ste) {
-                // expect this to happen
-            }
-            catch (Exception e) {
-                if (!isStopping() && !isStopped()) {
-                    onAcceptError(e);
-                }
-            }
+        accept(serverSocket);
+    }
+
+    /**
+     * Stops the server gracefully. No more connections are accepted and each connection stops reading once it has
+     * finished the frame it is processing, such as a SEND or COMMIT, and written any receipt for it; connections are
+     * closed in parallel as soon as they are idle. At most half the timeout is spent waiting for connections to go
+     * idle, then the rest are closed regardless, and this method returns once the timeout has passed even if some
+     * connections are still closing. Progress can be watched with {@link #getBusyConnectionCount()},
+     * {@link #getConnectionsClosed()} and {@link #getConnectionsToClose()}.
+     *
+     * @param timeout the overall time allowed in milliseconds
+     */
+    public void drain(long timeout) throws Exception {
+        if (isStopped() || draining) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        draining = true;
+        drainQuietDeadline = now + timeout / 2;
+        closeDeadline = now + timeout;
+        log.info("Draining " + connections.size() + " connection(s) from " + this + " within " + timeout + " ms");
+        stopAccepting();
+        for (TcpTransport connection : connections.getConnections()) {
+            connection.drain();
         }
+        stop();
     }
 
     /**
-     * Joins with the background thread until the transport is stopped
+     * Joins with the acceptor threads until the transport is stopped
      */
     public void join() throws InterruptedException {
-        runner.join();
+        Thread[] threads = acceptors;
+        if (threads != null) {
+            for (int i = 0; i < threads.length; i++) {
+                threads[i].join();
+            }
+        }
     }
 
     // Properties
@@ -170,36 +253,351 @@ public class TcpTransportServer extends ServiceSupport implements Runnable {
         this.transportOptions = transportOptions;
     }
 
+    public int getAcceptors() {
+        return acceptorCount;
+    }
+
+    /**
+     * Sets the number of threads accepting connections, each with its own server socket where
+     * <code>SO_REUSEPORT</code> is available
+     */
+    public void setAcceptors(int acceptors) {
+        this.acceptorCount = acceptors;
+    }
+
+    public int getSetupThreads() {
+        return setupThreads;
+    }
+
+    /**
+     * Sets the number of threads which set up the transports of newly accepted connections, by default one
+     * per processor
+     */
+    public void setSetupThreads(int setupThreads) {
+        this.setupThreads = setupThreads;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * Sets whether several acceptors bind their own server sockets with <code>SO_REUSEPORT</code>, which is the
+     * default, or share one server socket
+     */
+    public void setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    /**
+     * Returns the number of open connections
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * Returns the open connection with the given id, see {@link TcpTransport#getConnectionId()}, or null
+     */
+    public TcpTransport getConnection(long id) {
+        return connections.get(id);
+    }
+
+    /**
+     * Returns a live, read only view of the open connections
+     */
+    public Collection<TcpTransport> getConnections() {
+        return connections.getConnections();
+    }
+
+    public int getCloseThreads() {
+        return closeThreads;
+    }
+
+    /**
+     * Sets the most threads used to close connections in parallel when stopping
+     */
+    public void setCloseThreads(int closeThreads) {
+        this.closeThreads = closeThreads;
+    }
+
+    public long getStopTimeout() {
+        return stopTimeout;
+    }
+
+    /**
+     * Sets how long in milliseconds a stop waits for connections to close before leaving the rest to close
+     * in the background
+     */
+    public void setStopTimeout(long stopTimeout) {
+        this.stopTimeout = stopTimeout;
+    }
+
+    /**
+     * Returns true once {@link #drain(long)} has been called
+     */
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Returns the number of open connections which are still processing a frame or writing to their socket
+     */
+    public int getBusyConnectionCount() {
+        int answer = 0;
+        for (TcpTransport connection : connections.getConnections()) {
+            if (!connection.isDrained()) {
+                answer++;
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Returns the number of connections the server set about closing when it was stopped
+     */
+    public int getConnectionsToClose() {
+        return connectionsToClose.get();
+    }
+
+    /**
+     * Returns the number of connections which have finished closing since the server was stopped
+     */
+    public int getConnectionsClosed() {
+        return connectionsClosed.get();
+    }
+
+    /**
+     * Returns the number of connections which had not finished closing when the stop timed out, which are
+     * left to close in the background
+     */
+    public int getConnectionsAbandoned() {
+        return connectionsAbandoned;
+    }
+
+    /**
+     * Returns the number of server sockets bound, which is less than the number of acceptors if they
+     * share a server socket
+     */
+    public int getServerSocketCount() {
+        ServerSocket[] sockets = serverSockets;
+        return (sockets != null) ? sockets.length : 0;
+    }
+
+    /**
+     * Returns the number of accepted sockets waiting for a setup thread
+     */
+    public int getPendingSetupCount() {
+        ThreadPoolExecutor executor = setupExecutor;
+        return (executor != null) ? executor.getQueue().size() : 0;
+    }
+
     // Implementation methods
     //-------------------------------------------------------------------------
     protected void doStart() throws Exception {
         bind();
-        log.info("Listening for connections at: " + getConnectURI());
-        runner = new Thread(this, "StompConnect Server Thread: " + toString());
-        runner.setDaemon(daemon);
-        runner.start();
+        int threads = Math.max(1, setupThreads);
+        setupExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                createThreadFactory("StompConnect Connection Setup"));
+        setupExecutor.allowCoreThreadTimeOut(true);
+
+        int count = Math.max(1, acceptorCount);
+        log.info("Listening for connections at: " + getConnectURI() + " using " + count + " acceptor(s) on "
+                + serverSockets.length + " server socket(s)");
+        acceptors = new Thread[count];
+        for (int i = 0; i < count; i++) {
+            final ServerSocket socket = serverSockets[i % serverSockets.length];
+            acceptors[i] = new Thread(new Runnable() {
+                public void run() {
+                    accept(socket);
+                }
+            }, "StompConnect Server Thread " + (i + 1) + ": " + toString());
+            acceptors[i].setDaemon(daemon);
+            acceptors[i].start();
+        }
     }
 
     protected void doStop() throws Exception {
         // lets stop accepting new connections first
-        if (serverSocket != null) {
-            serverSocket.close();
-        }
+        stopAccepting();
 
-        // now lets close all the connections
+        // now lets close all the connections, each removes itself from the registry
         try {
-            for (TcpTransport connection : connections) {
-                connection.stop();
-            }
+            long now = System.currentTimeMillis();
+            closeConnections(draining ? drainQuietDeadline : now, draining ? closeDeadline : now + stopTimeout);
         }
         finally {
             connections.clear();
         }
 
-        // lets join the server thread in case its blocked a little while
-        if (runner != null && joinOnStop) {
+        // lets join the acceptor threads in case they are blocked a little while
+        if (acceptors != null && joinOnStop) {
             join();
-            runner = null;
+            acceptors = null;
+        }
+    }
+
+    /**
+     * Closes the server sockets and any accepted sockets which have not been set up yet
+     */
+    protected void stopAccepting() throws InterruptedException {
+        if (serverSockets != null) {
+            for (int i = 0; i < serverSockets.length; i++) {
+                try {
+                    serverSockets[i].close();
+                }
+                catch (IOException e) {
+                    log.debug("Caught while closing server socket: " + e, e);
+                }
+            }
+        }
+
+        // then close the sockets which are still waiting to be set up
+        if (setupExecutor != null) {
+            List<Runnable> pending = setupExecutor.shutdownNow();
+            for (Runnable task : pending) {
+                ((SetupTask) task).cancel();
+            }
+            if (joinOnStop) {
+                setupExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    /**
+     * Stops the open connections on a pool of up to {@link #getCloseThreads()} threads, each as soon as it is
+     * drained or regardless once the quiet deadline has passed, waiting for them until the deadline
+     */
+    protected void closeConnections(long quietDeadline, long deadline) throws InterruptedException {
+        List<TcpTransport> pending = new LinkedList<TcpTransport>(connections.getConnections());
+        connectionsToClose.set(pending.size());
+        connectionsClosed.set(0);
+        connectionsAbandoned = 0;
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        final CountDownLatch closed = new CountDownLatch(pending.size());
+        int threads = Math.max(1, Math.min(closeThreads, pending.size()));
+        ExecutorService executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                createThreadFactory("StompConnect Connection Close"));
+        try {
+            while (!pending.isEmpty()) {
+                boolean force = System.currentTimeMillis() >= quietDeadline;
+                for (Iterator<TcpTransport> iter = pending.iterator(); iter.hasNext();) {
+                    final TcpTransport connection = iter.next();
+                    if (force || connection.isDrained()) {
+                        iter.remove();
+                        executor.execute(new Runnable() {
+                            public void run() {
+                                try {
+                                    connection.stop();
+                                }
+                                catch (Exception e) {
+                                    log.warn("Caught while closing " + connection + ": " + e, e);
+                                }
+                                finally {
+                                    connectionsClosed.incrementAndGet();
+                                    closed.countDown();
+                                }
+                            }
+                        });
+                    }
+                }
+                if (!pending.isEmpty()) {
+                    Thread.sleep(DRAIN_POLL_INTERVAL);
+                }
+            }
+        }
+        finally {
+            // the threads finish once the queue is empty
+            executor.shutdown();
+        }
+
+        long wait = deadline - System.currentTimeMillis();
+        if (!closed.await(Math.max(0, wait), TimeUnit.MILLISECONDS)) {
+            connectionsAbandoned = (int) closed.getCount();
+            log.warn("Leaving " + connectionsAbandoned + " connection(s) of " + this + " to finish closing in the background");
+        }
+    }
+
+    /**
+     * Accepts sockets until the server socket is closed, handing each to the setup threads. An accept which fails
+     * while the server socket is still open, such as when the process has run out of file descriptors, is retried
+     * after a pause which doubles with each failure in a row, so the server rides out the shortage rather than
+     * shutting down.
+     */
+    protected void accept(ServerSocket serverSocket) {
+        long backoff = MIN_ACCEPT_BACKOFF;
+        while (!isStopped() && !draining) {
+            try {
+                Socket socket = serverSocket.accept();
+                backoff = MIN_ACCEPT_BACKOFF;
+                if (socket != null) {
+                    if (isStopped() || draining) {
+                        socket.close();
+                    }
+                    else {
+                        setupExecutor.execute(new SetupTask(socket));
+                    }
+                }
+            }
+            catch (Exception e) {
+                if (isStopping() || isStopped() || draining) {
+                    return;
+                }
+                if (serverSocket.isClosed()) {
+                    onAcceptError(e);
+                    return;
+                }
+                log.warn("Failed to accept a connection on " + this + ", retrying in " + backoff + " ms: " + e, e);
+                try {
+                    Thread.sleep(backoff);
+                }
+                catch (InterruptedException e1) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                backoff = Math.min(backoff * 2, MAX_ACCEPT_BACKOFF);
+            }
+        }
+    }
+
+    /**
+     * Creates and starts the transport for a newly accepted socket, called by one of the setup threads
+     */
+    protected void setupConnection(Socket socket) {
+        TcpTransport transport = null;
+        try {
+            transport = createTransport(socket);
+            connectHandlers(transport);
+            // register first so that a connection which closes straight away still removes itself
+            transport.setConnectionRegistry(connections);
+            transport.start();
+            if (isStopped() || draining) {
+                // we missed the stop
+                transport.stop();
+            }
+        }
+        catch (Exception e) {
+            log.warn("Failed to set up connection from " + socket.getRemoteSocketAddress() + ": " + e, e);
+            if (transport != null) {
+                try {
+                    transport.stop();
+                }
+                catch (Exception e2) {
+                    log.debug("Caught while closing: " + e2, e2);
+                }
+            }
+            closeQuietly(socket);
         }
     }
 
@@ -210,16 +608,43 @@ public class TcpTransportServer extends ServiceSupport implements Runnable {
         host = (host == null || host.length() == 0) ? "localhost" : host;
         InetAddress addr = InetAddress.getByName(host);
 
+        if (host.trim().equals("localhost") || addr.equals(InetAddress.getLocalHost())) {
+            addr = null;
+        }
+        int count = Math.max(1, acceptorCount);
+        boolean shared = count == 1 || !reusePort;
+        if (!shared && !isReusePortSupported()) {
+            log.warn("SO_REUSEPORT is not supported so " + count + " acceptors will share one server socket");
+            shared = true;
+        }
+        serverSockets = new ServerSocket[shared ? 1 : count];
         try {
-            if (host.trim().equals("localhost") || addr.equals(InetAddress.getLocalHost())) {
-                this.serverSocket = serverSocketFactory.createServerSocket(bind.getPort(), backlog);
+            if (shared) {
+                serverSockets[0] = (addr == null) ? serverSocketFactory.createServerSocket(bind.getPort(), backlog)
+                        : serverSocketFactory.createServerSocket(bind.getPort(), backlog, addr);
             }
             else {
-                this.serverSocket = serverSocketFactory.createServerSocket(bind.getPort(), backlog, addr);
+                int port = bind.getPort();
+                for (int i = 0; i < serverSockets.length; i++) {
+                    ServerSocket socket = serverSocketFactory.createServerSocket();
+                    if (!setReusePort(socket)) {
+                        closeQuietly(socket);
+                        throw new IOException("Could not set SO_REUSEPORT, use reusePort=false to share one server socket");
+                    }
+                    serverSockets[i] = socket;
+                    socket.bind(new InetSocketAddress(addr, port), backlog);
+                    // the others bind to whichever port the first one was given
+                    port = socket.getLocalPort();
+                }
             }
-            this.serverSocket.setSoTimeout(2000);
+            this.serverSocket = serverSockets[0];
         }
         catch (IOException e) {
+            for (int i = 0; i < serverSockets.length; i++) {
+                if (serverSockets[i] != null) {
+                    closeQuietly(serverSockets[i]);
+                }
+            }
             throw IOExceptionSupport.create("Failed to bind to server socket: " + bind + " due to: " + e, e);
         }
         try {
@@ -250,7 +675,56 @@ public class TcpTransportServer extends ServiceSupport implements Runnable {
      * Allow derived classes to override the Transport implementation that this transport server creates.
      */
     protected TcpTransport createTransport(Socket socket) throws IOException {
-        return new TcpTransport(socket, transportOptions);
+        Map options = (transportOptions != null) ? new HashMap(transportOptions) : new HashMap();
+        TcpTransport transport = new TcpTransport(socket, null);
+        // options which are not properties of the transport are applied to the socket
+        IntrospectionSupport.setProperties(transport, options);
+        transport.setSocketOptions(options);
+        return transport;
+    }
+
+    /**
+     * Returns true if server sockets can be bound with <code>SO_REUSEPORT</code> and the kernel spreads connections
+     * between them, which other platforms such as BSD do not
+     */
+    protected boolean isReusePortSupported() {
+        if (SO_REUSEPORT == null || !"Linux".equals(System.getProperty("os.name"))) {
+            return false;
+        }
+        try {
+            ServerSocket socket = new ServerSocket();
+            try {
+                return setReusePort(socket);
+            }
+            finally {
+                socket.close();
+            }
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sets <code>SO_REUSEPORT</code> on an unbound server socket
+     *
+     * @return false if the option is not supported
+     */
+    protected boolean setReusePort(ServerSocket socket) {
+        if (SO_REUSEPORT == null) {
+            return false;
+        }
+        try {
+            SET_OPTION.invoke(socket, SO_REUSEPORT, Boolean.TRUE);
+            return true;
+        }
+        catch (InvocationTargetException e) {
+            log.debug("Could not set SO_REUSEPORT: " + e.getTargetException(), e.getTargetException());
+            return false;
+        }
+        catch (IllegalAccessException e) {
+            return false;
+        }
     }
 
     protected String resolveHostName(String hostName) throws UnknownHostException {
@@ -261,4 +735,52 @@ public class TcpTransportServer extends ServiceSupport implements Runnable {
         }
         return result;
     }
+
+    private ThreadFactory createThreadFactory(final String name) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + " " + threadCount.incrementAndGet() + ": " + TcpTransportServer.this);
+                thread.setDaemon(daemon);
+                return thread;
+            }
+        };
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private static void closeQuietly(ServerSocket socket) {
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Sets up an accepted socket on one of the setup threads
+     */
+    private class SetupTask implements Runnable {
+        private final Socket socket;
+
+        SetupTask(Socket socket) {
+            this.socket = socket;
+        }
+
+        public void run() {
+            setupConnection(socket);
+        }
+
+        void cancel() {
+            closeQuietly(socket);
+        }
+    }
 }
@@ -0,0 +1,67 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.unix;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.stomp.nio.NioEventLoop;
+import org.codehaus.stomp.nio.NioTransport;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A {@link NioTransport} for a connection accepted on a Unix domain socket. Such channels have no
+ * {@link java.net.Socket} so only the buffer sizes are applied to them.
+ *
+ * @version $Revision$
+ */
+public class UnixTransport extends NioTransport {
+    private static final Log log = LogFactory.getLog(UnixTransport.class);
+    private final String name;
+
+    public UnixTransport(SocketChannel channel, NioEventLoop eventLoop, String name) {
+        super(channel, eventLoop);
+        this.name = name;
+    }
+
+    public String toString() {
+        return name;
+    }
+
+    public String getRemoteAddress() {
+        return name;
+    }
+
+    // Implementation methods
+    //-------------------------------------------------------------------------
+    protected void initialiseChannel() throws IOException {
+        int size = getSocketBufferSize();
+        try {
+            getChannel().setOption(StandardSocketOptions.SO_RCVBUF, Integer.valueOf(size));
+            getChannel().setOption(StandardSocketOptions.SO_SNDBUF, Integer.valueOf(size));
+        }
+        catch (IOException e) {
+            log.debug("Cannot set socket buffer size. Reason: " + e, e);
+        }
+        catch (UnsupportedOperationException e) {
+            log.debug("Cannot set socket buffer size. Reason: " + e, e);
+        }
+    }
+}
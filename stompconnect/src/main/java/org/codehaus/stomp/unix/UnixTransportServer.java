@@ -0,0 +1,161 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.unix;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.stomp.StompHandlerFactory;
+import org.codehaus.stomp.nio.NioEventLoop;
+import org.codehaus.stomp.nio.NioTransport;
+import org.codehaus.stomp.nio.NioTransportServer;
+import org.codehaus.stomp.util.IOExceptionSupport;
+import org.codehaus.stomp.util.IntrospectionSupport;
+import org.codehaus.stomp.util.UnixSocketSupport;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A server for URIs such as <code>unix:///var/run/stomp.sock</code> which listens on a Unix domain socket, so
+ * clients on the same host avoid the cost of loopback TCP. Connections are served by {@link NioEventLoop}s
+ * in the same way as <code>nio://</code> and take the same options, apart from those which only apply to
+ * TCP sockets.
+ * <p/>
+ * Needs Java 16 or later. The socket file is deleted when the server stops; a socket file left behind by a server
+ * which did not stop cleanly is replaced unless <code>deleteExisting=false</code> is given. Starting fails rather
+ * than deleting a file which is not a socket or a socket another server is still listening on.
+ *
+ * @version $Revision$
+ */
+public class UnixTransportServer extends NioTransportServer {
+    private static final Log log = LogFactory.getLog(UnixTransportServer.class);
+    private boolean deleteExisting = true;
+    private boolean bound;
+    private boolean warnedOptions;
+    private int connectionCount;
+
+    public UnixTransportServer(StompHandlerFactory stompHandlerFactory, URI location) {
+        super(stompHandlerFactory, location, false);
+        applyOptions();
+    }
+
+    // Properties
+    //-------------------------------------------------------------------------
+    /**
+     * Returns the path of the socket file
+     */
+    public String getSocketPath() {
+        URI location = getBindLocation();
+        String path = location.getPath();
+        if (path == null) {
+            // an opaque URI such as unix:stomp.sock
+            path = location.getSchemeSpecificPart();
+            int query = path.indexOf('?');
+            if (query >= 0) {
+                path = path.substring(0, query);
+            }
+        }
+        return path;
+    }
+
+    /**
+     * A Unix domain socket has no internet address, see {@link #getSocketPath()}
+     *
+     * @throws UnsupportedOperationException always
+     */
+    public InetSocketAddress getSocketAddress() {
+        throw new UnsupportedOperationException("A Unix domain socket has no internet address: " + getSocketPath());
+    }
+
+    public boolean isDeleteExisting() {
+        return deleteExisting;
+    }
+
+    /**
+     * Sets whether a stale socket file is deleted before binding, which is the default, or makes starting the
+     * server fail
+     */
+    public void setDeleteExisting(boolean deleteExisting) {
+        this.deleteExisting = deleteExisting;
+    }
+
+    // Implementation methods
+    //-------------------------------------------------------------------------
+    protected void bind() throws IOException {
+        String path = getSocketPath();
+        if (path == null || path.length() == 0) {
+            throw new IOException("No socket file given in: " + this);
+        }
+        File file = new File(path);
+        if (file.exists()) {
+            if (!deleteExisting) {
+                throw new IOException("Failed to bind to server socket: " + path + " as the file already exists");
+            }
+            if (!UnixSocketSupport.isSocketFile(path)) {
+                throw new IOException("Failed to bind to server socket: " + path + " as the file is not a socket");
+            }
+            if (UnixSocketSupport.isListening(path)) {
+                throw new IOException("Failed to bind to server socket: " + path + " as another server is listening on it");
+            }
+            log.info("Deleting the stale socket file: " + file);
+            if (!file.delete()) {
+                throw new IOException("Failed to bind to server socket: " + path + " as the stale socket file could not be deleted");
+            }
+        }
+
+        ServerSocketChannel channel = UnixSocketSupport.openServerChannel();
+        try {
+            channel.bind(UnixSocketSupport.createAddress(path), getBacklog());
+        }
+        catch (IOException e) {
+            channel.close();
+            throw IOExceptionSupport.create("Failed to bind to server socket: " + path + " due to: " + e, e);
+        }
+        setServerChannel(channel);
+        bound = true;
+    }
+
+    protected void doStop() throws Exception {
+        try {
+            super.doStop();
+        }
+        finally {
+            if (bound) {
+                new File(getSocketPath()).delete();
+                bound = false;
+            }
+        }
+    }
+
+    protected NioTransport createTransport(SocketChannel channel, NioEventLoop eventLoop) throws IOException {
+        Map options = (getTransportOptions() != null) ? new HashMap(getTransportOptions()) : new HashMap();
+        UnixTransport transport = new UnixTransport(channel, eventLoop, "unix://" + getSocketPath() + "#" + (++connectionCount));
+        IntrospectionSupport.setProperties(transport, options);
+        if (!options.isEmpty() && !warnedOptions) {
+            warnedOptions = true;
+            log.warn("Ignoring options which do not apply to Unix domain sockets: " + options.keySet());
+        }
+        return transport;
+    }
+}
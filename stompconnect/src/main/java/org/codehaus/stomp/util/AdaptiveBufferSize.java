@@ -0,0 +1,96 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.util;
+
+/**
+ * Predicts how large the next read from a connection should be from the size of the recent reads, much like the
+ * adaptive receive buffer allocator of Netty. The size grows quickly when a read fills the whole buffer, so a bulk
+ * publisher soon reads in large blocks, and shrinks slowly when reads keep using less than half of it, so an idle or
+ * chatty connection does not hold on to a large buffer.
+ * <p/>
+ * The sizes are powers of two to match the size classes of {@link BufferPool}. Not thread safe; each connection
+ * has its own instance which is only used by its reader.
+ *
+ * @version $Revision$
+ */
+public class AdaptiveBufferSize {
+    private static final int GROW_SHIFT = 2;
+    private final int minimum;
+    private final int maximum;
+    private int size;
+    private boolean shrinkNext;
+
+    public AdaptiveBufferSize(int minimum, int initial, int maximum) {
+        if (minimum <= 0 || maximum < minimum) {
+            throw new IllegalArgumentException("Invalid buffer sizes " + minimum + " to " + maximum);
+        }
+        this.minimum = roundUp(minimum);
+        this.maximum = Math.max(this.minimum, roundUp(maximum));
+        this.size = Math.min(this.maximum, Math.max(this.minimum, roundUp(initial)));
+    }
+
+    /**
+     * Returns the size the next read should use
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Records the number of bytes the last read returned
+     */
+    public void record(int bytesRead) {
+        if (bytesRead >= size) {
+            size = Math.min(maximum, size << GROW_SHIFT);
+            shrinkNext = false;
+        }
+        else if (bytesRead <= size >> 1) {
+            // wait for a second small read in a row so one short read does not shrink the buffer
+            if (shrinkNext) {
+                size = Math.max(minimum, size >> 1);
+                shrinkNext = false;
+            }
+            else {
+                shrinkNext = true;
+            }
+        }
+        else {
+            shrinkNext = false;
+        }
+    }
+
+    public int getMinimum() {
+        return minimum;
+    }
+
+    public int getMaximum() {
+        return maximum;
+    }
+
+    public String toString() {
+        return "AdaptiveBufferSize[" + minimum + " <= " + size + " <= " + maximum + "]";
+    }
+
+    protected static int roundUp(int value) {
+        int answer = 1;
+        while (answer < value && answer < (1 << 30)) {
+            answer <<= 1;
+        }
+        return answer;
+    }
+}
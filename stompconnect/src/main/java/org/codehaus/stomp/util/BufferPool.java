@@ -0,0 +1,205 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of I/O buffers shared by all the connections so that a connection only holds a buffer while data is
+ * actually in flight, rather than keeping its own for as long as it is open.
+ * <p/>
+ * Buffers come in power of two size classes and are carved out of larger slabs, so the pool makes few large
+ * allocations rather than many small ones. Requests larger than the biggest size class are allocated on their own
+ * and simply dropped when released.
+ * <p/>
+ * A buffer must only be released once and must not be used afterwards.
+ *
+ * @version $Revision$
+ */
+public class BufferPool {
+    private static BufferPool directPool;
+    private static BufferPool heapPool;
+    private final boolean direct;
+    private final int minBufferSize;
+    private final int maxBufferSize;
+    private final int slabSize;
+    private final Queue<ByteBuffer>[] free;
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong borrowedBytes = new AtomicLong();
+    private final AtomicLong unpooledCount = new AtomicLong();
+
+    public BufferPool(boolean direct, int minBufferSize, int maxBufferSize, int slabSize) {
+        if (minBufferSize <= 0 || maxBufferSize < minBufferSize) {
+            throw new IllegalArgumentException("Invalid buffer sizes " + minBufferSize + " to " + maxBufferSize);
+        }
+        this.direct = direct;
+        this.minBufferSize = minBufferSize;
+        int classes = 1;
+        while ((minBufferSize << (classes - 1)) < maxBufferSize) {
+            classes++;
+        }
+        this.maxBufferSize = minBufferSize << (classes - 1);
+        this.slabSize = slabSize;
+        this.free = new Queue[classes];
+        for (int i = 0; i < classes; i++) {
+            free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+        }
+    }
+
+    /**
+     * Returns the pool of direct buffers shared by all the connections in the JVM, for use with channels
+     */
+    public static synchronized BufferPool getDirectPool() {
+        if (directPool == null) {
+            directPool = new BufferPool(true, 1024, 64 * 1024, 256 * 1024);
+        }
+        return directPool;
+    }
+
+    /**
+     * Returns the pool of heap buffers shared by all the connections in the JVM, for use with streams which
+     * can only read and write byte arrays
+     */
+    public static synchronized BufferPool getHeapPool() {
+        if (heapPool == null) {
+            heapPool = new BufferPool(false, 1024, 64 * 1024, 256 * 1024);
+        }
+        return heapPool;
+    }
+
+    /**
+     * Borrows a cleared buffer with a capacity of at least the given size
+     */
+    public ByteBuffer acquire(int size) {
+        if (size > maxBufferSize) {
+            unpooledCount.incrementAndGet();
+            return allocate(size);
+        }
+        int index = sizeClass(size);
+        ByteBuffer buffer = free[index].poll();
+        if (buffer == null) {
+            buffer = allocateSlab(index);
+        }
+        borrowedBytes.addAndGet(buffer.capacity());
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire(int)} to the pool
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() != direct) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        if (capacity > maxBufferSize) {
+            return;
+        }
+        int index = sizeClass(capacity);
+        if ((minBufferSize << index) != capacity) {
+            // not one of ours
+            return;
+        }
+        borrowedBytes.addAndGet(-capacity);
+        buffer.clear();
+        free[index].add(buffer);
+    }
+
+    // Properties
+    //-------------------------------------------------------------------------
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    /**
+     * Returns the number of bytes allocated to the pool so far, which is never given back
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * Returns the number of bytes in buffers which are currently borrowed
+     */
+    public long getBorrowedBytes() {
+        return borrowedBytes.get();
+    }
+
+    /**
+     * Returns the number of bytes in buffers which are ready to be borrowed
+     */
+    public long getAvailableBytes() {
+        return pooledBytes.get() - borrowedBytes.get();
+    }
+
+    /**
+     * Returns the number of requests which were too large for the pool and so were allocated on their own
+     */
+    public long getUnpooledCount() {
+        return unpooledCount.get();
+    }
+
+    public String toString() {
+        return "BufferPool[direct=" + direct + ", pooled=" + getPooledBytes() + ", borrowed=" + getBorrowedBytes() + "]";
+    }
+
+    // Implementation methods
+    //-------------------------------------------------------------------------
+    protected int sizeClass(int size) {
+        int index = 0;
+        while ((minBufferSize << index) < size) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Carves a new slab into buffers of the given size class, returning the first and pooling the rest
+     */
+    protected ByteBuffer allocateSlab(int index) {
+        int bufferSize = minBufferSize << index;
+        int count = Math.max(1, slabSize / bufferSize);
+        ByteBuffer slab = allocate(bufferSize * count);
+        pooledBytes.addAndGet(bufferSize * count);
+        ByteBuffer answer = null;
+        for (int i = 0; i < count; i++) {
+            slab.limit((i + 1) * bufferSize);
+            slab.position(i * bufferSize);
+            ByteBuffer buffer = slab.slice();
+            if (answer == null) {
+                answer = buffer;
+            }
+            else {
+                free[index].add(buffer);
+            }
+        }
+        return answer;
+    }
+
+    protected ByteBuffer allocate(int size) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+}
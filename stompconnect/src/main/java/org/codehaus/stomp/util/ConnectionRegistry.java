@@ -0,0 +1,97 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.util;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The open connections of a server, keyed by an id given to each connection as it registers. Connections
+ * unregister themselves when they close, so the registry only ever holds those which are open.
+ * <p/>
+ * Registering, unregistering and looking up a connection take constant time regardless of how many are open and
+ * iterating does not block or copy the registry, so admin tools and shutdown can walk the connections while they
+ * come and go; an iteration sees each connection which stays open throughout and may or may not see those
+ * which open or close meanwhile.
+ *
+ * @version $Revision$
+ */
+public class ConnectionRegistry<T> {
+    private final ConcurrentMap<Long, T> connections = new ConcurrentHashMap<Long, T>();
+    private final AtomicLong nextId = new AtomicLong();
+
+    /**
+     * Adds the connection, returning its id
+     */
+    public long register(T connection) {
+        if (connection == null) {
+            throw new IllegalArgumentException("connection was null.");
+        }
+        long id = nextId.incrementAndGet();
+        connections.put(Long.valueOf(id), connection);
+        return id;
+    }
+
+    /**
+     * Removes the connection with the given id if it is still the given connection
+     *
+     * @return true if it was removed
+     */
+    public boolean unregister(long id, T connection) {
+        return connections.remove(Long.valueOf(id), connection);
+    }
+
+    /**
+     * Returns the connection with the given id or null if it is not open
+     */
+    public T get(long id) {
+        return connections.get(Long.valueOf(id));
+    }
+
+    /**
+     * Returns the number of open connections
+     */
+    public int size() {
+        return connections.size();
+    }
+
+    /**
+     * Returns a live, read only view of the open connections
+     */
+    public Collection<T> getConnections() {
+        return Collections.unmodifiableCollection(connections.values());
+    }
+
+    /**
+     * Returns a live, read only view of the ids of the open connections
+     */
+    public Set<Long> getIds() {
+        return Collections.unmodifiableSet(connections.keySet());
+    }
+
+    /**
+     * Removes all the connections without closing them
+     */
+    public void clear() {
+        connections.clear();
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs tasks one at a time in the order they were submitted on the threads of a shared pool, so that the work of
+ * one connection is serialized without it needing a thread of its own.
+ * <p/>
+ * A connection with a long backlog gives up its pool thread after each batch of tasks and queues up again, so it
+ * cannot starve the connections sharing the pool.
+ *
+ * @version $Revision$
+ */
+public class SerialExecutor implements Executor {
+    private static final Log log = LogFactory.getLog(SerialExecutor.class);
+    private static final int MAX_BATCH = 64;
+    private final Executor executor;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final Runnable runner = new Runnable() {
+        public void run() {
+            runTasks();
+        }
+    };
+
+    public SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Queues the task to run after those submitted before it
+     *
+     * @throws RejectedExecutionException if the pool has been shut down
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    /**
+     * Returns true if no task is queued or running
+     */
+    public boolean isIdle() {
+        return tasks.isEmpty() && !scheduled.get();
+    }
+
+    // Implementation methods
+    //-------------------------------------------------------------------------
+    protected void schedule() {
+        if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(runner);
+            }
+            catch (RejectedExecutionException e) {
+                scheduled.set(false);
+                throw e;
+            }
+        }
+    }
+
+    protected void runTasks() {
+        try {
+            Runnable task;
+            for (int count = 0; count < MAX_BATCH && (task = tasks.poll()) != null; count++) {
+                try {
+                    task.run();
+                }
+                catch (RuntimeException e) {
+                    log.warn("Task failed: " + e, e);
+                }
+            }
+        }
+        finally {
+            scheduled.set(false);
+        }
+        // check again after giving up the pool thread in case a task was queued just before
+        try {
+            schedule();
+        }
+        catch (RejectedExecutionException e) {
+            // the pool is shutting down so finish the tasks on this thread
+            runTasks();
+        }
+    }
+}
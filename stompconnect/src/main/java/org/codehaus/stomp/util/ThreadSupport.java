@@ -0,0 +1,92 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Helper methods for creating threads, including the virtual threads of Java 21 and later which are
+ * looked up reflectively so that we still run on older JVMs.
+ *
+ * @version $Revision$
+ */
+public class ThreadSupport {
+    private static final Log log = LogFactory.getLog(ThreadSupport.class);
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method UNSTARTED;
+    private static volatile boolean virtualThreadsAvailable;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+        }
+        catch (Exception e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+        virtualThreadsAvailable = ofVirtual != null;
+    }
+
+    /**
+     * Returns true if this JVM can create virtual threads
+     */
+    public static boolean isVirtualThreadsAvailable() {
+        return virtualThreadsAvailable;
+    }
+
+    /**
+     * Creates an unstarted thread. If a virtual thread is asked for but this JVM does not support them,
+     * such as before Java 21, a platform thread is created instead.
+     *
+     * @param daemon whether a platform thread is a daemon, virtual threads always are
+     */
+    public static Thread createThread(Runnable runnable, String name, boolean daemon, boolean virtual) {
+        if (virtual && virtualThreadsAvailable) {
+            try {
+                Object builder = OF_VIRTUAL.invoke(null);
+                builder = NAME.invoke(builder, name);
+                return (Thread) UNSTARTED.invoke(builder, runnable);
+            }
+            catch (InvocationTargetException e) {
+                // e.g. a preview feature which has not been enabled
+                virtualThreadsAvailable = false;
+                log.warn("Virtual threads are not available so using platform threads. Reason: " + e.getTargetException());
+            }
+            catch (IllegalAccessException e) {
+                virtualThreadsAvailable = false;
+                log.warn("Virtual threads are not available so using platform threads. Reason: " + e);
+            }
+        }
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(daemon);
+        return thread;
+    }
+}
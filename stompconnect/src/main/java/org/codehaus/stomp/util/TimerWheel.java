@@ -0,0 +1,171 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A hashed timer wheel which runs a large number of timers, such as the heart-beat deadlines of every
+ * connection, from a single thread. Time is divided into ticks and each timer is kept in the bucket for the tick it
+ * expires in, so scheduling and cancelling are constant time and each tick only looks at one bucket. Timers fire up to
+ * one tick late, which is fine for deadlines measured in seconds.
+ * <p/>
+ * Tasks run on the wheel thread so must not block; anything which may block should be handed to another thread.
+ *
+ * @version $Revision$
+ */
+public class TimerWheel implements Runnable {
+    private static final Log log = LogFactory.getLog(TimerWheel.class);
+    private static TimerWheel defaultInstance;
+    private final long tickNanos;
+    private final List<Timeout>[] wheel;
+    private final int mask;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+    private final Thread thread;
+    private final long startTime;
+    private volatile boolean running = true;
+    private long tick;
+
+    public TimerWheel(String name, long tickMillis, int wheelSize) {
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.tickNanos = tickMillis * 1000000L;
+        this.wheel = new List[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayList<Timeout>();
+        }
+        this.mask = size - 1;
+        this.startTime = System.nanoTime();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Returns the wheel shared by all the connections in the JVM, which ticks every 100 milliseconds
+     */
+    public static synchronized TimerWheel getDefault() {
+        if (defaultInstance == null) {
+            defaultInstance = new TimerWheel("StompConnect Timer", 100, 512);
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * Runs the task once after the given delay
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + delayMillis * 1000000L);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    public void stop() {
+        running = false;
+        thread.interrupt();
+    }
+
+    public void run() {
+        while (running) {
+            long deadline = startTime + (tick + 1) * tickNanos;
+            long sleep = deadline - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep / 1000000L, (int) (sleep % 1000000L));
+                }
+                catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            transferPending();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    // Implementation methods
+    //-------------------------------------------------------------------------
+    protected void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long ticks = (timeout.deadline - startTime + tickNanos - 1) / tickNanos;
+            // already overdue timers go in the current bucket
+            long target = Math.max(ticks, tick);
+            timeout.rounds = (target - tick) / wheel.length;
+            wheel[(int) (target & mask)].add(timeout);
+        }
+    }
+
+    protected void expire(List<Timeout> bucket) {
+        int kept = 0;
+        for (int i = 0, size = bucket.size(); i < size; i++) {
+            Timeout timeout = bucket.get(i);
+            if (timeout.cancelled) {
+                continue;
+            }
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                bucket.set(kept++, timeout);
+                continue;
+            }
+            try {
+                timeout.task.run();
+            }
+            catch (Throwable e) {
+                log.warn("Timer task failed: " + e, e);
+            }
+        }
+        for (int i = bucket.size() - 1; i >= kept; i--) {
+            bucket.remove(i);
+        }
+    }
+
+    /**
+     * A scheduled task which may be cancelled
+     */
+    public static class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long rounds;
+        private volatile boolean cancelled;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
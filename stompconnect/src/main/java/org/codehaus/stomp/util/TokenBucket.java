@@ -0,0 +1,101 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.util;
+
+/**
+ * A token bucket which refills at a fixed rate up to a burst capacity. Taking tokens always succeeds but may leave
+ * the bucket in debt, in which case the caller is told how long it must wait for the debt to be paid off. This lets
+ * a single item larger than the whole capacity, such as a big message body, through at the average rate rather than
+ * never fitting.
+ * <p/>
+ * Not thread safe; each connection has its own instance which is only used by its reader.
+ *
+ * @version $Revision$
+ */
+public class TokenBucket {
+    private final long rate;
+    private final long capacity;
+    private final double tokensPerNano;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Creates a full bucket
+     *
+     * @param rate     the number of tokens added per second
+     * @param capacity the most tokens the bucket holds, which is the largest burst taken without waiting
+     */
+    public TokenBucket(long rate, long capacity) {
+        this(rate, capacity, System.nanoTime());
+    }
+
+    public TokenBucket(long rate, long capacity, long now) {
+        if (rate <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Invalid token bucket rate " + rate + " and capacity " + capacity);
+        }
+        this.rate = rate;
+        this.capacity = capacity;
+        this.tokensPerNano = rate / 1000000000.0;
+        this.tokens = capacity;
+        this.lastRefill = now;
+    }
+
+    /**
+     * Takes the given number of tokens
+     *
+     * @return the number of nanoseconds until the bucket is out of debt, zero if there were enough tokens
+     */
+    public long take(long count) {
+        return take(count, System.nanoTime());
+    }
+
+    public long take(long count, long now) {
+        refill(now);
+        tokens -= count;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) Math.ceil(-tokens / tokensPerNano);
+    }
+
+    /**
+     * Returns the number of tokens available, which is negative while the bucket is in debt
+     */
+    public long getTokens(long now) {
+        refill(now);
+        return (long) Math.floor(tokens);
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    // Implementation methods
+    //-------------------------------------------------------------------------
+    protected void refill(long now) {
+        long elapsed = now - lastRefill;
+        if (elapsed > 0) {
+            tokens = Math.min(capacity, tokens + elapsed * tokensPerNano);
+            lastRefill = now;
+        }
+    }
+}
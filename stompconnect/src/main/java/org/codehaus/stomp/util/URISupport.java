@@ -0,0 +1,77 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.util;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Helper methods for working with URIs
+ *
+ * @version $Revision$
+ */
+public class URISupport {
+
+    /**
+     * Parses the query of the URI, such as <code>tcp://localhost:61613?soTimeout=1000</code>, into a map
+     * of the option names and their values
+     */
+    public static Map<String, String> parseQuery(URI uri) {
+        return parseQuery(uri.getRawQuery());
+    }
+
+    /**
+     * Returns the URI without its query, so that options such as passwords are not shown in logs and thread names
+     */
+    public static URI removeQuery(URI uri) {
+        if (uri == null) {
+            return null;
+        }
+        String text = uri.toString();
+        int query = text.indexOf('?');
+        return (query >= 0) ? URI.create(text.substring(0, query)) : uri;
+    }
+
+    public static Map<String, String> parseQuery(String query) {
+        Map<String, String> rc = new HashMap<String, String>();
+        if (query == null || query.length() == 0) {
+            return rc;
+        }
+        try {
+            String[] parameters = query.split("&");
+            for (int i = 0; i < parameters.length; i++) {
+                int p = parameters[i].indexOf("=");
+                if (p >= 0) {
+                    String name = URLDecoder.decode(parameters[i].substring(0, p), "UTF-8");
+                    String value = URLDecoder.decode(parameters[i].substring(p + 1), "UTF-8");
+                    rc.put(name, value);
+                }
+                else if (parameters[i].length() > 0) {
+                    rc.put(URLDecoder.decode(parameters[i], "UTF-8"), null);
+                }
+            }
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return rc;
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Helper methods for the Unix domain socket channels of Java 16 and later which are looked up reflectively
+ * so that we still run on older JVMs.
+ *
+ * @version $Revision$
+ */
+public class UnixSocketSupport {
+    private static final int FILE_TYPE_MASK = 0170000;
+    private static final int SOCKET_TYPE = 0140000;
+    private static final ProtocolFamily UNIX;
+    private static final Method ADDRESS_OF;
+    private static final Method OPEN_SERVER;
+    private static final Method OPEN_CLIENT;
+    private static final Method GET_PATH;
+    private static final Method GET_ATTRIBUTE;
+    private static final Object NO_LINK_OPTIONS;
+
+    static {
+        ProtocolFamily unix = null;
+        Method addressOf = null;
+        Method openServer = null;
+        Method openClient = null;
+        Method getPath = null;
+        Method getAttribute = null;
+        Object noLinkOptions = null;
+        try {
+            Class pathType = Class.forName("java.nio.file.Path");
+            Class linkOptionType = Class.forName("java.nio.file.LinkOption");
+            getPath = Class.forName("java.nio.file.Paths").getMethod("get", String.class, String[].class);
+            noLinkOptions = java.lang.reflect.Array.newInstance(linkOptionType, 0);
+            getAttribute = Class.forName("java.nio.file.Files").getMethod("getAttribute", pathType, String.class, noLinkOptions.getClass());
+        }
+        catch (Exception e) {
+            getPath = null;
+        }
+        GET_PATH = getPath;
+        GET_ATTRIBUTE = getAttribute;
+        NO_LINK_OPTIONS = noLinkOptions;
+        try {
+            unix = StandardProtocolFamily.valueOf("UNIX");
+            addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+            openServer = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+            openClient = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+        }
+        catch (Exception e) {
+            unix = null;
+        }
+        UNIX = unix;
+        ADDRESS_OF = addressOf;
+        OPEN_SERVER = openServer;
+        OPEN_CLIENT = openClient;
+    }
+
+    private UnixSocketSupport() {
+    }
+
+    /**
+     * Returns true if this JVM supports Unix domain socket channels
+     */
+    public static boolean isAvailable() {
+        return UNIX != null;
+    }
+
+    /**
+     * Creates the address of the socket file at the given path
+     */
+    public static SocketAddress createAddress(String path) throws IOException {
+        return (SocketAddress) invoke(ADDRESS_OF, path);
+    }
+
+    /**
+     * Opens an unbound server channel for Unix domain sockets
+     */
+    public static ServerSocketChannel openServerChannel() throws IOException {
+        return (ServerSocketChannel) invoke(OPEN_SERVER, UNIX);
+    }
+
+    /**
+     * Connects to the socket file at the given path
+     */
+    public static SocketChannel connect(String path) throws IOException {
+        SocketChannel channel = (SocketChannel) invoke(OPEN_CLIENT, UNIX);
+        try {
+            channel.connect(createAddress(path));
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Returns true if the file at the given path is a socket file, as opposed to a regular file or directory.
+     * Where the file mode cannot be read any special file is taken to be a socket.
+     */
+    public static boolean isSocketFile(String path) {
+        File file = new File(path);
+        if (!file.exists() || file.isFile() || file.isDirectory()) {
+            return false;
+        }
+        if (GET_PATH != null) {
+            try {
+                Object mode = GET_ATTRIBUTE.invoke(null, GET_PATH.invoke(null, path, new String[0]), "unix:mode", NO_LINK_OPTIONS);
+                return (((Integer) mode).intValue() & FILE_TYPE_MASK) == SOCKET_TYPE;
+            }
+            catch (Exception e) {
+                // the unix attribute view is not supported
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if a server accepts connections on the socket file at the given path
+     */
+    public static boolean isListening(String path) {
+        try {
+            connect(path).close();
+            return true;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static Object invoke(Method method, Object argument) throws IOException {
+        if (!isAvailable()) {
+            throw new IOException("Unix domain sockets need Java 16 or later");
+        }
+        try {
+            return method.invoke(null, argument);
+        }
+        catch (InvocationTargetException e) {
+            Throwable cause = e.getTargetException();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw IOExceptionSupport.create(cause);
+        }
+        catch (IllegalAccessException e) {
+            throw IOExceptionSupport.create(e);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.vm;
+
+import org.codehaus.stomp.StompFrame;
+import org.codehaus.stomp.StompHandler;
+import org.codehaus.stomp.util.ServiceSupport;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One end of an in-VM connection. Frames sent to this transport are passed, without being marshalled, to the
+ * input handler of its peer through an in-memory queue.
+ * <p/>
+ * There is no thread per connection; whichever thread finds the queue idle delivers everything queued, so the
+ * frames of a connection are delivered one at a time and in order. A handler may send frames back to its peer
+ * while handling one, which are delivered once it returns if the other side is busy. Handlers should not block
+ * for long as they hold up everything else sent to them.
+ * <p/>
+ * A handler takes over the frames it is given, see {@link StompFrame#release()}.
+ *
+ * @version $Revision$
+ */
+public class VmTransport extends ServiceSupport implements StompHandler {
+    private final String name;
+    private final VmTransportServer server;
+    private final Queue<StompFrame> queue = new ConcurrentLinkedQueue<StompFrame>();
+    private final AtomicBoolean dispatching = new AtomicBoolean(false);
+    private VmTransport peer;
+    private StompHandler inputHandler;
+
+    public VmTransport(String name, VmTransportServer server) {
+        this.name = name;
+        this.server = server;
+    }
+
+    /**
+     * A one way asynchronous send to the peer
+     */
+    public void onStompFrame(StompFrame frame) throws Exception {
+        if (!isStarted()) {
+            frame.release();
+            throw new IOException("The transport is not running.");
+        }
+        peer.deliver(frame);
+    }
+
+    public void onException(Exception e) {
+        if (inputHandler != null) {
+            inputHandler.onException(e);
+        }
+    }
+
+    public void close() throws Exception {
+        stop();
+    }
+
+    public String toString() {
+        return name;
+    }
+
+    // Properties
+    //-------------------------------------------------------------------------
+    public StompHandler getInputHandler() {
+        return inputHandler;
+    }
+
+    /**
+     * Sets the handler frames sent by the peer are delivered to
+     */
+    public void setInputHandler(StompHandler inputHandler) {
+        this.inputHandler = inputHandler;
+    }
+
+    public VmTransport getPeer() {
+        return peer;
+    }
+
+    public void setPeer(VmTransport peer) {
+        this.peer = peer;
+    }
+
+    /**
+     * Returns the number of frames waiting to be delivered to the input handler
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    // Implementation methods
+    //-------------------------------------------------------------------------
+    protected void doStart() throws Exception {
+        if (peer == null || inputHandler == null) {
+            throw new IllegalStateException("Both a peer and an input handler are required: " + this);
+        }
+    }
+
+    protected void doStop() throws Exception {
+        try {
+            peer.stop();
+            if (inputHandler != null) {
+                inputHandler.close();
+            }
+        }
+        finally {
+            StompFrame frame;
+            while ((frame = queue.poll()) != null) {
+                frame.release();
+            }
+            if (server != null) {
+                server.onClosed(this);
+            }
+        }
+    }
+
+    /**
+     * Queues a frame sent by the peer, delivering it straight away unless another thread already is
+     */
+    protected void deliver(StompFrame frame) throws IOException {
+        if (isStopped()) {
+            frame.release();
+            throw new IOException("The connection has been closed: " + this);
+        }
+        queue.add(frame);
+
+        // check again after giving up delivering in case a frame was queued just before
+        while (!queue.isEmpty() && dispatching.compareAndSet(false, true)) {
+            try {
+                while ((frame = queue.poll()) != null) {
+                    try {
+                        inputHandler.onStompFrame(frame);
+                    }
+                    catch (Exception e) {
+                        // the sender is not to blame so lets tell the handler as a transport would
+                        inputHandler.onException(e);
+                    }
+                }
+            }
+            finally {
+                dispatching.set(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.vm;
+
+import org.codehaus.stomp.StompHandler;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The registry of the running {@link VmTransportServer}s of the JVM by name, so that a client can find the
+ * server for a <code>vm://name</code> URI without holding a reference to it.
+ *
+ * @version $Revision$
+ */
+public final class VmTransportRegistry {
+    private static final ConcurrentMap<String, VmTransportServer> servers = new ConcurrentHashMap<String, VmTransportServer>();
+
+    private VmTransportRegistry() {
+    }
+
+    /**
+     * Returns the server registered under the given name or null if there is none
+     */
+    public static VmTransportServer lookup(String name) {
+        return servers.get(name);
+    }
+
+    /**
+     * Returns the names of all the running servers
+     */
+    public static Set<String> getNames() {
+        return Collections.unmodifiableSet(servers.keySet());
+    }
+
+    /**
+     * Connects a client to the named server
+     *
+     * @param clientHandler receives the frames the server sends
+     * @return the handler the client sends its frames to, which is closed to disconnect
+     * @throws IOException if there is no server running with the name
+     */
+    public static StompHandler connect(String name, StompHandler clientHandler) throws Exception {
+        VmTransportServer server = lookup(name);
+        if (server == null) {
+            throw new IOException("No in-VM server is running with the name: " + name);
+        }
+        return server.connect(clientHandler);
+    }
+
+    static void bind(String name, VmTransportServer server) throws IOException {
+        if (servers.putIfAbsent(name, server) != null) {
+            throw new IOException("An in-VM server is already running with the name: " + name);
+        }
+    }
+
+    static void unbind(String name, VmTransportServer server) {
+        servers.remove(name, server);
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.vm;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.stomp.StompHandler;
+import org.codehaus.stomp.StompHandlerFactory;
+import org.codehaus.stomp.TransportServer;
+import org.codehaus.stomp.util.ServiceSupport;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A server for URIs such as <code>vm://broker</code> which accepts connections from clients in the same JVM,
+ * for embedding StompConnect or benchmarking it without the cost of sockets and marshalling. While running the
+ * server is registered with {@link VmTransportRegistry} under its name.
+ *
+ * @version $Revision$
+ */
+public class VmTransportServer extends ServiceSupport implements TransportServer {
+    private static final Log log = LogFactory.getLog(VmTransportServer.class);
+    private final StompHandlerFactory stompHandlerFactory;
+    private final URI location;
+    private final String name;
+    private final Map<VmTransport, Boolean> connections = new ConcurrentHashMap<VmTransport, Boolean>();
+    private final AtomicInteger connectionIds = new AtomicInteger();
+    private final CountDownLatch stoppedLatch = new CountDownLatch(1);
+
+    public VmTransportServer(StompHandlerFactory stompHandlerFactory, URI location) {
+        this.stompHandlerFactory = stompHandlerFactory;
+        this.location = location;
+        this.name = parseName(location);
+    }
+
+    /**
+     * Returns the name of the server in a URI such as <code>vm://broker</code>
+     */
+    public static String parseName(URI location) {
+        String answer = location.getAuthority();
+        if (answer == null) {
+            // an opaque URI such as vm:broker
+            answer = location.getSchemeSpecificPart();
+            int query = answer.indexOf('?');
+            if (query >= 0) {
+                answer = answer.substring(0, query);
+            }
+        }
+        if (answer == null || answer.length() == 0) {
+            throw new IllegalArgumentException("No name given for the in-VM server: " + location);
+        }
+        return answer;
+    }
+
+    /**
+     * Connects a client to this server
+     *
+     * @param clientHandler receives the frames the server sends
+     * @return the handler the client sends its frames to, which is closed to disconnect
+     */
+    public StompHandler connect(StompHandler clientHandler) throws Exception {
+        if (!isStarted()) {
+            throw new IOException("The in-VM server is not running: " + this);
+        }
+        String id = "vm://" + name + "#" + connectionIds.incrementAndGet();
+        VmTransport client = new VmTransport(id + " (client)", null);
+        VmTransport transport = new VmTransport(id, this);
+        client.setPeer(transport);
+        transport.setPeer(client);
+        client.setInputHandler(clientHandler);
+        transport.setInputHandler(stompHandlerFactory.createStompHandler(transport));
+        connections.put(transport, Boolean.TRUE);
+        transport.start();
+        client.start();
+        if (isStopped()) {
+            // we were stopped while connecting
+            transport.stop();
+        }
+        return client;
+    }
+
+    /**
+     * Joins with the server until it is stopped
+     */
+    public void join() throws InterruptedException {
+        stoppedLatch.await();
+    }
+
+    public String toString() {
+        return "vm://" + name;
+    }
+
+    // Properties
+    //-------------------------------------------------------------------------
+    public String getName() {
+        return name;
+    }
+
+    public URI getConnectURI() {
+        return location;
+    }
+
+    /**
+     * Returns the number of open connections
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    // Implementation methods
+    //-------------------------------------------------------------------------
+    protected void doStart() throws Exception {
+        VmTransportRegistry.bind(name, this);
+        log.info("Listening for in-VM connections at: " + location);
+    }
+
+    protected void doStop() throws Exception {
+        VmTransportRegistry.unbind(name, this);
+        try {
+            List<VmTransport> list = new ArrayList<VmTransport>(connections.keySet());
+            for (Iterator<VmTransport> iter = list.iterator(); iter.hasNext();) {
+                VmTransport transport = iter.next();
+                try {
+                    transport.stop();
+                }
+                catch (Exception e) {
+                    log.warn("Caught while closing: " + transport + ": " + e, e);
+                }
+            }
+        }
+        finally {
+            stoppedLatch.countDown();
+        }
+    }
+
+    void onClosed(VmTransport transport) {
+        connections.remove(transport);
+    }
+}
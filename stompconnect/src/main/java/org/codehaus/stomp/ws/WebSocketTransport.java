@@ -0,0 +1,517 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.ws;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.stomp.ProtocolException;
+import org.codehaus.stomp.StompFrame;
+import org.codehaus.stomp.StompMarshaller;
+import org.codehaus.stomp.nio.NioEventLoop;
+import org.codehaus.stomp.nio.NioTransport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A transport which carries Stomp over a <a href="http://tools.ietf.org/html/rfc6455">WebSocket</a> connection,
+ * as browser clients such as stomp.js do. It answers the HTTP upgrade request itself then runs on its
+ * {@link NioEventLoop} like any other {@link NioTransport}.
+ * <p/>
+ * Each Stomp frame sent is a single WebSocket message; frames received are decoded from the payload of
+ * the data messages with the usual {@link StompMarshaller} however the client splits them into messages or
+ * fragments, so the frames reach the same protocol converter as those of a plain socket. No extensions
+ * are supported.
+ *
+ * @version $Revision$
+ */
+public class WebSocketTransport extends NioTransport {
+    private static final Log log = LogFactory.getLog(WebSocketTransport.class);
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final String[] SUB_PROTOCOLS = new String[]{"v12.stomp", "v11.stomp", "v10.stomp"};
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final int END_OF_REQUEST = 0x0d0a0d0a;
+    private static final int OPCODE_CONTINUATION = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_BINARY = 0x2;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+    private static final int MAX_CONTROL_PAYLOAD = 125;
+    private static final int CLOSE_PROTOCOL_ERROR = 1002;
+    private final String name;
+    private boolean binaryFrames;
+    private int maxHandshakeLength = 8 * 1024;
+
+    // the upgrade request, until it has been answered
+    private ByteArrayOutputStream request = new ByteArrayOutputStream(512);
+    private int lastBytes;
+    private String path;
+    private String subProtocol;
+
+    // the frame being read
+    private final byte[] header = new byte[14];
+    private final byte[] mask = new byte[4];
+    private int headerLength;
+    private boolean inPayload;
+    private boolean inMessage;
+    private int opcode;
+    private long remaining;
+    private int maskIndex;
+    private byte[] control;
+    private int controlLength;
+
+    public WebSocketTransport(SocketChannel channel, NioEventLoop eventLoop) {
+        super(channel, eventLoop);
+        Socket socket = channel.socket();
+        this.name = "ws://" + socket.getInetAddress() + ":" + socket.getPort();
+    }
+
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Returns the value of the <code>Sec-WebSocket-Accept</code> header which answers the given key
+     */
+    public static String createAcceptKey(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return base64(digest.digest((key.trim() + ACCEPT_GUID).getBytes("ISO-8859-1")));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Properties
+    //-------------------------------------------------------------------------
+    public boolean isBinaryFrames() {
+        return binaryFrames;
+    }
+
+    /**
+     * Sets whether frames are sent as binary rather than text messages. Text messages, the default, are what
+     * browser clients expect but must only hold valid UTF-8 so binary messages suit clients sending binary bodies.
+     */
+    public void setBinaryFrames(boolean binaryFrames) {
+        this.binaryFrames = binaryFrames;
+    }
+
+    public int getMaxHandshakeLength() {
+        return maxHandshakeLength;
+    }
+
+    /**
+     * Sets the largest upgrade request in bytes accepted before the connection is refused
+     */
+    public void setMaxHandshakeLength(int maxHandshakeLength) {
+        this.maxHandshakeLength = maxHandshakeLength;
+    }
+
+    /**
+     * Returns the path the client asked for in the upgrade request or null if the handshake has not completed
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the Stomp sub-protocol agreed with the client, such as <code>v12.stomp</code>, or null if it did not
+     * ask for one
+     */
+    public String getSubProtocol() {
+        return subProtocol;
+    }
+
+    // Implementation methods
+    //-------------------------------------------------------------------------
+    /**
+     * Reads the upgrade request then unwraps the payload of the WebSocket frames which follow it, passing the data
+     * messages on to be decoded as Stomp
+     */
+    protected void onData(ByteBuffer data) throws Exception {
+        if (request != null && !readRequest(data)) {
+            return;
+        }
+        while (data.hasRemaining() && !isStopped()) {
+            if (!inPayload) {
+                readHeader(data);
+                continue;
+            }
+            int start = data.position();
+            int length = (int) Math.min(remaining, data.remaining());
+            unmask(data, start, length);
+            remaining -= length;
+            if (control != null) {
+                data.get(control, controlLength, length);
+                controlLength += length;
+            }
+            else {
+                int limit = data.limit();
+                data.limit(start + length);
+                try {
+                    super.onData(data);
+                }
+                finally {
+                    data.limit(limit);
+                    data.position(start + length);
+                }
+            }
+            if (remaining == 0) {
+                onFrameComplete();
+            }
+        }
+    }
+
+    /**
+     * Wraps the encoded frame in a single unfragmented WebSocket message. The exact length of the frame is worked
+     * out first so the header can be written in front of it without moving any data.
+     */
+    protected ByteBuffer encode(StompFrame command) {
+        int length = getMarshaller().getEncodedLength(command);
+        ByteBuffer buffer = getBufferPool().acquire(getHeaderLength(length) + length);
+        try {
+            putHeader(buffer, binaryFrames ? OPCODE_BINARY : OPCODE_TEXT, length);
+            getMarshaller().marshal(command, buffer);
+        }
+        catch (RuntimeException e) {
+            getBufferPool().release(buffer);
+            throw e;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    protected ByteBuffer createHeartBeat() {
+        ByteBuffer buffer = ByteBuffer.allocate(3);
+        putHeader(buffer, binaryFrames ? OPCODE_BINARY : OPCODE_TEXT, 1);
+        buffer.put((byte) '\n');
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Collects the upgrade request until the blank line which ends it
+     *
+     * @return true once the request has been answered and the data which follows it is WebSocket frames
+     */
+    protected boolean readRequest(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            byte b = data.get();
+            request.write(b);
+            lastBytes = (lastBytes << 8) | (b & 0xff);
+            if (lastBytes == END_OF_REQUEST) {
+                String text = new String(request.toByteArray(), "ISO-8859-1");
+                request = null;
+                return processRequest(text);
+            }
+            if (request.size() > maxHandshakeLength) {
+                request = null;
+                reject("431 Request Header Fields Too Large", "The upgrade request is larger than " + maxHandshakeLength + " bytes");
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Validates the upgrade request and sends the response which switches the connection over to WebSocket frames
+     */
+    protected boolean processRequest(String text) throws IOException {
+        String[] lines = text.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !"GET".equals(requestLine[0])) {
+            reject("400 Bad Request", "Not a GET request: " + lines[0]);
+            return false;
+        }
+        Map<String, String> headers = new HashMap<String, String>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                String headerName = lines[i].substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+                String value = lines[i].substring(colon + 1).trim();
+                String previous = headers.get(headerName);
+                headers.put(headerName, (previous != null) ? previous + ", " + value : value);
+            }
+        }
+
+        String connection = headers.get("connection");
+        String key = headers.get("sec-websocket-key");
+        if (!"websocket".equalsIgnoreCase(headers.get("upgrade")) || connection == null
+                || connection.toLowerCase(Locale.ENGLISH).indexOf("upgrade") < 0 || key == null) {
+            reject("400 Bad Request", "Not a WebSocket upgrade request for " + requestLine[1]);
+            return false;
+        }
+        if (!"13".equals(headers.get("sec-websocket-version"))) {
+            reject("426 Upgrade Required", "Unsupported WebSocket version " + headers.get("sec-websocket-version"));
+            return false;
+        }
+        path = requestLine[1];
+        subProtocol = chooseSubProtocol(headers.get("sec-websocket-protocol"));
+
+        StringBuffer response = new StringBuffer("HTTP/1.1 101 Switching Protocols\r\n");
+        response.append("Upgrade: websocket\r\n");
+        response.append("Connection: Upgrade\r\n");
+        response.append("Sec-WebSocket-Accept: ").append(createAcceptKey(key)).append("\r\n");
+        if (subProtocol != null) {
+            response.append("Sec-WebSocket-Protocol: ").append(subProtocol).append("\r\n");
+        }
+        response.append("\r\n");
+        send(response.toString().getBytes("ISO-8859-1"));
+        if (log.isDebugEnabled()) {
+            log.debug("WebSocket connection " + this + " upgraded for " + path + " using sub-protocol " + subProtocol);
+        }
+        return true;
+    }
+
+    /**
+     * Picks the first of the Stomp versions the client offers which we support
+     */
+    protected String chooseSubProtocol(String offered) {
+        if (offered == null) {
+            return null;
+        }
+        String[] protocols = offered.split(",");
+        for (int i = 0; i < protocols.length; i++) {
+            String protocol = protocols[i].trim();
+            for (int j = 0; j < SUB_PROTOCOLS.length; j++) {
+                if (SUB_PROTOCOLS[j].equalsIgnoreCase(protocol)) {
+                    return SUB_PROTOCOLS[j];
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Answers a request we cannot upgrade with an HTTP error and closes the connection
+     */
+    protected void reject(String status, String reason) throws IOException {
+        log.debug("Refusing connection " + this + ": " + reason);
+        String response = "HTTP/1.1 " + status + "\r\nSec-WebSocket-Version: 13\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+        try {
+            send(response.getBytes("ISO-8859-1"));
+        }
+        finally {
+            try {
+                stop();
+            }
+            catch (Exception e) {
+                log.warn("Caught while closing: " + e + ". Now Closed", e);
+            }
+        }
+    }
+
+    /**
+     * Reads the bytes of a frame header, starting its payload once the header is complete
+     */
+    protected void readHeader(ByteBuffer data) throws Exception {
+        while (data.hasRemaining()) {
+            header[headerLength++] = data.get();
+            if (headerLength >= 2 && headerLength == getHeaderLength(header[1]) + 4) {
+                headerLength = 0;
+                startFrame();
+                return;
+            }
+        }
+    }
+
+    protected void startFrame() throws Exception {
+        int first = header[0] & 0xff;
+        int second = header[1] & 0xff;
+        boolean fin = (first & 0x80) != 0;
+        if ((first & 0x70) != 0) {
+            fail("Reserved bits set but no extension was agreed");
+        }
+        if ((second & 0x80) == 0) {
+            fail("Frames from the client must be masked");
+        }
+        opcode = first & 0x0f;
+
+        long length = second & 0x7f;
+        int offset = 2;
+        if (length == 126) {
+            length = ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+            offset = 4;
+        }
+        else if (length == 127) {
+            length = 0;
+            for (offset = 2; offset < 10; offset++) {
+                length = (length << 8) | (header[offset] & 0xff);
+            }
+            if (length < 0) {
+                fail("Invalid payload length");
+            }
+        }
+        System.arraycopy(header, offset, mask, 0, 4);
+        maskIndex = 0;
+        remaining = length;
+
+        control = null;
+        switch (opcode) {
+            case OPCODE_CLOSE:
+            case OPCODE_PING:
+            case OPCODE_PONG:
+                if (!fin || length > MAX_CONTROL_PAYLOAD) {
+                    fail("Invalid control frame");
+                }
+                control = new byte[(int) length];
+                controlLength = 0;
+                break;
+            case OPCODE_CONTINUATION:
+                if (!inMessage) {
+                    fail("Continuation frame without a message to continue");
+                }
+                inMessage = !fin;
+                break;
+            case OPCODE_TEXT:
+            case OPCODE_BINARY:
+                if (inMessage) {
+                    fail("New message before the previous message was finished");
+                }
+                inMessage = !fin;
+                break;
+            default:
+                fail("Unknown opcode: " + opcode);
+        }
+        inPayload = true;
+        if (remaining == 0) {
+            onFrameComplete();
+        }
+    }
+
+    protected void onFrameComplete() throws Exception {
+        inPayload = false;
+        if (opcode == OPCODE_PING) {
+            sendControl(OPCODE_PONG, control, controlLength);
+        }
+        else if (opcode == OPCODE_CLOSE) {
+            // echo the status code back and close
+            sendControl(OPCODE_CLOSE, control, Math.min(controlLength, 2));
+            stop();
+        }
+        control = null;
+    }
+
+    /**
+     * Closes the connection with a protocol error, reporting it to the input handler by way of the exception
+     */
+    protected void fail(String reason) throws IOException {
+        if (!isStopped()) {
+            byte[] code = new byte[]{(byte) (CLOSE_PROTOCOL_ERROR >> 8), (byte) CLOSE_PROTOCOL_ERROR};
+            try {
+                sendControl(OPCODE_CLOSE, code, code.length);
+            }
+            catch (IOException e) {
+                log.debug("Could not send close frame: " + e, e);
+            }
+        }
+        throw new ProtocolException("WebSocket protocol error from " + this + ": " + reason, true);
+    }
+
+    protected void sendControl(int opcode, byte[] payload, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(2 + length);
+        putHeader(buffer, opcode, length);
+        buffer.put(payload, 0, length);
+        buffer.flip();
+        getOutboundBudget().forceReserve(buffer.remaining());
+        enqueue(buffer, false);
+    }
+
+    protected void send(byte[] data) throws IOException {
+        getOutboundBudget().forceReserve(data.length);
+        enqueue(ByteBuffer.wrap(data), false);
+    }
+
+    protected void unmask(ByteBuffer data, int start, int length) {
+        int index = maskIndex;
+        if (data.hasArray()) {
+            byte[] array = data.array();
+            for (int i = data.arrayOffset() + start, end = i + length; i < end; i++) {
+                array[i] ^= mask[index++ & 3];
+            }
+        }
+        else {
+            for (int i = start, end = start + length; i < end; i++) {
+                data.put(i, (byte) (data.get(i) ^ mask[index++ & 3]));
+            }
+        }
+        maskIndex = index & 3;
+    }
+
+    /**
+     * Returns the size of the header for a payload of the given length, without a mask
+     */
+    protected static int getHeaderLength(int length) {
+        return (length < 126) ? 2 : (length < 65536) ? 4 : 10;
+    }
+
+    /**
+     * Returns the size of the header, without its mask, given the second byte of the header
+     */
+    protected static int getHeaderLength(byte second) {
+        int length = second & 0x7f;
+        return (length < 126) ? 2 : (length == 126) ? 4 : 10;
+    }
+
+    protected static void putHeader(ByteBuffer buffer, int opcode, int length) {
+        buffer.put((byte) (0x80 | opcode));
+        if (length < 126) {
+            buffer.put((byte) length);
+        }
+        else if (length < 65536) {
+            buffer.put((byte) 126);
+            buffer.putShort((short) length);
+        }
+        else {
+            buffer.put((byte) 127);
+            buffer.putLong(length);
+        }
+    }
+
+    private static String base64(byte[] data) {
+        StringBuffer buffer = new StringBuffer(((data.length + 2) / 3) * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int b = (data[i] & 0xff) << 16;
+            if (i + 1 < data.length) {
+                b |= (data[i + 1] & 0xff) << 8;
+            }
+            if (i + 2 < data.length) {
+                b |= data[i + 2] & 0xff;
+            }
+            buffer.append(BASE64[(b >> 18) & 0x3f]);
+            buffer.append(BASE64[(b >> 12) & 0x3f]);
+            buffer.append((i + 1 < data.length) ? BASE64[(b >> 6) & 0x3f] : '=');
+            buffer.append((i + 2 < data.length) ? BASE64[b & 0x3f] : '=');
+        }
+        return buffer.toString();
+    }
+}
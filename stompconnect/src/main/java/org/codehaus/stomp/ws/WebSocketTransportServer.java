@@ -0,0 +1,58 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.ws;
+
+import org.codehaus.stomp.StompHandlerFactory;
+import org.codehaus.stomp.nio.NioEventLoop;
+import org.codehaus.stomp.nio.NioTransport;
+import org.codehaus.stomp.nio.NioTransportServer;
+import org.codehaus.stomp.util.IntrospectionSupport;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A server for URIs such as <code>ws://0.0.0.0:61614</code> which accepts Stomp over WebSocket connections,
+ * such as those of browsers, without needing a web server or proxy in front of it. Connections are served by
+ * {@link NioEventLoop}s in the same way as <code>nio://</code> so many clients share a few threads.
+ * <p/>
+ * Takes the same options as <code>nio://</code> along with those of {@link WebSocketTransport}, such as
+ * <code>binaryFrames=true</code>.
+ *
+ * @version $Revision$
+ */
+public class WebSocketTransportServer extends NioTransportServer {
+
+    public WebSocketTransportServer(StompHandlerFactory stompHandlerFactory, URI location) {
+        super(stompHandlerFactory, location);
+    }
+
+    // Implementation methods
+    //-------------------------------------------------------------------------
+    protected NioTransport createTransport(SocketChannel channel, NioEventLoop eventLoop) throws IOException {
+        Map options = (getTransportOptions() != null) ? new HashMap(getTransportOptions()) : new HashMap();
+        WebSocketTransport transport = new WebSocketTransport(channel, eventLoop);
+        // options which are not properties of the transport are applied to the socket
+        IntrospectionSupport.setProperties(transport, options);
+        transport.setSocketOptions(options);
+        return transport;
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp;
+
+/**
+ * The handlers of the transport server tests, which send every frame straight back to the client as a MESSAGE.
+ * Tests which need to hold up or fail a connection override the hooks.
+ *
+ * @version $Revision$
+ */
+public class EchoHandlerFactory implements StompHandlerFactory {
+
+    public StompHandler createStompHandler(final StompHandler outputHandler) throws Exception {
+        onCreate();
+        return new StompHandler() {
+            public void onStompFrame(StompFrame frame) throws Exception {
+                onFrame(frame);
+                frame.setAction("MESSAGE");
+                outputHandler.onStompFrame(frame);
+            }
+
+            public void onException(Exception e) {
+            }
+
+            public void close() {
+                onClose();
+            }
+        };
+    }
+
+    /**
+     * Called on the thread setting up each connection before its handler is created
+     */
+    protected void onCreate() throws Exception {
+    }
+
+    /**
+     * Called with each frame before it is echoed
+     */
+    protected void onFrame(StompFrame frame) throws Exception {
+    }
+
+    /**
+     * Called when a connection is closed
+     */
+    protected void onClose() {
+    }
+}
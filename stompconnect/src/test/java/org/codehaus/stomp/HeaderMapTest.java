@@ -0,0 +1,83 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * @version $Revision$
+ */
+public class HeaderMapTest extends TestCase {
+
+    public void testPutGetAndRemove() throws Exception {
+        HeaderMap map = new HeaderMap(2);
+        map.put(Stomp.Headers.Send.DESTINATION, "/queue/a");
+        map.put(Stomp.Headers.RECEIPT_REQUESTED, "1");
+        map.put("custom", "x");
+
+        assertEquals(3, map.size());
+        assertEquals("/queue/a", map.get(new String("destination")));
+        assertEquals("1", map.put("receipt", "2"));
+        assertEquals(3, map.size());
+
+        assertEquals("2", map.remove("receipt"));
+        assertNull(map.get("receipt"));
+        assertEquals(2, map.size());
+        assertEquals("destination", map.getKey(0));
+        assertEquals("custom", map.getKey(1));
+        assertEquals("x", map.getValue(1));
+    }
+
+    public void testRawValuesAreDecodedWhenRead() throws Exception {
+        byte[] data = "xcaf\u00e9y".getBytes("UTF-8");
+        HeaderMap map = new HeaderMap(1);
+        map.putRaw("a", data, 1, data.length - 2);
+        map.put("b", "2");
+        map.putRaw("c", data, 0, 1);
+
+        assertEquals("caf\u00e9", map.get("a"));
+        assertEquals("x", map.getValue(2));
+        assertEquals("caf\u00e9", map.remove("a"));
+        assertEquals("x", map.get("c"));
+        assertEquals(2, map.size());
+    }
+
+    public void testIteratorRemoveAndEquality() throws Exception {
+        HeaderMap map = new HeaderMap();
+        map.put("a", "1");
+        map.put("b", "2");
+        map.put("c", "3");
+
+        for (Iterator<Map.Entry<String, Object>> iter = map.entrySet().iterator(); iter.hasNext();) {
+            if ("b".equals(iter.next().getKey())) {
+                iter.remove();
+            }
+        }
+
+        Map<String, Object> expected = new HashMap<String, Object>();
+        expected.put("a", "1");
+        expected.put("c", "3");
+        assertEquals(expected, map);
+        assertEquals(map, new HeaderMap(expected));
+        assertEquals(expected.hashCode(), map.hashCode());
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp;
+
+import junit.framework.TestCase;
+import org.codehaus.stomp.util.TimerWheel;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @version $Revision$
+ */
+public class HeartBeatMonitorTest extends TestCase {
+    private TimerWheel wheel = new TimerWheel("test timer", 10, 8);
+    private AtomicInteger checks = new AtomicInteger();
+    private CountDownLatch sending = new CountDownLatch(1);
+    private CountDownLatch release = new CountDownLatch(1);
+    private HeartBeatMonitor monitor = new HeartBeatMonitor(wheel) {
+        protected void sendHeartBeat() {
+            sending.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        protected void onReadTimeout(long silence) {
+        }
+
+        protected void check(int scheduledGeneration) {
+            checks.incrementAndGet();
+            super.check(scheduledGeneration);
+        }
+    };
+
+    public void testRestartDuringCheckLeavesASingleChain() throws Exception {
+        monitor.start(100, 0);
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+        // restart while the timer thread is part way through a check
+        monitor.start(100, 0);
+        release.countDown();
+
+        checks.set(0);
+        Thread.sleep(1000);
+        // a single chain checks a little over every 100 ms, two chains would check twice as often
+        assertTrue("checks " + checks.get(), checks.get() <= 12);
+        assertTrue("checks " + checks.get(), checks.get() >= 4);
+    }
+
+    protected void tearDown() throws Exception {
+        monitor.stop();
+        wheel.stop();
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * @version $Revision$
+ */
+public class StompFramePoolTest extends TestCase {
+
+    public void testDecodedFramesAreRecycled() throws Exception {
+        StompMarshaller marshaller = new StompMarshaller();
+        StompFrame frame = marshaller.unmarshal("SEND\ndestination:/queue/a\n\nhello\u0000".getBytes("UTF-8"));
+        assertEquals(1, StompFramePool.getLeaks().size());
+
+        frame.release();
+        assertEquals(0, StompFramePool.getLeaks().size());
+
+        StompFrame recycled = StompFramePool.acquire();
+        assertSame(frame, recycled);
+        assertNull(recycled.getAction());
+        assertTrue(recycled.getHeaders().isEmpty());
+        assertEquals(0, recycled.getContent().length);
+        recycled.release();
+    }
+
+    public void testDoubleReleaseIsDetected() throws Exception {
+        StompFrame frame = StompFramePool.acquire();
+        frame.release();
+        try {
+            frame.release();
+            fail("Should have detected the frame being released twice");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testFramesReleasedOnAnotherThreadAreReused() throws Exception {
+        final int count = 100;
+        final StompFrame[] frames = new StompFrame[count];
+        for (int i = 0; i < count; i++) {
+            frames[i] = StompFramePool.acquire();
+        }
+        Thread releaser = new Thread() {
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    frames[i].release();
+                }
+            }
+        };
+        releaser.start();
+        releaser.join();
+
+        // the releasing thread keeps what fits in its own list and shares the rest
+        StompFrame[] reused = new StompFrame[count - 64];
+        for (int i = 0; i < reused.length; i++) {
+            reused[i] = StompFramePool.acquire();
+            assertTrue(Arrays.asList(frames).contains(reused[i]));
+        }
+        for (int i = 0; i < reused.length; i++) {
+            reused[i].release();
+        }
+    }
+
+    public void testUnpooledFramesIgnoreRelease() throws Exception {
+        StompFrame frame = new StompFrame();
+        frame.release();
+        frame.release();
+        assertNotSame(frame, StompFramePool.acquire());
+    }
+
+    protected void setUp() throws Exception {
+        StompFramePool.clear();
+        StompFramePool.setEnabled(true);
+        StompFramePool.setLeakDetection(true);
+    }
+
+    protected void tearDown() throws Exception {
+        StompFramePool.setLeakDetection(false);
+        StompFramePool.setEnabled(false);
+        StompFramePool.clear();
+    }
+}
@@ -0,0 +1,224 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * @version $Revision$
+ */
+public class StompMarshallerTest extends TestCase {
+    private StompMarshaller marshaller = new StompMarshaller();
+
+    public void testUnmarshalTextFrame() throws Exception {
+        StompFrame frame = marshaller.unmarshal(bytes("SEND\ndestination: /queue/foo \nreceipt:1\n\nHello World\u0000\n"));
+
+        assertEquals("SEND", frame.getAction());
+        assertEquals("/queue/foo", frame.getHeaders().get("destination"));
+        assertEquals("1", frame.getHeaders().get("receipt"));
+        assertEquals("Hello World", new String(frame.getContent(), "UTF-8"));
+    }
+
+    public void testUnmarshalUsesCanonicalNames() throws Exception {
+        StompFrame frame = marshaller.unmarshal(bytes("SEND\ndestination:/queue/foo\ncustom:1\n\n\u0000"));
+
+        assertSame(Stomp.Commands.SEND, frame.getAction());
+        HeaderMap headers = (HeaderMap) frame.getHeaders();
+        assertSame(Stomp.Headers.Send.DESTINATION, headers.getKey(0));
+        assertEquals("custom", headers.getKey(1));
+        assertNull(StompNames.lookupHeaderName(bytes("destinatioN"), 0, 11));
+    }
+
+    public void testResolveCommand() throws Exception {
+        assertEquals(StompCommand.SEND, marshaller.unmarshal(bytes("SEND\n\n\u0000")).getCommand());
+        assertEquals(StompCommand.SUBSCRIBE, StompCommand.resolve("SUBSCRIBE"));
+        assertEquals(StompCommand.UNSUBSCRIBE, StompCommand.resolve("UNSUBSCRIBE"));
+        assertEquals(StompCommand.BEGIN, StompCommand.resolve("BEGIN_TRANSACTION"));
+        assertEquals(StompCommand.UNKNOWN, StompCommand.resolve("BOGUS"));
+    }
+
+    public void testUnmarshalContentLengthFrame() throws Exception {
+        byte[] data = bytes("SEND\ndestination:/queue/foo\ncontent-length:4\n\n\u0001\u0000\u0000\u0004\u0000\n");
+        StompFrame frame = marshaller.unmarshal(ByteBuffer.wrap(data));
+
+        assertEquals("SEND", frame.getAction());
+        assertEquals(4, frame.getContent().length);
+        assertEquals(1, frame.getContent()[0]);
+        assertEquals(0, frame.getContent()[1]);
+        assertEquals(4, frame.getContent()[3]);
+    }
+
+    public void testUnmarshalFrameSplitAtEveryPosition() throws Exception {
+        byte[] data = bytes("\nCONNECT\nlogin:brianm\n\n\u0000\nSEND\ndestination:/queue/foo\ncontent-length:2\n\nhi\u0000\n");
+        for (int split = 0; split <= data.length; split++) {
+            ByteBuffer first = ByteBuffer.wrap(data, 0, split);
+            ByteBuffer second = ByteBuffer.wrap(data, split, data.length - split);
+
+            StompFrame connect = next(first, second);
+            assertEquals("split at " + split, "CONNECT", connect.getAction());
+            assertEquals("brianm", connect.getHeaders().get("login"));
+
+            StompFrame send = next(first, second);
+            assertEquals("split at " + split, "SEND", send.getAction());
+            assertEquals("hi", new String(send.getContent(), "UTF-8"));
+        }
+    }
+
+    public void testUnmarshalFromDirectBuffer() throws Exception {
+        byte[] data = bytes("MESSAGE\nmessage-id:1\n\nabc\u0000\n");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+        buffer.flip();
+
+        StompFrame frame = marshaller.unmarshal(buffer);
+        assertEquals("MESSAGE", frame.getAction());
+        assertEquals("abc", new String(frame.getContent(), "UTF-8"));
+    }
+
+    public void testUnmarshalMissingTrailingNull() throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes("SEND\ncontent-length:1\n\nab"));
+        StompFrame frame = marshaller.unmarshal(buffer);
+        assertTrue(frame instanceof StompFrameError);
+        assertFalse(buffer.hasRemaining());
+
+        frame = marshaller.unmarshal(ByteBuffer.wrap(bytes("SEND\n\nok\u0000")));
+        assertEquals("SEND", frame.getAction());
+    }
+
+    public void testUnmarshalInvalidHeader() throws Exception {
+        StompFrame frame = marshaller.unmarshal(new DataInputStream(new ByteArrayInputStream(bytes("SEND\nbogus\n\n\u0000"))));
+        assertTrue(frame instanceof StompFrameError);
+    }
+
+    public void testMarshalRoundTrip() throws Exception {
+        StompFrame frame = marshaller.unmarshal(bytes("SEND\ndestination:/queue/foo\n\nHello\u0000\n"));
+        StompFrame copy = marshaller.unmarshal(marshaller.marshal(frame));
+
+        assertEquals(frame.getAction(), copy.getAction());
+        assertEquals(frame.getHeaders(), copy.getHeaders());
+        assertEquals("Hello", new String(copy.getContent(), "UTF-8"));
+    }
+
+    public void testMarshalIntoBuffer() throws Exception {
+        Map<String, Object> headers = new LinkedHashMap<String, Object>();
+        headers.put("destination", "/queue/caf\u00e9");
+        headers.put("custom-\u20ac", Integer.valueOf(5));
+        headers.put("emoji", "\ud83d\ude00");
+        StompFrame frame = new StompFrame("MESSAGE", headers, bytes("body"));
+
+        StompFrameEncoder encoder = new StompFrameEncoder();
+        ByteBuffer buffer = ByteBuffer.allocate(encoder.getMaxEncodedLength(frame));
+        marshaller.marshal(frame, buffer);
+
+        String expected = "MESSAGE\ndestination:/queue/caf\u00e9\ncustom-\u20ac:5\nemoji:\ud83d\ude00\n\nbody\u0000\n";
+        assertEquals(expected, new String(buffer.array(), 0, buffer.position(), "UTF-8"));
+        assertEquals(expected, new String(marshaller.marshal(frame), "UTF-8"));
+        assertEquals(buffer.position(), marshaller.getEncodedLength(frame));
+
+        headers.put("broken", "\ud83d-\ude00");
+        buffer = ByteBuffer.allocate(encoder.getMaxEncodedLength(frame));
+        marshaller.marshal(frame, buffer);
+        assertEquals(buffer.position(), marshaller.getEncodedLength(frame));
+    }
+
+    public void testUnmarshalSpoolsLargeBodies() throws Exception {
+        marshaller.setSpoolThreshold(4);
+        byte[] data = bytes("SEND\ncontent-length:10\n\n0123456789\u0000\nSEND\n\nabcdefgh\u0000\nSEND\n\nab\u0000\n");
+        for (int split = 0; split <= data.length; split += 7) {
+            ByteBuffer first = ByteBuffer.wrap(data, 0, split);
+            ByteBuffer second = ByteBuffer.wrap(data, split, data.length - split);
+
+            StompFrame fixed = next(first, second);
+            SpooledContent spooled = fixed.getSpooledContent();
+            assertNotNull("split at " + split, spooled);
+            assertEquals(10, spooled.getLength());
+            assertEquals("0123456789", new String(spooled.toByteArray(), "UTF-8"));
+            fixed.release();
+            assertFalse(spooled.getFile().exists());
+
+            StompFrame text = next(first, second);
+            assertNotNull("split at " + split, text.getSpooledContent());
+            File file = text.getSpooledContent().getFile();
+            assertEquals("abcdefgh", new String(text.getContent(), "UTF-8"));
+            assertNull(text.getSpooledContent());
+            assertFalse(file.exists());
+
+            StompFrame small = next(first, second);
+            assertNull(small.getSpooledContent());
+            assertEquals("ab", new String(small.getContent(), "UTF-8"));
+        }
+    }
+
+    public void testScanMatchesByteSearch() throws Exception {
+        StompFrameDecoder decoder = new StompFrameDecoder();
+        Random random = new Random(42);
+        byte[] data = new byte[200];
+        for (int round = 0; round < 500; round++) {
+            random.nextBytes(data);
+            byte value = (byte) random.nextInt(4);
+            for (int i = 0; i < data.length; i++) {
+                if (data[i] == value && random.nextInt(8) != 0) {
+                    data[i] = (byte) 0x80;
+                }
+            }
+            int start = random.nextInt(40);
+            int end = start + random.nextInt(data.length - start);
+            int expected = -1;
+            for (int i = start; i < end; i++) {
+                if (data[i] == value) {
+                    expected = i;
+                    break;
+                }
+            }
+            assertEquals(expected, decoder.scan(data, start, end, value));
+        }
+    }
+
+    public void testUnmarshalLongTextBody() throws Exception {
+        StringBuffer body = new StringBuffer();
+        for (int i = 0; i < 1000; i++) {
+            body.append("line ").append(i).append('\n');
+        }
+        StompFrame frame = marshaller.unmarshal(bytes("SEND\ndestination:/queue/foo\n\n" + body + "\u0000\nSEND\n\nx\u0000"));
+        assertEquals(body.toString(), new String(frame.getContent(), "UTF-8"));
+    }
+
+    protected StompFrame next(ByteBuffer first, ByteBuffer second) throws Exception {
+        StompFrame frame = null;
+        if (first.hasRemaining()) {
+            frame = marshaller.unmarshal(first);
+        }
+        if (frame == null) {
+            frame = marshaller.unmarshal(second);
+        }
+        assertNotNull(frame);
+        return frame;
+    }
+
+    protected byte[] bytes(String text) throws Exception {
+        return text.getBytes("UTF-8");
+    }
+}
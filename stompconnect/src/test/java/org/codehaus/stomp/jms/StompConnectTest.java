@@ -0,0 +1,45 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.jms;
+
+import junit.framework.TestCase;
+import org.codehaus.stomp.TransportServer;
+import org.codehaus.stomp.tcp.TcpTransportServer;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+
+/**
+ * @version $Revision$
+ */
+public class StompConnectTest extends TestCase {
+    private TcpTransportServer created;
+
+    public void testDerivedTcpServerHookIsCalled() throws Exception {
+        StompConnect connect = new StompConnect() {
+            protected TcpTransportServer createTcpServer() throws IOException, URISyntaxException {
+                created = super.createTcpServer();
+                return created;
+            }
+        };
+        connect.setUri("tcp://localhost:0");
+        TransportServer server = connect.createTransportServer();
+        assertNotNull(created);
+        assertSame(created, server);
+    }
+}
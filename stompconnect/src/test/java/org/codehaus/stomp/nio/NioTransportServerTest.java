@@ -0,0 +1,163 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.nio;
+
+import junit.framework.TestCase;
+import org.codehaus.stomp.EchoHandlerFactory;
+import org.codehaus.stomp.StompFrame;
+import org.codehaus.stomp.StompMarshaller;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @version $Revision$
+ */
+public class NioTransportServerTest extends TestCase {
+    private NioTransportServer server;
+    private StompMarshaller marshaller = new StompMarshaller();
+    private CountDownLatch blocked = new CountDownLatch(1);
+    private AtomicBoolean failSetup = new AtomicBoolean();
+
+    public void testEchoFramesOnSeveralConnections() throws Exception {
+        Socket[] sockets = new Socket[5];
+        for (int i = 0; i < sockets.length; i++) {
+            sockets[i] = new Socket("localhost", server.getConnectURI().getPort());
+        }
+        for (int i = 0; i < sockets.length; i++) {
+            OutputStream out = sockets[i].getOutputStream();
+            // split a frame across two writes
+            out.write(("SEND\ndestination:/queue/" + i + "\n\nhel").getBytes("UTF-8"));
+            out.flush();
+            Thread.sleep(10);
+            out.write("lo\u0000\n".getBytes("UTF-8"));
+            out.flush();
+        }
+        for (int i = 0; i < sockets.length; i++) {
+            StompFrame frame = marshaller.unmarshal(new DataInputStream(sockets[i].getInputStream()));
+            assertEquals("MESSAGE", frame.getAction());
+            assertEquals("/queue/" + i, frame.getHeaders().get("destination"));
+            assertEquals("hello", new String(frame.getContent(), "UTF-8"));
+            sockets[i].close();
+        }
+    }
+
+    public void testFailedSetupOnlyClosesThatConnection() throws Exception {
+        failSetup.set(true);
+        Socket failed = new Socket("localhost", server.getConnectURI().getPort());
+        assertEquals(-1, failed.getInputStream().read());
+        failed.close();
+
+        Socket socket = new Socket("localhost", server.getConnectURI().getPort());
+        socket.getOutputStream().write("SEND\ndestination:/queue/a\n\nhello\u0000\n".getBytes("UTF-8"));
+        StompFrame frame = marshaller.unmarshal(new DataInputStream(socket.getInputStream()));
+        assertEquals("MESSAGE", frame.getAction());
+        assertTrue(server.isStarted());
+        socket.close();
+    }
+
+    public void testLargeFrameIsQueuedUntilWritable() throws Exception {
+        Socket socket = new Socket("localhost", server.getConnectURI().getPort());
+        StringBuffer body = new StringBuffer();
+        for (int i = 0; i < 200000; i++) {
+            body.append((char) ('a' + i % 26));
+        }
+        socket.getOutputStream().write(("SEND\ndestination:/queue/big\n\n" + body + "\u0000").getBytes("UTF-8"));
+        Thread.sleep(200);
+
+        StompFrame frame = marshaller.unmarshal(new DataInputStream(socket.getInputStream()));
+        assertEquals(body.toString(), new String(frame.getContent(), "UTF-8"));
+        socket.close();
+    }
+
+    public void testBlockedHandlerDoesNotStallTheEventLoop() throws Exception {
+        server.stop();
+        server = createServer("nio://localhost:0?eventLoops=1&workerThreads=4");
+        server.start();
+
+        Socket slow = new Socket("localhost", server.getConnectURI().getPort());
+        slow.getOutputStream().write("SEND\ndestination:/queue/block\n\nhello\u0000\n".getBytes("UTF-8"));
+        Thread.sleep(100);
+
+        // the other connection is served by the same event loop while the first handler is blocked
+        Socket fast = new Socket("localhost", server.getConnectURI().getPort());
+        fast.getOutputStream().write("SEND\ndestination:/queue/fast\n\nhello\u0000\n".getBytes("UTF-8"));
+        assertEquals("/queue/fast", marshaller.unmarshal(new DataInputStream(fast.getInputStream())).getHeaders().get("destination"));
+
+        blocked.countDown();
+        assertEquals("/queue/block", marshaller.unmarshal(new DataInputStream(slow.getInputStream())).getHeaders().get("destination"));
+        slow.close();
+        fast.close();
+    }
+
+    public void testDestinationRateLimitPausesReading() throws Exception {
+        server.stop();
+        server = createServer("nio://localhost:0?sendDestinationRates=/queue/slow.=10");
+        server.start();
+
+        Socket socket = new Socket("localhost", server.getConnectURI().getPort());
+        StringBuffer frames = new StringBuffer();
+        for (int i = 0; i < 15; i++) {
+            frames.append("SEND\ndestination:/queue/slow.").append(i).append("\n\nhello\u0000\n");
+        }
+        frames.append("SEND\ndestination:/queue/fast\n\nhello\u0000\n");
+        long start = System.currentTimeMillis();
+        socket.getOutputStream().write(frames.toString().getBytes("UTF-8"));
+
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        for (int i = 0; i < 15; i++) {
+            assertEquals("/queue/slow." + i, marshaller.unmarshal(in).getHeaders().get("destination"));
+        }
+        assertEquals("/queue/fast", marshaller.unmarshal(in).getHeaders().get("destination"));
+        // the burst of 10 goes straight through then the rest trickle in at 10 a second
+        assertTrue(System.currentTimeMillis() - start >= 400);
+        socket.close();
+    }
+
+    protected void setUp() throws Exception {
+        server = createServer("nio://localhost:0?eventLoops=2&tcpNoDelay=true&socketBufferSize=4096");
+        server.start();
+        assertEquals(2, server.getEventLoops());
+    }
+
+    protected NioTransportServer createServer(String uri) throws Exception {
+        return new NioTransportServer(new EchoHandlerFactory() {
+            protected void onCreate() {
+                if (failSetup.getAndSet(false)) {
+                    throw new IllegalStateException("Failing the setup of this connection");
+                }
+            }
+
+            protected void onFrame(StompFrame frame) throws Exception {
+                if ("/queue/block".equals(frame.getHeaders().get("destination"))) {
+                    blocked.await(10, TimeUnit.SECONDS);
+                }
+            }
+        }, new URI(uri));
+    }
+
+    protected void tearDown() throws Exception {
+        blocked.countDown();
+        server.stop();
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.ssl;
+
+import junit.framework.TestCase;
+import org.codehaus.stomp.EchoHandlerFactory;
+import org.codehaus.stomp.StompFrame;
+import org.codehaus.stomp.StompMarshaller;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.security.KeyStore;
+import java.util.Arrays;
+
+/**
+ * @version $Revision$
+ */
+public class SslTransportServerTest extends TestCase {
+    private SslTransportServer server;
+    private SSLContext clientContext;
+    private StompMarshaller marshaller = new StompMarshaller();
+
+    public void testEchoFramesOverTls() throws Exception {
+        SSLSocket socket = connect(null);
+        StringBuffer body = new StringBuffer();
+        for (int i = 0; i < 100000; i++) {
+            body.append((char) ('a' + i % 26));
+        }
+        String[] bodies = new String[]{"hello", body.toString()};
+        for (int i = 0; i < bodies.length; i++) {
+            socket.getOutputStream().write(("SEND\ndestination:/queue/" + i + "\n\n" + bodies[i] + "\u0000\n").getBytes("UTF-8"));
+            socket.getOutputStream().flush();
+
+            StompFrame frame = marshaller.unmarshal(new DataInputStream(socket.getInputStream()));
+            assertEquals("MESSAGE", frame.getAction());
+            assertEquals("/queue/" + i, frame.getHeaders().get("destination"));
+            assertEquals(bodies[i], new String(frame.getContent(), "UTF-8"));
+        }
+        socket.close();
+    }
+
+    public void testSessionIsResumed() throws Exception {
+        SSLSocket first = connect("TLSv1.2");
+        byte[] id = first.getSession().getId();
+        first.close();
+
+        SSLSocket second = connect("TLSv1.2");
+        assertTrue(Arrays.equals(id, second.getSession().getId()));
+        second.close();
+    }
+
+    public void testOptionsOverrideDefaults() throws Exception {
+        SslTransportServer other = createServer("nio+ssl://localhost:0?sessionCacheSize=5&sessionTimeout=60&handshakeThreads=0&keyStoreType=JKS");
+        assertEquals(5, other.getSessionCacheSize());
+        assertEquals(60, other.getSessionTimeout());
+        assertEquals(0, other.getHandshakeThreads());
+        assertEquals("JKS", other.getKeyStoreType());
+    }
+
+    public void testDefaultContextIsLeftAlone() throws Exception {
+        SSLContext defaultContext = SSLContext.getDefault();
+        int cacheSize = defaultContext.getServerSessionContext().getSessionCacheSize();
+        int timeout = defaultContext.getServerSessionContext().getSessionTimeout();
+        SslTransportServer other = createServer("nio+ssl://localhost:0?sessionCacheSize=" + (cacheSize + 7)
+                + "&sessionTimeout=" + (timeout + 7));
+        other.start();
+        try {
+            assertSame(defaultContext, other.getSslContext());
+            assertEquals(cacheSize, defaultContext.getServerSessionContext().getSessionCacheSize());
+            assertEquals(timeout, defaultContext.getServerSessionContext().getSessionTimeout());
+        }
+        finally {
+            other.stop();
+        }
+    }
+
+    public void testPasswordsAreNotShown() throws Exception {
+        assertNull(server.getConnectURI().getQuery());
+        assertEquals(-1, server.toString().indexOf("password"));
+        assertTrue(server.getConnectURI().getPort() > 0);
+    }
+
+    /**
+     * @param protocol the protocol to use or null for the default; session ids are only stable across
+     * resumption before TLS 1.3
+     */
+    protected SSLSocket connect(String protocol) throws Exception {
+        SSLSocket socket = (SSLSocket) clientContext.getSocketFactory().createSocket("localhost", server.getConnectURI().getPort());
+        if (protocol != null) {
+            socket.setEnabledProtocols(new String[]{protocol});
+        }
+        socket.startHandshake();
+        return socket;
+    }
+
+    protected void setUp() throws Exception {
+        File keyStore = new File(getClass().getResource("/stomp-test.p12").toURI());
+        KeyStore trusted = KeyStore.getInstance("PKCS12");
+        InputStream in = new FileInputStream(keyStore);
+        try {
+            trusted.load(in, "password".toCharArray());
+        }
+        finally {
+            in.close();
+        }
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(trusted);
+        clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, trustManagers.getTrustManagers(), null);
+
+        server = createServer("nio+ssl://localhost:0?eventLoops=1&handshakeThreads=2&keyStoreType=PKCS12&keyStorePassword=password&keyStore="
+                + keyStore.getPath());
+        server.start();
+    }
+
+    protected SslTransportServer createServer(String uri) throws Exception {
+        return new SslTransportServer(new EchoHandlerFactory(), new URI(uri));
+    }
+
+    protected void tearDown() throws Exception {
+        server.stop();
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.tcp;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * @version $Revision$
+ */
+public class TcpBufferedInputStreamTest extends TestCase {
+
+    public void testReadDoesNotAskWhatIsAvailable() throws Exception {
+        byte[] data = new byte[10000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ByteArrayInputStream source = new ByteArrayInputStream(data) {
+            public synchronized int available() {
+                throw new AssertionError("available() should not be called");
+            }
+        };
+        TcpBufferedInputStream in = new TcpBufferedInputStream(source, 1024);
+
+        assertEquals(0, in.read());
+        byte[] buffer = new byte[100];
+        assertEquals(100, in.read(buffer, 0, 100));
+        assertEquals(1, buffer[0]);
+        // only what is left of the first fill is returned
+        assertEquals(923, in.read(new byte[2000], 0, 2000));
+
+        int total = 1024;
+        int count;
+        while ((count = in.read(buffer, 0, buffer.length)) > 0) {
+            assertEquals((byte) total, buffer[0]);
+            total += count;
+        }
+        assertEquals(data.length, total);
+    }
+
+    public void testBufferSizeMustBePositive() throws Exception {
+        try {
+            new TcpBufferedInputStream(new ByteArrayInputStream(new byte[0]), 0);
+            fail("Should have thrown an exception");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
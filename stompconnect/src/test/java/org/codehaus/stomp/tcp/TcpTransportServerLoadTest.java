@@ -0,0 +1,102 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.tcp;
+
+import junit.framework.TestCase;
+import org.codehaus.stomp.EchoHandlerFactory;
+import org.codehaus.stomp.StompFrame;
+import org.codehaus.stomp.StompMarshaller;
+import org.codehaus.stomp.util.ThreadSupport;
+
+import javax.net.ServerSocketFactory;
+import java.io.DataInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.net.URI;
+
+/**
+ * Opens a large number of mostly idle connections to a <code>virtualThreads=true</code> server and checks what
+ * each one costs. By default only a hundred connections are used so the test runs anywhere; to try 50,000 raise
+ * the open file limit and run with something like <code>-Dstomp.load.connections=50000 -Xmx512m</code> on
+ * Java 21 or later.
+ *
+ * @version $Revision$
+ */
+public class TcpTransportServerLoadTest extends TestCase {
+    private TcpTransportServer server;
+    private static final long MAX_HEAP_PER_CONNECTION = 32 * 1024;
+    private int connectionCount = Integer.getInteger("stomp.load.connections", 100).intValue();
+
+    public void testManyIdleConnections() throws Exception {
+        Runtime runtime = Runtime.getRuntime();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        System.gc();
+        long usedBefore = runtime.totalMemory() - runtime.freeMemory();
+        int threadsBefore = threads.getThreadCount();
+
+        Socket[] sockets = new Socket[connectionCount];
+        try {
+            for (int i = 0; i < sockets.length; i++) {
+                sockets[i] = new Socket("localhost", server.getConnectURI().getPort());
+            }
+
+            // a few active connections amongst all the idle ones
+            StompMarshaller marshaller = new StompMarshaller();
+            for (int i = 0; i < sockets.length; i += 100) {
+                sockets[i].getOutputStream().write(("SEND\ndestination:/queue/" + i + "\n\nping\u0000\n").getBytes("UTF-8"));
+                StompFrame frame = marshaller.unmarshal(new DataInputStream(sockets[i].getInputStream()));
+                assertEquals("MESSAGE", frame.getAction());
+                assertEquals("/queue/" + i, frame.getHeaders().get("destination"));
+            }
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (server.getConnectionCount() < connectionCount && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(connectionCount, server.getConnectionCount());
+
+            // idle connections hold no I/O buffers, so what is left is the connection objects themselves
+            System.gc();
+            long perConnection = (runtime.totalMemory() - runtime.freeMemory() - usedBefore) / connectionCount;
+            assertTrue("heap per connection " + perConnection, perConnection < MAX_HEAP_PER_CONNECTION);
+
+            if (ThreadSupport.isVirtualThreadsAvailable()) {
+                int grew = threads.getThreadCount() - threadsBefore;
+                assertTrue("platform threads grew by " + grew, grew < connectionCount / 2);
+            }
+        }
+        finally {
+            for (int i = 0; i < sockets.length; i++) {
+                if (sockets[i] != null) {
+                    sockets[i].close();
+                }
+            }
+        }
+    }
+
+    protected void setUp() throws Exception {
+        server = new TcpTransportServer(new EchoHandlerFactory(), new URI("tcp://localhost:0?virtualThreads=true&ioBufferSize=1024&socketBufferSize=8192"), ServerSocketFactory.getDefault());
+        server.setJoinOnStop(false);
+        server.start();
+    }
+
+    protected void tearDown() throws Exception {
+        server.stop();
+    }
+}
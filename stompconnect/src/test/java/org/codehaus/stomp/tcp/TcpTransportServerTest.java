@@ -0,0 +1,217 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.tcp;
+
+import junit.framework.TestCase;
+import org.codehaus.stomp.EchoHandlerFactory;
+import org.codehaus.stomp.StompFrame;
+import org.codehaus.stomp.StompHandlerFactory;
+import org.codehaus.stomp.StompMarshaller;
+
+import javax.net.ServerSocketFactory;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @version $Revision$
+ */
+public class TcpTransportServerTest extends TestCase {
+    private TcpTransportServer server;
+    private List<String> setupThreads = Collections.synchronizedList(new ArrayList<String>());
+    private AtomicInteger closed = new AtomicInteger();
+
+    public void testBurstOfConnectionsOnSeveralAcceptors() throws Exception {
+        assertEquals(4, server.getAcceptors());
+        assertEquals(2, server.getSetupThreads());
+        assertTrue(server.getServerSocketCount() >= 1);
+
+        final int port = server.getConnectURI().getPort();
+        final Socket[] sockets = new Socket[200];
+        final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            final int first = t;
+            new Thread() {
+                public void run() {
+                    try {
+                        for (int i = first; i < sockets.length; i += 4) {
+                            sockets[i] = new Socket("localhost", port);
+                        }
+                    }
+                    catch (Exception e) {
+                        failures.add(e);
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+        assertEquals("" + failures, 0, failures.size());
+
+        StompMarshaller marshaller = new StompMarshaller();
+        try {
+            for (int i = 0; i < sockets.length; i++) {
+                sockets[i].getOutputStream().write(("SEND\ndestination:/queue/" + i + "\n\nhi\u0000\n").getBytes("UTF-8"));
+            }
+            for (int i = 0; i < sockets.length; i++) {
+                StompFrame frame = marshaller.unmarshal(new DataInputStream(sockets[i].getInputStream()));
+                assertEquals("MESSAGE", frame.getAction());
+                assertEquals("/queue/" + i, frame.getHeaders().get("destination"));
+            }
+        }
+        finally {
+            for (int i = 0; i < sockets.length; i++) {
+                sockets[i].close();
+            }
+        }
+
+        assertEquals(sockets.length, setupThreads.size());
+        for (String name : setupThreads) {
+            assertTrue(name, name.startsWith("StompConnect Connection Setup"));
+        }
+        assertEquals(0, server.getPendingSetupCount());
+    }
+
+    public void testClosedConnectionsLeaveTheRegistry() throws Exception {
+        Socket[] sockets = new Socket[3];
+        for (int i = 0; i < sockets.length; i++) {
+            sockets[i] = new Socket("localhost", server.getConnectURI().getPort());
+        }
+        waitForConnectionCount(3);
+        for (TcpTransport transport : server.getConnections()) {
+            assertSame(transport, server.getConnection(transport.getConnectionId()));
+        }
+
+        sockets[0].close();
+        waitForConnectionCount(2);
+        for (int i = 1; i < sockets.length; i++) {
+            sockets[i].close();
+        }
+        waitForConnectionCount(0);
+        assertTrue(server.getConnections().isEmpty());
+    }
+
+    public void testAcceptFailuresDoNotStopTheServer() throws Exception {
+        tearDown();
+        final AtomicInteger failures = new AtomicInteger(3);
+        ServerSocketFactory factory = new ServerSocketFactory() {
+            public ServerSocket createServerSocket(int port) throws IOException {
+                return createServerSocket(port, 50, null);
+            }
+
+            public ServerSocket createServerSocket(int port, int backlog) throws IOException {
+                return createServerSocket(port, backlog, null);
+            }
+
+            public ServerSocket createServerSocket(int port, int backlog, InetAddress address) throws IOException {
+                return new ServerSocket(port, backlog, address) {
+                    public Socket accept() throws IOException {
+                        if (failures.getAndDecrement() > 0) {
+                            throw new IOException("Too many open files");
+                        }
+                        return super.accept();
+                    }
+                };
+            }
+        };
+        server = new TcpTransportServer(createHandlerFactory(), new URI("tcp://localhost:0"), factory);
+        server.start();
+
+        Socket socket = new Socket("localhost", server.getConnectURI().getPort());
+        socket.getOutputStream().write("SEND\ndestination:/queue/a\n\nping\u0000\n".getBytes("UTF-8"));
+        StompFrame frame = new StompMarshaller().unmarshal(new DataInputStream(socket.getInputStream()));
+        assertEquals("MESSAGE", frame.getAction());
+        assertTrue(failures.get() < 0);
+        assertTrue(server.isStarted());
+        socket.close();
+    }
+
+    public void testDrainFinishesFramesInFlight() throws Exception {
+        Socket idle = new Socket("localhost", server.getConnectURI().getPort());
+        Socket busy = new Socket("localhost", server.getConnectURI().getPort());
+        waitForConnectionCount(2);
+        busy.getOutputStream().write("SEND\ndestination:/queue/slow\n\nhi\u0000\n".getBytes("UTF-8"));
+        for (int i = 0; i < 500 && server.getBusyConnectionCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, server.getBusyConnectionCount());
+
+        server.drain(5000);
+        assertTrue(server.isDraining());
+        assertTrue(server.isStopped());
+        assertEquals(2, server.getConnectionsToClose());
+        assertEquals(2, server.getConnectionsClosed());
+        assertEquals(0, server.getConnectionsAbandoned());
+        assertEquals(2, closed.get());
+
+        // the frame which was being processed still got its reply before the connection closed
+        StompFrame frame = new StompMarshaller().unmarshal(new DataInputStream(busy.getInputStream()));
+        assertEquals("/queue/slow", frame.getHeaders().get("destination"));
+        assertEquals('\n', busy.getInputStream().read());
+        assertEquals(-1, busy.getInputStream().read());
+        assertEquals(-1, idle.getInputStream().read());
+        idle.close();
+        busy.close();
+    }
+
+    protected void waitForConnectionCount(int expected) throws Exception {
+        for (int i = 0; i < 500 && server.getConnectionCount() != expected; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, server.getConnectionCount());
+    }
+
+    protected void setUp() throws Exception {
+        server = new TcpTransportServer(createHandlerFactory(), new URI("tcp://localhost:0?acceptors=4&setupThreads=2&tcpNoDelay=true"),
+                ServerSocketFactory.getDefault());
+        server.start();
+    }
+
+    protected StompHandlerFactory createHandlerFactory() {
+        return new EchoHandlerFactory() {
+            protected void onCreate() {
+                setupThreads.add(Thread.currentThread().getName());
+            }
+
+            protected void onFrame(StompFrame frame) throws Exception {
+                if ("/queue/slow".equals(frame.getHeaders().get("destination"))) {
+                    Thread.sleep(300);
+                }
+            }
+
+            protected void onClose() {
+                closed.incrementAndGet();
+            }
+        };
+    }
+
+    protected void tearDown() throws Exception {
+        server.stop();
+    }
+}
@@ -0,0 +1,423 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.tcp;
+
+import junit.framework.TestCase;
+import org.codehaus.stomp.HeartBeatMonitor;
+import org.codehaus.stomp.StompFrame;
+import org.codehaus.stomp.StompHandler;
+import org.codehaus.stomp.StompMarshaller;
+import org.codehaus.stomp.util.BufferPool;
+
+import java.io.DataInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @version $Revision$
+ */
+public class TcpTransportTest extends TestCase {
+    private static final int THREADS = 8;
+    private static final int FRAMES = 500;
+    private ServerSocket serverSocket;
+    private Socket client;
+    private TcpTransport transport;
+    private BufferPool bufferPool = new BufferPool(false, 1024, 64 * 1024, 64 * 1024);
+    private BlockingQueue<StompFrame> received = new LinkedBlockingQueue<StompFrame>();
+    private AtomicInteger socketWrites = new AtomicInteger();
+
+    public void testConcurrentSendersDoNotInterleave() throws Exception {
+        sendConcurrently();
+    }
+
+    public void testConcurrentSendersWithFlushLinger() throws Exception {
+        transport.setFlushLinger(200);
+        sendConcurrently();
+    }
+
+    public void testFlushLingerBatchesWrites() throws Exception {
+        int unbatched = sendSpacedOut(20);
+        transport.setFlushLinger(500 * 1000);
+        int batched = sendSpacedOut(20);
+        assertTrue("writes with linger " + batched + " without " + unbatched, batched <= 3 && batched < unbatched);
+    }
+
+    /**
+     * Sends frames a few milliseconds apart from a single thread, returning the number of socket writes it took
+     */
+    protected int sendSpacedOut(int count) throws Exception {
+        int before = socketWrites.get();
+        for (int i = 0; i < count; i++) {
+            transport.onStompFrame(new StompFrame("MESSAGE", new HashMap<String, Object>(), ("body " + i).getBytes("UTF-8")));
+            Thread.sleep(5);
+        }
+        StompMarshaller marshaller = new StompMarshaller();
+        DataInputStream in = new DataInputStream(client.getInputStream());
+        for (int i = 0; i < count; i++) {
+            assertEquals("body " + i, new String(marshaller.unmarshal(in).getContent(), "UTF-8"));
+        }
+        return socketWrites.get() - before;
+    }
+
+    protected void sendConcurrently() throws Exception {
+        final Exception[] failure = new Exception[1];
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < threads.length; i++) {
+            final int thread = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < FRAMES; j++) {
+                            Map<String, Object> headers = new HashMap<String, Object>();
+                            headers.put("thread", "" + thread);
+                            headers.put("seq", "" + j);
+                            transport.onStompFrame(new StompFrame("MESSAGE", headers, ("body " + thread + "-" + j).getBytes("UTF-8")));
+                        }
+                    }
+                    catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        StompMarshaller marshaller = new StompMarshaller();
+        DataInputStream in = new DataInputStream(client.getInputStream());
+        int[] next = new int[THREADS];
+        for (int i = 0; i < THREADS * FRAMES; i++) {
+            StompFrame frame = marshaller.unmarshal(in);
+            assertEquals("MESSAGE", frame.getAction());
+            int thread = Integer.parseInt((String) frame.getHeaders().get("thread"));
+            int seq = Integer.parseInt((String) frame.getHeaders().get("seq"));
+            assertEquals("frames of a thread are sent in order", next[thread]++, seq);
+            assertEquals("body " + thread + "-" + seq, new String(frame.getContent(), "UTF-8"));
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        assertNull(failure[0]);
+    }
+
+    public void testDropOldestKeepsSlowConsumerWithinBudget() throws Exception {
+        transport.setHighWatermark(64 * 1024);
+        transport.setLowWatermark(32 * 1024);
+        transport.setSlowConsumerPolicy("drop-oldest");
+        stallWriter();
+
+        // the sender is never held up by the stalled writer
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 20; i++) {
+            transport.onStompFrame(message("kept", i, false));
+        }
+        for (int i = 0; i < 1000; i++) {
+            transport.onStompFrame(message("dropped", i, true));
+            assertTrue(transport.getOutboundBudget().getQueuedBytes() <= 64 * 1024);
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        long dropped = transport.getOutboundBudget().getDroppedFrames();
+        assertTrue(dropped > 0);
+
+        // once the client catches up it gets every frame which could not be dropped and the rest of the others
+        DataInputStream in = new DataInputStream(client.getInputStream());
+        StompMarshaller marshaller = new StompMarshaller();
+        assertEquals(8 * 1024 * 1024, marshaller.unmarshal(in).getContent().length);
+        int kept = 0;
+        int others = 0;
+        while (kept + others < 20 + 1000 - dropped) {
+            StompFrame frame = marshaller.unmarshal(in);
+            if ("kept".equals(frame.getHeaders().get("type"))) {
+                assertEquals("" + kept++, frame.getHeaders().get("seq"));
+            }
+            else {
+                others++;
+            }
+        }
+        assertEquals(20, kept);
+    }
+
+    public void testDisconnectSlowConsumer() throws Exception {
+        transport.setHighWatermark(16 * 1024);
+        transport.setSlowConsumerPolicy("DISCONNECT");
+        stallWriter();
+
+        try {
+            for (int i = 0; i < 100; i++) {
+                transport.onStompFrame(new StompFrame("MESSAGE", new HashMap<String, Object>(), new byte[1024]));
+                assertTrue(transport.getOutboundBudget().getQueuedBytes() <= 16 * 1024);
+            }
+            fail("Should have disconnected");
+        }
+        catch (IOException e) {
+            // expected
+        }
+
+        // the client sees the connection closed once it catches up
+        InputStream in = client.getInputStream();
+        byte[] buffer = new byte[64 * 1024];
+        while (in.read(buffer) >= 0) {
+        }
+    }
+
+    public void testStalledWriterIsDisconnected() throws Exception {
+        transport.setWriteTimeout(500);
+        stallWriter();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!transport.isStopped() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(transport.isStopped());
+    }
+
+    public void testHeartBeats() throws Exception {
+        transport.startHeartBeat(200, 0);
+        InputStream in = client.getInputStream();
+        long start = System.currentTimeMillis();
+        assertEquals('\n', in.read());
+        assertEquals('\n', in.read());
+        assertTrue(System.currentTimeMillis() - start >= 300);
+    }
+
+    public void testHeartBeatToStalledClientDoesNotBlock() throws Exception {
+        stallWriter();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            transport.writeHeartBeat();
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertFalse(transport.isDrained());
+    }
+
+    public void testSilentClientIsDisconnected() throws Exception {
+        transport.startHeartBeat(0, 300);
+        long start = System.currentTimeMillis();
+        assertEquals(-1, client.getInputStream().read());
+        assertTrue(System.currentTimeMillis() - start >= 250);
+        assertTrue(transport.isStopped());
+    }
+
+    public void testIdleConnectionHoldsNoBuffers() throws Exception {
+        OutputStream out = client.getOutputStream();
+        out.write("SEND\ndestination:/queue/foo\n\nhello\u0000\n\n".getBytes("UTF-8"));
+        out.flush();
+        StompFrame frame = received.poll(5, TimeUnit.SECONDS);
+        assertEquals("hello", new String(frame.getContent(), "UTF-8"));
+
+        transport.onStompFrame(new StompFrame("MESSAGE", new HashMap<String, Object>(), "world".getBytes("UTF-8")));
+        frame = new StompMarshaller().unmarshal(new DataInputStream(client.getInputStream()));
+        assertEquals("world", new String(frame.getContent(), "UTF-8"));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bufferPool.getBorrowedBytes() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, bufferPool.getBorrowedBytes());
+        assertTrue(bufferPool.getPooledBytes() > 0);
+    }
+
+    public void testDirectBufferPoolIsRejected() throws Exception {
+        try {
+            transport.setBufferPool(new BufferPool(true, 1024, 64 * 1024, 64 * 1024));
+            fail("Should have thrown an exception");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testLargeFrameIsReadIntoPooledBuffer() throws Exception {
+        byte[] body = new byte[20000];
+        Arrays.fill(body, (byte) 'x');
+        OutputStream out = client.getOutputStream();
+        out.write("SEND\ndestination:/queue/foo\n\n".getBytes("UTF-8"));
+        out.write(body);
+        out.write("\u0000\nSEND\ndestination:/queue/foo\n\nhello\u0000\n".getBytes("UTF-8"));
+        out.flush();
+        assertTrue(Arrays.equals(body, received.poll(5, TimeUnit.SECONDS).getContent()));
+        assertEquals("hello", new String(received.poll(5, TimeUnit.SECONDS).getContent(), "UTF-8"));
+
+        transport.onStompFrame(new StompFrame("MESSAGE", new HashMap<String, Object>(), "world".getBytes("UTF-8")));
+        StompFrame frame = new StompMarshaller().unmarshal(new DataInputStream(client.getInputStream()));
+        assertEquals("world", new String(frame.getContent(), "UTF-8"));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bufferPool.getBorrowedBytes() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, bufferPool.getBorrowedBytes());
+    }
+
+    public void testSendRateLimitPausesReading() throws Exception {
+        transport.setSendRate(20);
+        StringBuffer frames = new StringBuffer();
+        for (int i = 0; i < 30; i++) {
+            frames.append("SEND\ndestination:/queue/foo\n\n").append(i).append("\u0000\n");
+        }
+        long start = System.currentTimeMillis();
+        OutputStream out = client.getOutputStream();
+        out.write(frames.toString().getBytes("UTF-8"));
+        out.flush();
+
+        for (int i = 0; i < 30; i++) {
+            StompFrame frame = received.poll(5, TimeUnit.SECONDS);
+            assertEquals("" + i, new String(frame.getContent(), "UTF-8"));
+        }
+        // the burst of 20 goes straight through then the rest trickle in at 20 a second
+        assertTrue(System.currentTimeMillis() - start >= 400);
+        assertTrue(transport.getInboundRateLimit().getThrottleCount() > 0);
+        assertTrue(transport.getInboundRateLimit().getThrottledTime() >= 400);
+    }
+
+    public void testFrameStartedAfterDrainIsNotDispatched() throws Exception {
+        transport.drain();
+        assertTrue(transport.isDrained());
+
+        OutputStream out = client.getOutputStream();
+        out.write("SEND\ndestination:/queue/foo\n\nlate\u0000\n".getBytes("UTF-8"));
+        out.flush();
+        assertNull(received.poll(500, TimeUnit.MILLISECONDS));
+        assertTrue(transport.isDrained());
+    }
+
+    public void testFramesReadBeforeDrainAreDispatched() throws Exception {
+        final CountDownLatch handling = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        transport.setInputHandler(new StompHandler() {
+            public void onStompFrame(StompFrame frame) throws Exception {
+                handling.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                received.add(frame);
+            }
+
+            public void onException(Exception e) {
+            }
+
+            public void close() {
+            }
+        });
+        OutputStream out = client.getOutputStream();
+        out.write("SEND\n\nfirst\u0000\nSEND\n\nsecond\u0000\n".getBytes("UTF-8"));
+        out.flush();
+        assertTrue(handling.await(5, TimeUnit.SECONDS));
+
+        transport.drain();
+        assertFalse(transport.isDrained());
+        release.countDown();
+        assertEquals("first", new String(received.poll(5, TimeUnit.SECONDS).getContent(), "UTF-8"));
+        assertEquals("second", new String(received.poll(5, TimeUnit.SECONDS).getContent(), "UTF-8"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!transport.isDrained() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(transport.isDrained());
+    }
+
+    public void testParseHeartBeat() throws Exception {
+        long[] values = HeartBeatMonitor.parseHeartBeat("1000, 2000");
+        assertEquals(1000, values[0]);
+        assertEquals(2000, values[1]);
+        values = HeartBeatMonitor.parseHeartBeat("bogus");
+        assertEquals(0, values[0]);
+        assertEquals(0, values[1]);
+    }
+
+    /**
+     * Sends a frame too large for the socket buffers which the writer is then stuck writing, while the sender
+     * itself returns straight away
+     */
+    protected void stallWriter() throws Exception {
+        byte[] body = new byte[8 * 1024 * 1024];
+        Arrays.fill(body, (byte) 'x');
+        long start = System.currentTimeMillis();
+        transport.onStompFrame(new StompFrame("MESSAGE", new HashMap<String, Object>(), body));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        Thread.sleep(500);
+    }
+
+    protected StompFrame message(String type, int seq, boolean droppable) {
+        Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put("type", type);
+        headers.put("seq", "" + seq);
+        byte[] body = new byte[1024];
+        Arrays.fill(body, (byte) 'a');
+        StompFrame frame = new StompFrame("MESSAGE", headers, body);
+        frame.setDroppable(droppable);
+        return frame;
+    }
+
+    protected void setUp() throws Exception {
+        serverSocket = new ServerSocket(0) {
+            public Socket accept() throws IOException {
+                Socket socket = new Socket() {
+                    public OutputStream getOutputStream() throws IOException {
+                        return new FilterOutputStream(super.getOutputStream()) {
+                            public void write(int b) throws IOException {
+                                socketWrites.incrementAndGet();
+                                out.write(b);
+                            }
+
+                            public void write(byte[] b, int off, int len) throws IOException {
+                                socketWrites.incrementAndGet();
+                                out.write(b, off, len);
+                            }
+                        };
+                    }
+                };
+                implAccept(socket);
+                return socket;
+            }
+        };
+        client = new Socket();
+        client.setReceiveBufferSize(4096);
+        client.connect(serverSocket.getLocalSocketAddress());
+        transport = new TcpTransport(serverSocket.accept(), null);
+        transport.setSocketBufferSize(4096);
+        transport.setBufferPool(bufferPool);
+        transport.setInputHandler(new StompHandler() {
+            public void onStompFrame(StompFrame frame) {
+                received.add(frame);
+            }
+
+            public void onException(Exception e) {
+            }
+
+            public void close() {
+            }
+        });
+        transport.start();
+    }
+
+    protected void tearDown() throws Exception {
+        transport.stop();
+        client.close();
+        serverSocket.close();
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.unix;
+
+import junit.framework.TestCase;
+import org.codehaus.stomp.EchoHandlerFactory;
+import org.codehaus.stomp.StompFrame;
+import org.codehaus.stomp.StompMarshaller;
+import org.codehaus.stomp.util.UnixSocketSupport;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * @version $Revision$
+ */
+public class UnixTransportServerTest extends TestCase {
+    private UnixTransportServer server;
+    private File file;
+
+    public void testEchoFrames() throws Exception {
+        if (server == null) {
+            return;
+        }
+        StompMarshaller marshaller = new StompMarshaller();
+        SocketChannel[] channels = new SocketChannel[3];
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = UnixSocketSupport.connect(file.getPath());
+            ByteBuffer buffer = ByteBuffer.wrap(("SEND\ndestination:/queue/" + i + "\n\nhello\u0000\n").getBytes("UTF-8"));
+            while (buffer.hasRemaining()) {
+                channels[i].write(buffer);
+            }
+        }
+        for (int i = 0; i < channels.length; i++) {
+            StompFrame frame = marshaller.unmarshal(new DataInputStream(Channels.newInputStream(channels[i])));
+            assertEquals("MESSAGE", frame.getAction());
+            assertEquals("/queue/" + i, frame.getHeaders().get("destination"));
+            assertEquals("hello", new String(frame.getContent(), "UTF-8"));
+            channels[i].close();
+        }
+    }
+
+    public void testSocketFileIsDeletedOnStop() throws Exception {
+        if (server == null) {
+            return;
+        }
+        assertTrue(file.exists());
+        server.stop();
+        assertFalse(file.exists());
+    }
+
+    public void testStaleSocketFileIsReplaced() throws Exception {
+        if (server == null) {
+            return;
+        }
+        server.stop();
+        // a socket file nothing listens on, as left by a server which did not stop cleanly
+        ServerSocketChannel channel = UnixSocketSupport.openServerChannel();
+        channel.bind(UnixSocketSupport.createAddress(file.getPath()));
+        channel.close();
+        assertTrue(UnixSocketSupport.isSocketFile(file.getPath()));
+
+        server = createServer("");
+        server.start();
+        UnixSocketSupport.connect(file.getPath()).close();
+    }
+
+    public void testSocketInUseIsNotReplaced() throws Exception {
+        if (server == null) {
+            return;
+        }
+        UnixTransportServer second = createServer("");
+        try {
+            second.start();
+            fail("Should not bind to a socket another server is listening on");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        UnixSocketSupport.connect(file.getPath()).close();
+    }
+
+    public void testRegularFileIsNotReplaced() throws Exception {
+        if (server == null) {
+            return;
+        }
+        server.stop();
+        writeFile("hello");
+        server = createServer("");
+        assertStartFails();
+        assertEquals("hello", readFile());
+    }
+
+    public void testDeleteExistingFalseRefusesExistingFile() throws Exception {
+        if (server == null) {
+            return;
+        }
+        server.stop();
+        writeFile("hello");
+        server = createServer("?deleteExisting=false");
+        assertFalse(server.isDeleteExisting());
+        assertStartFails();
+        assertEquals("hello", readFile());
+    }
+
+    protected void assertStartFails() throws Exception {
+        try {
+            server.start();
+            fail("Should have failed to bind");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        server = null;
+    }
+
+    protected void writeFile(String text) throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(text.getBytes("UTF-8"));
+        out.close();
+    }
+
+    protected String readFile() throws Exception {
+        FileInputStream in = new FileInputStream(file);
+        byte[] data = new byte[(int) file.length()];
+        new DataInputStream(in).readFully(data);
+        in.close();
+        return new String(data, "UTF-8");
+    }
+
+    protected void setUp() throws Exception {
+        if (!UnixSocketSupport.isAvailable()) {
+            return;
+        }
+        file = File.createTempFile("stomp", ".sock");
+        file.delete();
+        server = createServer("?eventLoops=1&socketBufferSize=8192");
+        server.start();
+        assertEquals(1, server.getEventLoops());
+    }
+
+    protected UnixTransportServer createServer(String query) throws Exception {
+        return new UnixTransportServer(new EchoHandlerFactory(), new URI("unix://" + file.toURI().getPath() + query));
+    }
+
+    protected void tearDown() throws Exception {
+        if (server != null) {
+            server.stop();
+        }
+        if (file != null) {
+            file.delete();
+        }
+    }
+}
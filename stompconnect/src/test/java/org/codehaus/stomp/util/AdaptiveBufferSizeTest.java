@@ -0,0 +1,59 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.util;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Revision$
+ */
+public class AdaptiveBufferSizeTest extends TestCase {
+
+    public void testGrowsQuicklyWhenReadsFillTheBuffer() throws Exception {
+        AdaptiveBufferSize sizing = new AdaptiveBufferSize(1024, 8192, 64 * 1024);
+        assertEquals(8192, sizing.getSize());
+        sizing.record(8192);
+        assertEquals(32 * 1024, sizing.getSize());
+        sizing.record(32 * 1024);
+        assertEquals(64 * 1024, sizing.getSize());
+        sizing.record(64 * 1024);
+        assertEquals(64 * 1024, sizing.getSize());
+    }
+
+    public void testShrinksAfterConsecutiveSmallReads() throws Exception {
+        AdaptiveBufferSize sizing = new AdaptiveBufferSize(1024, 8192, 64 * 1024);
+        sizing.record(100);
+        assertEquals(8192, sizing.getSize());
+        sizing.record(5000);
+        sizing.record(100);
+        assertEquals("a read over half way resets the count", 8192, sizing.getSize());
+        sizing.record(100);
+        assertEquals(4096, sizing.getSize());
+        for (int i = 0; i < 20; i++) {
+            sizing.record(10);
+        }
+        assertEquals(1024, sizing.getSize());
+    }
+
+    public void testSizesAreRoundedToPowersOfTwo() throws Exception {
+        AdaptiveBufferSize sizing = new AdaptiveBufferSize(1000, 3000, 50000);
+        assertEquals(1024, sizing.getMinimum());
+        assertEquals(4096, sizing.getSize());
+        assertEquals(64 * 1024, sizing.getMaximum());
+    }
+}
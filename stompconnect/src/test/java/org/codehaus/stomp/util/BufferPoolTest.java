@@ -0,0 +1,77 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.util;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @version $Revision$
+ */
+public class BufferPoolTest extends TestCase {
+    private BufferPool pool = new BufferPool(true, 1024, 8 * 1024, 16 * 1024);
+
+    public void testBuffersAreCarvedFromSlabs() throws Exception {
+        ByteBuffer buffer = pool.acquire(1500);
+        assertTrue(buffer.isDirect());
+        assertEquals(2048, buffer.capacity());
+        assertEquals(2048, buffer.remaining());
+        assertEquals(16 * 1024, pool.getPooledBytes());
+        assertEquals(2048, pool.getBorrowedBytes());
+
+        ByteBuffer other = pool.acquire(2048);
+        assertEquals(16 * 1024, pool.getPooledBytes());
+        assertEquals(4096, pool.getBorrowedBytes());
+
+        // slices of the same slab must not overlap
+        buffer.put(0, (byte) 1);
+        other.put(0, (byte) 2);
+        assertEquals(1, buffer.get(0));
+
+        pool.release(buffer);
+        pool.release(other);
+        assertEquals(0, pool.getBorrowedBytes());
+        assertEquals(16 * 1024, pool.getAvailableBytes());
+    }
+
+    public void testReleasedBuffersAreReused() throws Exception {
+        // takes the whole slab
+        ByteBuffer buffer = pool.acquire(8000);
+        ByteBuffer other = pool.acquire(8000);
+        buffer.position(10);
+        pool.release(buffer);
+        ByteBuffer again = pool.acquire(8000);
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(16 * 1024, pool.getPooledBytes());
+        pool.release(other);
+        pool.release(again);
+    }
+
+    public void testOversizedAndForeignBuffers() throws Exception {
+        ByteBuffer large = pool.acquire(100 * 1024);
+        assertEquals(100 * 1024, large.capacity());
+        assertEquals(1, pool.getUnpooledCount());
+        pool.release(large);
+        pool.release(ByteBuffer.allocate(1024));
+        pool.release(ByteBuffer.allocateDirect(1000));
+        assertEquals(0, pool.getPooledBytes());
+        assertEquals(0, pool.getBorrowedBytes());
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.util;
+
+import junit.framework.TestCase;
+
+import java.util.Iterator;
+
+/**
+ * @version $Revision$
+ */
+public class ConnectionRegistryTest extends TestCase {
+
+    public void testRegisterAndUnregister() throws Exception {
+        ConnectionRegistry<String> registry = new ConnectionRegistry<String>();
+        long a = registry.register("a");
+        long b = registry.register("b");
+        assertTrue(a != b);
+        assertEquals(2, registry.size());
+        assertEquals("a", registry.get(a));
+
+        assertFalse(registry.unregister(a, "b"));
+        assertTrue(registry.unregister(a, "a"));
+        assertFalse(registry.unregister(a, "a"));
+        assertNull(registry.get(a));
+        assertEquals(1, registry.size());
+        assertTrue(registry.getIds().contains(Long.valueOf(b)));
+    }
+
+    public void testUnregisterWhileIterating() throws Exception {
+        ConnectionRegistry<String> registry = new ConnectionRegistry<String>();
+        for (int i = 0; i < 10; i++) {
+            registry.register("c" + i);
+        }
+        int count = 0;
+        for (Iterator<Long> iter = registry.getIds().iterator(); iter.hasNext();) {
+            long id = iter.next().longValue();
+            assertTrue(registry.unregister(id, registry.get(id)));
+            count++;
+        }
+        assertEquals(10, count);
+        assertEquals(0, registry.size());
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.util;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @version $Revision$
+ */
+public class TimerWheelTest extends TestCase {
+    private TimerWheel wheel = new TimerWheel("test timer", 10, 8);
+
+    public void testTimersFireInOrderAcrossRounds() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(3);
+        final StringBuffer order = new StringBuffer();
+        long start = System.currentTimeMillis();
+        // longer than the 80ms the wheel covers in one round
+        wheel.schedule(task("c", order, latch), 250);
+        wheel.schedule(task("a", order, latch), 20);
+        wheel.schedule(task("b", order, latch), 90);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals("abc", order.toString());
+        assertTrue(System.currentTimeMillis() - start >= 250);
+    }
+
+    public void testCancelledTimerDoesNotFire() throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        Runnable task = new Runnable() {
+            public void run() {
+                count.incrementAndGet();
+            }
+        };
+        TimerWheel.Timeout timeout = wheel.schedule(task, 30);
+        wheel.schedule(task, 30);
+        timeout.cancel();
+        Thread.sleep(200);
+        assertEquals(1, count.get());
+    }
+
+    protected Runnable task(final String name, final StringBuffer order, final CountDownLatch latch) {
+        return new Runnable() {
+            public void run() {
+                order.append(name);
+                latch.countDown();
+            }
+        };
+    }
+
+    protected void tearDown() throws Exception {
+        wheel.stop();
+    }
+}
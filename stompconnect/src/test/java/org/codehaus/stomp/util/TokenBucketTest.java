@@ -0,0 +1,84 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.util;
+
+import junit.framework.TestCase;
+import org.codehaus.stomp.InboundRateLimit;
+import org.codehaus.stomp.StompFrame;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @version $Revision$
+ */
+public class TokenBucketTest extends TestCase {
+    private static final long SECOND = 1000000000L;
+
+    public void testBurstThenRate() throws Exception {
+        TokenBucket bucket = new TokenBucket(10, 10, 0);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, bucket.take(1, 0));
+        }
+        // the 11th token is a tenth of a second away
+        assertEquals(SECOND / 10, bucket.take(1, 0));
+        assertEquals(-1, bucket.getTokens(0));
+        assertEquals(0, bucket.getTokens(SECOND / 10));
+        assertEquals(0, bucket.take(1, SECOND / 5));
+    }
+
+    public void testRefillIsCappedAtCapacity() throws Exception {
+        TokenBucket bucket = new TokenBucket(100, 50, 0);
+        assertEquals(0, bucket.take(50, 0));
+        assertEquals(50, bucket.getTokens(60 * SECOND));
+    }
+
+    public void testLargeTakeGoesIntoDebt() throws Exception {
+        TokenBucket bucket = new TokenBucket(1000, 1000, 0);
+        assertEquals(4 * SECOND, bucket.take(5000, 0));
+        assertEquals(SECOND, bucket.take(0, 3 * SECOND));
+    }
+
+    public void testInboundRateLimitOnlyChargesSends() throws Exception {
+        InboundRateLimit limit = new InboundRateLimit();
+        assertFalse(limit.isEnabled());
+        limit.setDestinationRates("/queue/slow.=1:0, /queue/=0:10");
+        assertTrue(limit.isEnabled());
+
+        assertEquals(0, limit.onFrame(send("/queue/slow.a", 1)));
+        assertTrue(limit.onFrame(send("/queue/slow.b", 1)) > 0);
+        assertEquals(0, limit.onFrame(new StompFrame("SUBSCRIBE", new HashMap<String, Object>(), new byte[0])));
+        assertEquals(0, limit.onFrame(send("/topic/other", 1000)));
+        assertTrue(limit.onFrame(send("/queue/big", 20)) > 0);
+        assertEquals(2, limit.getThrottleCount());
+
+        try {
+            limit.setDestinationRates("/queue/=fast");
+            fail("Should have failed to parse");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    protected StompFrame send(String destination, int size) {
+        Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put("destination", destination);
+        return new StompFrame("SEND", headers, new byte[size]);
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.vm;
+
+import junit.framework.TestCase;
+import org.codehaus.stomp.EchoHandlerFactory;
+import org.codehaus.stomp.StompFrame;
+import org.codehaus.stomp.StompHandler;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @version $Revision$
+ */
+public class VmTransportServerTest extends TestCase {
+    private VmTransportServer server;
+    private BlockingQueue<StompFrame> received = new LinkedBlockingQueue<StompFrame>();
+    private boolean[] closed = new boolean[1];
+
+    public void testFramesAreEchoedWithoutMarshalling() throws Exception {
+        StompHandler connection = VmTransportRegistry.connect("test-broker", new ClientHandler());
+        assertEquals(1, server.getConnectionCount());
+
+        StompFrame sent = new StompFrame("SEND", new HashMap<String, Object>(), "hello".getBytes("UTF-8"));
+        sent.getHeaders().put("destination", "/queue/foo");
+        connection.onStompFrame(sent);
+
+        StompFrame frame = received.poll(5, TimeUnit.SECONDS);
+        assertSame(sent, frame);
+        assertEquals("MESSAGE", frame.getAction());
+
+        connection.close();
+        assertEquals(0, server.getConnectionCount());
+        assertTrue(closed[0]);
+    }
+
+    public void testStoppingTheServerClosesClients() throws Exception {
+        StompHandler connection = server.connect(new ClientHandler());
+        server.stop();
+        assertTrue(closed[0]);
+        assertNull(VmTransportRegistry.lookup("test-broker"));
+        try {
+            connection.onStompFrame(new StompFrame("SEND", new HashMap<String, Object>(), new byte[0]));
+            fail("Should have thrown an exception");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testNamesMustBeUnique() throws Exception {
+        VmTransportServer other = new VmTransportServer(null, new URI("vm://test-broker"));
+        try {
+            other.start();
+            fail("Should have thrown an exception");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        assertSame(server, VmTransportRegistry.lookup("test-broker"));
+    }
+
+    public void testConnectToUnknownServer() throws Exception {
+        try {
+            VmTransportRegistry.connect("no-such-broker", new ClientHandler());
+            fail("Should have thrown an exception");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+    protected void setUp() throws Exception {
+        server = new VmTransportServer(new EchoHandlerFactory(), new URI("vm://test-broker"));
+        server.start();
+    }
+
+    protected void tearDown() throws Exception {
+        server.stop();
+    }
+
+    protected class ClientHandler implements StompHandler {
+        public void onStompFrame(StompFrame frame) {
+            received.add(frame);
+        }
+
+        public void onException(Exception e) {
+        }
+
+        public void close() {
+            closed[0] = true;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.stomp.ws;
+
+import junit.framework.TestCase;
+import org.codehaus.stomp.EchoHandlerFactory;
+import org.codehaus.stomp.StompFrame;
+import org.codehaus.stomp.StompMarshaller;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+
+/**
+ * @version $Revision$
+ */
+public class WebSocketTransportServerTest extends TestCase {
+    private WebSocketTransportServer server;
+    private StompMarshaller marshaller = new StompMarshaller();
+
+    public void testAcceptKey() throws Exception {
+        // the example from RFC 6455
+        assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", WebSocketTransport.createAcceptKey("dGhlIHNhbXBsZSBub25jZQ=="));
+    }
+
+    public void testEchoFrameSplitAcrossFragments() throws Exception {
+        Socket socket = connect();
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        byte[] data = "SEND\ndestination:/queue/a\n\nhello\u0000".getBytes("UTF-8");
+        OutputStream out = socket.getOutputStream();
+        out.write(frame(0x01, false, data, 0, 10));
+        out.flush();
+        Thread.sleep(10);
+        out.write(frame(0x80, true, data, 10, data.length - 10));
+        out.flush();
+
+        assertEquals(0x81, in.readUnsignedByte());
+        StompFrame frame = marshaller.unmarshal(readPayload(in));
+        assertEquals("MESSAGE", frame.getAction());
+        assertEquals("/queue/a", frame.getHeaders().get("destination"));
+        assertEquals("hello", new String(frame.getContent(), "UTF-8"));
+        socket.close();
+    }
+
+    public void testLargeFrames() throws Exception {
+        Socket socket = connect();
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        int[] sizes = new int[]{200, 70000};
+        for (int i = 0; i < sizes.length; i++) {
+            StringBuffer body = new StringBuffer();
+            for (int j = 0; j < sizes[i]; j++) {
+                body.append((char) ('a' + j % 26));
+            }
+            byte[] data = ("SEND\n\n" + body + "\u0000").getBytes("UTF-8");
+            socket.getOutputStream().write(frame(0x81, true, data, 0, data.length));
+
+            assertEquals(0x81, in.readUnsignedByte());
+            StompFrame frame = marshaller.unmarshal(readPayload(in));
+            assertEquals(body.toString(), new String(frame.getContent(), "UTF-8"));
+        }
+        socket.close();
+    }
+
+    public void testPingAndClose() throws Exception {
+        Socket socket = connect();
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        out.write(frame(0x89, true, new byte[]{1, 2, 3}, 0, 3));
+        assertEquals(0x8A, in.readUnsignedByte());
+        assertEquals(3, readPayload(in).length);
+
+        out.write(frame(0x88, true, new byte[]{0x03, (byte) 0xe8}, 0, 2));
+        assertEquals(0x88, in.readUnsignedByte());
+        assertEquals(1000, new DataInputStream(new ByteArrayInputStream(readPayload(in))).readUnsignedShort());
+        assertEquals(-1, in.read());
+        socket.close();
+    }
+
+    public void testRefusesPlainHttp() throws Exception {
+        Socket socket = new Socket("localhost", server.getConnectURI().getPort());
+        socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("ISO-8859-1"));
+        assertTrue(readLine(new DataInputStream(socket.getInputStream())).startsWith("HTTP/1.1 400"));
+        socket.close();
+    }
+
+    protected Socket connect() throws Exception {
+        Socket socket = new Socket("localhost", server.getConnectURI().getPort());
+        String request = "GET /stomp HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: keep-alive, Upgrade\r\n"
+                + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n"
+                + "Sec-WebSocket-Protocol: mqtt, v12.stomp, v10.stomp\r\n\r\n";
+        socket.getOutputStream().write(request.getBytes("ISO-8859-1"));
+
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        assertEquals("HTTP/1.1 101 Switching Protocols", readLine(in));
+        boolean accepted = false;
+        String protocol = null;
+        String line;
+        while ((line = readLine(in)).length() > 0) {
+            if (line.equals("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=")) {
+                accepted = true;
+            }
+            if (line.startsWith("Sec-WebSocket-Protocol: ")) {
+                protocol = line.substring(24);
+            }
+        }
+        assertTrue(accepted);
+        assertEquals("v12.stomp", protocol);
+        return socket;
+    }
+
+    protected byte[] frame(int first, boolean fin, byte[] data, int offset, int length) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        buffer.write(fin ? (first | 0x80) : first);
+        if (length < 126) {
+            buffer.write(0x80 | length);
+        }
+        else if (length < 65536) {
+            buffer.write(0x80 | 126);
+            buffer.write(length >> 8);
+            buffer.write(length);
+        }
+        else {
+            buffer.write(0x80 | 127);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer.write((int) ((long) length >> shift));
+            }
+        }
+        byte[] mask = new byte[]{0x12, 0x34, 0x56, 0x78};
+        buffer.write(mask, 0, 4);
+        for (int i = 0; i < length; i++) {
+            buffer.write(data[offset + i] ^ mask[i & 3]);
+        }
+        return buffer.toByteArray();
+    }
+
+    protected byte[] readPayload(DataInputStream in) throws Exception {
+        int length = in.readUnsignedByte();
+        assertEquals("server frames are not masked", 0, length & 0x80);
+        if (length == 126) {
+            length = in.readUnsignedShort();
+        }
+        else if (length == 127) {
+            length = (int) in.readLong();
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    protected String readLine(DataInputStream in) throws Exception {
+        StringBuffer line = new StringBuffer();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                break;
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    protected void setUp() throws Exception {
+        server = new WebSocketTransportServer(new EchoHandlerFactory(), new URI("ws://localhost:0?eventLoops=2&tcpNoDelay=true"));
+        server.start();
+    }
+
+    protected void tearDown() throws Exception {
+        server.stop();
+    }
+}